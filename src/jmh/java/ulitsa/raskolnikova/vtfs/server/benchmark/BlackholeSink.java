@@ -0,0 +1,27 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.infra.Blackhole;
+import ulitsa.raskolnikova.vtfs.server.service.ReadSink;
+
+/**
+ * Hands read data to a {@link Blackhole} so that it is neither copied nor optimized away.
+ */
+final class BlackholeSink implements ReadSink {
+    
+    private final Blackhole blackhole;
+    
+    BlackholeSink(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+    
+    @Override
+    public void begin(long offset, long length, long fileSize) {
+        blackhole.consume(length);
+    }
+    
+    @Override
+    public void write(byte[] data, int off, int len) {
+        blackhole.consume(data);
+        blackhole.consume(len);
+    }
+}
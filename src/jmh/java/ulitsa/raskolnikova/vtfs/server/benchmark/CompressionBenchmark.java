@@ -0,0 +1,128 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ulitsa.raskolnikova.vtfs.server.codec.BlockCodecs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write and read throughput of 64 KiB operations with block compression off and on, for log-like text
+ * and for random bytes that do not compress. Writes also report, as rates next to the operation rate, the
+ * bytes written and the bytes the codec handed to storage. Reads bypass the block cache so that every
+ * block is fetched and decoded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class CompressionBenchmark {
+    
+    private static final int IO_SIZE = 64 * 1024;
+    private static final long SPAN = 16L * 1024 * 1024;
+    
+    public enum Content {
+        TEXT,
+        RANDOM
+    }
+    
+    @Param({"none", "deflate"})
+    public String codec;
+    
+    @Param({"TEXT", "RANDOM"})
+    public Content content;
+    
+    private EmbeddedFileSystem fs;
+    private BlockCodecs blockCodecs;
+    private long fileIno;
+    private byte[] payload;
+    private long writes;
+    private long reads;
+    
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        fs = EmbeddedFileSystem.start("vtfs.compression.codec=" + codec, "vtfs.cache.block-cache-bytes=0");
+        blockCodecs = fs.bean(BlockCodecs.class);
+        fileIno = fs.createFile(EmbeddedFileSystem.ROOT_INO, "compression");
+        payload = content == Content.TEXT ? text(IO_SIZE) : random(IO_SIZE);
+        for (long offset = 0; offset < SPAN; offset += IO_SIZE) {
+            fs.write(fileIno, offset, payload);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() {
+        fs.close();
+    }
+    
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        
+        public long writtenBytes;
+        public long storedBytes;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            writtenBytes = 0;
+            storedBytes = 0;
+        }
+    }
+    
+    @Benchmark
+    public Long write(Bytes bytes) throws IOException {
+        long storedBefore = storedBytes();
+        Long written = fs.write(fileIno, writes++ * IO_SIZE % SPAN, payload);
+        bytes.storedBytes += storedBytes() - storedBefore;
+        bytes.writtenBytes += IO_SIZE;
+        return written;
+    }
+    
+    @Benchmark
+    public void read(Blackhole blackhole) throws IOException {
+        fs.fileSystem().read(EmbeddedFileSystem.TOKEN, fileIno, reads++ * IO_SIZE % SPAN, IO_SIZE,
+                new BlackholeSink(blackhole));
+    }
+    
+    private long storedBytes() {
+        return blockCodecs.stats().get("compression.stored_bytes").longValue();
+    }
+    
+    private static byte[] text(int size) {
+        String[] paths = {"/api/read", "/api/write", "/api/lookup", "/api/readdirplus"};
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder(size + 128);
+        while (text.length() < size) {
+            text.append("2026-01-01T12:").append(10 + random.nextInt(50)).append(':').append(10 + random.nextInt(50))
+                .append(" INFO request id=").append(random.nextInt(1_000_000))
+                .append(" path=").append(paths[random.nextInt(paths.length)])
+                .append(" status=200 bytes=").append(random.nextInt(65536)).append('\n');
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+    
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        return data;
+    }
+}
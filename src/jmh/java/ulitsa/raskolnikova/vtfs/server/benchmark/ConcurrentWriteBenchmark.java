@@ -0,0 +1,104 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of 64 KiB writes to one file as the number of writers grows. Each writer keeps to a region
+ * of its own, which byte range locking lets proceed in parallel; four writers sharing one region show the
+ * serialized case for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ConcurrentWriteBenchmark {
+    
+    private static final int WRITE_SIZE = 64 * 1024;
+    private static final long REGION_SIZE = 4L * 1024 * 1024;
+    private static final int REGIONS = 16;
+    
+    private EmbeddedFileSystem fs;
+    private long fileIno;
+    
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        // One connection per writer, so that the pool does not serialize them instead of the locks
+        fs = EmbeddedFileSystem.start("spring.datasource.hikari.maximum-pool-size=" + (REGIONS + 4));
+        fileIno = fs.createFile(EmbeddedFileSystem.ROOT_INO, "shared");
+        byte[] chunk = new byte[1024 * 1024];
+        for (long offset = 0; offset < REGIONS * REGION_SIZE; offset += chunk.length) {
+            fs.write(fileIno, offset, chunk);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() {
+        fs.close();
+    }
+    
+    @State(Scope.Thread)
+    public static class Writer {
+        
+        private static final AtomicInteger WRITERS = new AtomicInteger();
+        
+        private final int region = WRITERS.getAndIncrement() % REGIONS;
+        private final byte[] data = new byte[WRITE_SIZE];
+        private long writes;
+        
+        @Setup(Level.Trial)
+        public void prepare() {
+            new Random(region).nextBytes(data);
+        }
+        
+        long nextOffset(int region) {
+            return region * REGION_SIZE + writes++ * WRITE_SIZE % REGION_SIZE;
+        }
+    }
+    
+    @Benchmark
+    @Threads(1)
+    public Long oneWriter(Writer writer) throws IOException {
+        return writeOwnRegion(writer);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public Long fourWriters(Writer writer) throws IOException {
+        return writeOwnRegion(writer);
+    }
+    
+    @Benchmark
+    @Threads(16)
+    public Long sixteenWriters(Writer writer) throws IOException {
+        return writeOwnRegion(writer);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public Long fourWritersSharedRegion(Writer writer) throws IOException {
+        return fs.write(fileIno, writer.nextOffset(0), writer.data);
+    }
+    
+    private Long writeOwnRegion(Writer writer) throws IOException {
+        return fs.write(fileIno, writer.nextOffset(writer.region), writer.data);
+    }
+}
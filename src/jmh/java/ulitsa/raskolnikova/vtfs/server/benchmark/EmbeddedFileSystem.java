@@ -0,0 +1,97 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import ulitsa.raskolnikova.vtfs.server.VtfsServerApplication;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemOperations;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The server application running on an in-memory H2 database, for benchmarks.
+ * <p>
+ * The Liquibase changesets are written for PostgreSQL, so the schema is generated from the entity mappings
+ * and {@code import.sql} adds the root directory. Every instance gets a database of its own and no web
+ * server unless the properties ask for one.
+ */
+final class EmbeddedFileSystem implements AutoCloseable {
+    
+    static final String TOKEN = "bench";
+    static final long ROOT_INO = 1000L;
+    static final int FILE_MODE = 0100644;
+    static final int DIRECTORY_MODE = 040755;
+    
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    
+    private final ConfigurableApplicationContext context;
+    private final FileSystemOperations fileSystem;
+    
+    private EmbeddedFileSystem(ConfigurableApplicationContext context) {
+        this.context = context;
+        this.fileSystem = context.getBean(FileSystemOperations.class);
+    }
+    
+    /**
+     * Starts the application with {@code properties}, given as {@code name=value}, on top of the H2 setup.
+     */
+    static EmbeddedFileSystem start(String... properties) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("spring.datasource.url", "jdbc:h2:mem:bench" + DATABASES.incrementAndGet()
+                + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH");
+        settings.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        settings.put("spring.datasource.username", "sa");
+        settings.put("spring.datasource.password", "");
+        settings.put("spring.jpa.hibernate.ddl-auto", "create");
+        settings.put("spring.jpa.properties.hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        settings.put("spring.liquibase.enabled", "false");
+        settings.put("spring.main.web-application-type", "none");
+        settings.put("spring.main.banner-mode", "off");
+        settings.put("spring.main.log-startup-info", "false");
+        // The server's own properties log every statement, which would dominate the measurements
+        settings.put("logging.level.root", "WARN");
+        settings.put("logging.level.ulitsa.raskolnikova.vtfs.server", "WARN");
+        settings.put("logging.level.org.springframework.web", "WARN");
+        settings.put("logging.level.org.springframework.boot.web.embedded.tomcat", "WARN");
+        settings.put("logging.level.org.hibernate.SQL", "WARN");
+        settings.put("logging.level.org.hibernate.type.descriptor.sql.BasicBinder", "WARN");
+        for (String property : properties) {
+            int separator = property.indexOf('=');
+            settings.put(property.substring(0, separator), property.substring(separator + 1));
+        }
+        
+        // Command line arguments outrank the application.properties of the server
+        String[] args = settings.entrySet().stream()
+                .map(setting -> "--" + setting.getKey() + "=" + setting.getValue())
+                .toArray(String[]::new);
+        return new EmbeddedFileSystem(new SpringApplicationBuilder(VtfsServerApplication.class).run(args));
+    }
+    
+    FileSystemOperations fileSystem() {
+        return fileSystem;
+    }
+    
+    <T> T bean(Class<T> type) {
+        return context.getBean(type);
+    }
+    
+    int serverPort() {
+        return context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+    }
+    
+    long createFile(long dirIno, String name) {
+        return fileSystem.create(TOKEN, dirIno, name, FILE_MODE);
+    }
+    
+    Long write(long fileIno, long offset, byte[] data) throws IOException {
+        return fileSystem.write(TOKEN, fileIno, offset, new ByteArrayInputStream(data), data.length);
+    }
+    
+    @Override
+    public void close() {
+        context.close();
+    }
+}
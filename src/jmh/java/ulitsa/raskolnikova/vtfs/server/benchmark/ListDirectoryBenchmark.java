@@ -0,0 +1,89 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ulitsa.raskolnikova.vtfs.server.dto.ListResponse;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to list a whole directory, in one unpaged call and in pages of the largest size the API serves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ListDirectoryBenchmark {
+    
+    private static final int PAGE_SIZE = 4096;
+    
+    @Param({"10", "1000", "100000"})
+    public int entries;
+    
+    private EmbeddedFileSystem fs;
+    private long dirIno;
+    
+    @Setup(Level.Trial)
+    public void start() {
+        fs = EmbeddedFileSystem.start();
+        dirIno = fs.fileSystem().mkdir(EmbeddedFileSystem.TOKEN, EmbeddedFileSystem.ROOT_INO, "list",
+                EmbeddedFileSystem.DIRECTORY_MODE);
+        for (int i = 0; i < entries; i++) {
+            fs.createFile(dirIno, "file-" + i);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() {
+        fs.close();
+    }
+    
+    @Benchmark
+    public int listUnpaged() {
+        return fs.fileSystem().list(EmbeddedFileSystem.TOKEN, dirIno, null, null, null).getEntries().size();
+    }
+    
+    @Benchmark
+    public int listPaged() {
+        int count = 0;
+        Long cookie = null;
+        while (true) {
+            List<ListResponse.Entry> page = fs.fileSystem()
+                    .list(EmbeddedFileSystem.TOKEN, dirIno, null, cookie, PAGE_SIZE).getEntries();
+            count += page.size();
+            if (page.size() < PAGE_SIZE) {
+                return count;
+            }
+            cookie = page.get(page.size() - 1).getCookie();
+        }
+    }
+    
+    @Benchmark
+    public int readdirPlusPaged() {
+        int count = 0;
+        Long cookie = null;
+        while (true) {
+            List<ListResponse.Entry> page = fs.fileSystem()
+                    .readdirPlus(EmbeddedFileSystem.TOKEN, dirIno, cookie, PAGE_SIZE).getEntries();
+            count += page.size();
+            if (page.size() < PAGE_SIZE) {
+                return count;
+            }
+            cookie = page.get(page.size() - 1).getCookie();
+        }
+    }
+}
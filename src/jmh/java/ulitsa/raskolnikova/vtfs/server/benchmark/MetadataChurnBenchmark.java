@@ -0,0 +1,87 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of creating and removing entries, one pair of operations per invocation, in a directory
+ * that keeps a fixed population so the entry indexes do not grow during the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class MetadataChurnBenchmark {
+    
+    private static final int POPULATION = 1000;
+    
+    private EmbeddedFileSystem fs;
+    private long dirIno;
+    
+    @Setup(Level.Trial)
+    public void start() {
+        fs = EmbeddedFileSystem.start();
+        dirIno = fs.fileSystem().mkdir(EmbeddedFileSystem.TOKEN, EmbeddedFileSystem.ROOT_INO, "churn",
+                EmbeddedFileSystem.DIRECTORY_MODE);
+        for (int i = 0; i < POPULATION; i++) {
+            fs.createFile(dirIno, "resident-" + i);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() {
+        fs.close();
+    }
+    
+    /**
+     * Entry names unique to the benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Names {
+        
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        
+        private final String prefix = "t" + THREADS.incrementAndGet() + "-";
+        private long next;
+        
+        String next() {
+            return prefix + next++;
+        }
+    }
+    
+    @Benchmark
+    public void createDelete(Names names) {
+        String name = names.next();
+        fs.createFile(dirIno, name);
+        fs.fileSystem().delete(EmbeddedFileSystem.TOKEN, dirIno, name);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public void createDeleteFourThreads(Names names) {
+        createDelete(names);
+    }
+    
+    @Benchmark
+    public void mkdirRmdir(Names names) {
+        String name = names.next();
+        fs.fileSystem().mkdir(EmbeddedFileSystem.TOKEN, dirIno, name, EmbeddedFileSystem.DIRECTORY_MODE);
+        fs.fileSystem().rmdir(EmbeddedFileSystem.TOKEN, dirIno, name);
+    }
+}
@@ -0,0 +1,192 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ulitsa.raskolnikova.vtfs.server.protocol.BinaryProtocolServer;
+import ulitsa.raskolnikova.vtfs.server.protocol.OperationCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time of small operations over loopback, through the HTTP API and through the binary
+ * protocol on a persistent connection, one request at a time and, for the binary protocol, with
+ * {@value #PIPELINE_DEPTH} requests pipelined.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ProtocolBenchmark {
+    
+    static final int PIPELINE_DEPTH = 16;
+    
+    private static final int READ_SIZE = 4096;
+    
+    private EmbeddedFileSystem fs;
+    private long fileIno;
+    
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        fs = EmbeddedFileSystem.start(
+                "spring.main.web-application-type=servlet",
+                "server.address=127.0.0.1",
+                "server.port=0",
+                "vtfs.protocol.enabled=true",
+                "vtfs.protocol.host=127.0.0.1",
+                "vtfs.protocol.port=0");
+        fileIno = fs.createFile(EmbeddedFileSystem.ROOT_INO, "protocol");
+        fs.write(fileIno, 0, new byte[64 * 1024]);
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() {
+        fs.close();
+    }
+    
+    @State(Scope.Thread)
+    public static class Http {
+        
+        private HttpClient client;
+        private HttpRequest size;
+        private HttpRequest read;
+        
+        @Setup(Level.Trial)
+        public void connect(ProtocolBenchmark benchmark) {
+            client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            String base = "http://127.0.0.1:" + benchmark.fs.serverPort() + "/api/";
+            String file = "?token=" + EmbeddedFileSystem.TOKEN + "&file_ino=" + benchmark.fileIno;
+            size = HttpRequest.newBuilder(URI.create(base + "size" + file)).build();
+            read = HttpRequest.newBuilder(URI.create(base + "read" + file + "&offset=0&len=" + READ_SIZE)).build();
+        }
+        
+        private byte[] send(HttpRequest request) throws IOException, InterruptedException {
+            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("HTTP status " + response.statusCode());
+            }
+            return response.body();
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Binary {
+        
+        private Socket socket;
+        private OutputStream out;
+        private DataInputStream in;
+        private long fileIno;
+        private long nextId;
+        
+        @Setup(Level.Trial)
+        public void connect(ProtocolBenchmark benchmark) throws IOException {
+            socket = new Socket("127.0.0.1", benchmark.fs.bean(BinaryProtocolServer.class).getLocalPort());
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            fileIno = benchmark.fileIno;
+            
+            byte[] token = EmbeddedFileSystem.TOKEN.getBytes(StandardCharsets.UTF_8);
+            send(OperationCodec.HELLO, args(Short.BYTES + token.length).putShort((short) token.length).put(token));
+            out.flush();
+            receive();
+        }
+        
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+        
+        private void sendSize() throws IOException {
+            send(OperationCodec.SIZE, args(Long.BYTES).putLong(fileIno));
+        }
+        
+        private void sendRead() throws IOException {
+            send(OperationCodec.READ, args(2 * Long.BYTES + Integer.BYTES).putLong(fileIno).putLong(0).putInt(READ_SIZE));
+        }
+        
+        private void send(int opcode, ByteBuffer args) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + Short.BYTES + args.capacity())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            frame.putInt(frame.capacity() - Integer.BYTES).putLong(nextId++).putShort((short) opcode).put(args.array());
+            out.write(frame.array());
+        }
+        
+        private byte[] receive() throws IOException {
+            byte[] frame = new byte[Integer.reverseBytes(in.readInt())];
+            in.readFully(frame);
+            long status = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN).getLong(Long.BYTES);
+            if (status != 0) {
+                throw new IllegalStateException("Binary protocol status " + status);
+            }
+            return frame;
+        }
+        
+        private static ByteBuffer args(int length) {
+            return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+    
+    @Benchmark
+    public byte[] httpSize(Http http) throws IOException, InterruptedException {
+        return http.send(http.size);
+    }
+    
+    @Benchmark
+    public byte[] httpRead(Http http) throws IOException, InterruptedException {
+        return http.send(http.read);
+    }
+    
+    @Benchmark
+    public byte[] binarySize(Binary binary) throws IOException {
+        binary.sendSize();
+        binary.out.flush();
+        return binary.receive();
+    }
+    
+    @Benchmark
+    public byte[] binaryRead(Binary binary) throws IOException {
+        binary.sendRead();
+        binary.out.flush();
+        return binary.receive();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE_DEPTH)
+    public byte[] binarySizePipelined(Binary binary) throws IOException {
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            binary.sendSize();
+        }
+        binary.out.flush();
+        byte[] last = null;
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            last = binary.receive();
+        }
+        return last;
+    }
+}
@@ -0,0 +1,75 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ulitsa.raskolnikova.vtfs.server.service.ReadCursor;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The loop of {@code read} that turns stored blocks into the requested byte range, without storage or
+ * caches: blocks are emitted from memory into a {@link ReadCursor}, which slices them and fills holes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadAssemblyBenchmark {
+    
+    private static final int BLOCK_SIZE = 4096;
+    
+    @Param({"4096", "65536", "1048576"})
+    public int size;
+    
+    @Param({"true", "false"})
+    public boolean aligned;
+    
+    /**
+     * Whether only every other block is stored, the rest being holes.
+     */
+    @Param({"false", "true"})
+    public boolean sparse;
+    
+    private byte[][] blocks;
+    private long offset;
+    
+    @Setup(Level.Trial)
+    public void prepare() {
+        offset = aligned ? 0 : WriteBenchmark.UNALIGNED_SHIFT;
+        int blockCount = (int) ((offset + size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        blocks = new byte[blockCount][];
+        Random random = new Random(size);
+        for (int i = 0; i < blockCount; i++) {
+            if (!sparse || i % 2 == 0) {
+                blocks[i] = new byte[BLOCK_SIZE];
+                random.nextBytes(blocks[i]);
+            }
+        }
+    }
+    
+    @Benchmark
+    public void assemble(Blackhole blackhole) throws IOException {
+        ReadCursor cursor = new ReadCursor(new BlackholeSink(blackhole), offset, offset + size);
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] != null) {
+                cursor.emit((long) i * BLOCK_SIZE, blocks[i], BLOCK_SIZE);
+            }
+        }
+        cursor.finish();
+    }
+}
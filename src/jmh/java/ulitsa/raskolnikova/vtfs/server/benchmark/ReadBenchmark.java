@@ -0,0 +1,95 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@code read} by read size and alignment, over a file that is either fully written or
+ * mostly holes. Reads cycle through a 32 MiB span, which the default block cache holds entirely; a cache
+ * size of 0 sends every block to the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ReadBenchmark {
+    
+    private static final long SPAN = 32L * 1024 * 1024;
+    private static final int SPARSE_STRIDE = 64 * 1024;
+    
+    public enum Layout {
+        /** Every block of the file is stored. */
+        DENSE,
+        /** One block in every 64 KiB is stored, the rest are holes. */
+        SPARSE
+    }
+    
+    @Param({"4096", "65536", "1048576"})
+    public int size;
+    
+    @Param({"true", "false"})
+    public boolean aligned;
+    
+    @Param({"DENSE", "SPARSE"})
+    public Layout layout;
+    
+    @Param({"67108864", "0"})
+    public long blockCacheBytes;
+    
+    private EmbeddedFileSystem fs;
+    private long fileIno;
+    private long reads;
+    
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        fs = EmbeddedFileSystem.start("vtfs.cache.block-cache-bytes=" + blockCacheBytes);
+        fileIno = fs.createFile(EmbeddedFileSystem.ROOT_INO, "read");
+        Random random = new Random(size);
+        if (layout == Layout.DENSE) {
+            byte[] chunk = new byte[1024 * 1024];
+            for (long offset = 0; offset < SPAN; offset += chunk.length) {
+                random.nextBytes(chunk);
+                fs.write(fileIno, offset, chunk);
+            }
+        } else {
+            byte[] block = new byte[4096];
+            for (long offset = 0; offset < SPAN; offset += SPARSE_STRIDE) {
+                random.nextBytes(block);
+                fs.write(fileIno, offset, block);
+            }
+        }
+        fs.fileSystem().truncate(EmbeddedFileSystem.TOKEN, fileIno, SPAN + WriteBenchmark.UNALIGNED_SHIFT);
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() {
+        fs.close();
+    }
+    
+    @Benchmark
+    public void read(Blackhole blackhole) throws IOException {
+        long offset = reads++ * size % SPAN;
+        if (!aligned) {
+            offset += WriteBenchmark.UNALIGNED_SHIFT;
+        }
+        fs.fileSystem().read(EmbeddedFileSystem.TOKEN, fileIno, offset, size, new BlackholeSink(blackhole));
+    }
+}
@@ -0,0 +1,173 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletResponse;
+import ulitsa.raskolnikova.vtfs.server.controller.FsController;
+import ulitsa.raskolnikova.vtfs.server.dto.ListResponse;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemOperations;
+import ulitsa.raskolnikova.vtfs.server.service.ReadSink;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link FsController} frames responses, with the file system replaced by fixed answers and the
+ * servlet response only counting the body bytes: the status header and text or binary encoding of small
+ * results, listings and read data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseFramingBenchmark {
+    
+    private static final int BLOCK_SIZE = 4096;
+    
+    @State(Scope.Benchmark)
+    public static class Scalar {
+        
+        private final FsController controller = controller(new byte[BLOCK_SIZE], new ListResponse(List.of(), false));
+    }
+    
+    @State(Scope.Benchmark)
+    public static class Listing {
+        
+        @Param({"10", "1000"})
+        public int entries;
+        
+        private FsController controller;
+        
+        @Setup(Level.Trial)
+        public void prepare() {
+            List<ListResponse.Entry> page = new ArrayList<>(entries);
+            for (int i = 0; i < entries; i++) {
+                page.add(new ListResponse.Entry("file-" + i, 2000L + i, EmbeddedFileSystem.FILE_MODE, (long) i + 1,
+                        4096L, 1));
+            }
+            ListResponse listing = new ListResponse(page, false);
+            controller = controller(new byte[0], listing);
+        }
+    }
+    
+    @State(Scope.Benchmark)
+    public static class Data {
+        
+        @Param({"4096", "1048576"})
+        public int size;
+        
+        private FsController controller;
+        
+        @Setup(Level.Trial)
+        public void prepare() {
+            controller = controller(new byte[size], new ListResponse(List.of(), false));
+        }
+    }
+    
+    @Benchmark
+    public CountingResponse size(Scalar scalar) throws IOException {
+        CountingResponse response = new CountingResponse();
+        scalar.controller.size(EmbeddedFileSystem.TOKEN, 2000L, response);
+        return response;
+    }
+    
+    @Benchmark
+    public CountingResponse read(Data data) throws IOException {
+        CountingResponse response = new CountingResponse();
+        data.controller.read(EmbeddedFileSystem.TOKEN, 2000L, 0L, data.size, null, response);
+        return response;
+    }
+    
+    @Benchmark
+    public CountingResponse list(Listing listing) throws IOException {
+        CountingResponse response = new CountingResponse();
+        listing.controller.list(EmbeddedFileSystem.TOKEN, EmbeddedFileSystem.ROOT_INO, null, 0L, 4096, response);
+        return response;
+    }
+    
+    @Benchmark
+    public CountingResponse readdirPlus(Listing listing) throws IOException {
+        CountingResponse response = new CountingResponse();
+        listing.controller.readdirPlus(EmbeddedFileSystem.TOKEN, EmbeddedFileSystem.ROOT_INO, 0L, 4096, response);
+        return response;
+    }
+    
+    /**
+     * A servlet response that only counts the bytes of its body. The output stream of the plain mock
+     * copies byte by byte and would dominate the measurement.
+     */
+    public static final class CountingResponse extends MockHttpServletResponse {
+        
+        private long bodyBytes;
+        
+        private final ServletOutputStream body = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+            
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+            
+            @Override
+            public void write(int b) {
+                bodyBytes++;
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) {
+                bodyBytes += len;
+            }
+        };
+        
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return body;
+        }
+        
+        public long getBodyBytes() {
+            return bodyBytes;
+        }
+    }
+    
+    /**
+     * A controller over a file system that answers size, listings and reads from {@code data} and
+     * {@code listing}, handing reads out block by block like the real one.
+     */
+    private static FsController controller(byte[] data, ListResponse listing) {
+        FileSystemOperations fileSystem = (FileSystemOperations) Proxy.newProxyInstance(
+                FileSystemOperations.class.getClassLoader(),
+                new Class<?>[]{FileSystemOperations.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "size" -> (long) data.length;
+                    case "list", "readdirPlus" -> listing;
+                    case "read" -> {
+                        ReadSink sink = (ReadSink) args[4];
+                        sink.begin(0, data.length, data.length);
+                        for (int off = 0; off < data.length; off += BLOCK_SIZE) {
+                            sink.write(data, off, Math.min(BLOCK_SIZE, data.length - off));
+                        }
+                        yield null;
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+        return new FsController(fileSystem, null);
+    }
+}
@@ -0,0 +1,108 @@
+package ulitsa.raskolnikova.vtfs.server.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@code write} by write size, by where writes land relative to the existing data, and by
+ * whether they start on a block boundary. Unaligned writes merge their first and last block with what is
+ * stored.
+ * <p>
+ * No before/after figures are published for the batched block inserts and range deletes. This benchmark runs
+ * on embedded H2, where a statement costs no network round trip, so it cannot show what batching saves
+ * against PostgreSQL. A comparison needs the APPEND and OVERWRITE cases for the three sizes run against a
+ * PostgreSQL server, once on the commit before the batching and once after it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class WriteBenchmark {
+    
+    static final int UNALIGNED_SHIFT = 1000;
+    
+    private static final long OVERWRITE_SPAN = 16L * 1024 * 1024;
+    private static final long SPARSE_STRIDE = 8L * 1024 * 1024;
+    private static final long RESET_BYTES = 64L * 1024 * 1024;
+    
+    public enum Placement {
+        /** Every write extends the file. */
+        APPEND,
+        /** Writes cycle over a file that already holds data, replacing stored blocks. */
+        OVERWRITE,
+        /** Writes land far apart past the end, leaving holes between them. */
+        SPARSE
+    }
+    
+    @Param({"4096", "65536", "1048576"})
+    public int size;
+    
+    @Param({"APPEND", "OVERWRITE", "SPARSE"})
+    public Placement placement;
+    
+    @Param({"true", "false"})
+    public boolean aligned;
+    
+    private EmbeddedFileSystem fs;
+    private long fileIno;
+    private byte[] data;
+    private long writes;
+    
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        fs = EmbeddedFileSystem.start();
+        fileIno = fs.createFile(EmbeddedFileSystem.ROOT_INO, "write");
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        if (placement == Placement.OVERWRITE) {
+            byte[] chunk = new byte[1024 * 1024];
+            for (long offset = 0; offset < OVERWRITE_SPAN + UNALIGNED_SHIFT; offset += chunk.length) {
+                fs.write(fileIno, offset, chunk);
+            }
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() {
+        fs.close();
+    }
+    
+    @Benchmark
+    public Long write() throws IOException {
+        long offset = switch (placement) {
+            case APPEND -> writes * size;
+            case OVERWRITE -> writes * size % OVERWRITE_SPAN;
+            case SPARSE -> writes * SPARSE_STRIDE;
+        };
+        if (!aligned) {
+            offset += UNALIGNED_SHIFT;
+        }
+        Long written = fs.write(fileIno, offset, data);
+        
+        // Growing files are emptied now and then so that the database stays small; the rare truncate
+        // is part of the measured cost
+        writes++;
+        if (placement != Placement.OVERWRITE && writes * size >= RESET_BYTES) {
+            fs.fileSystem().truncate(EmbeddedFileSystem.TOKEN, fileIno, 0L);
+            writes = 0;
+        }
+        return written;
+    }
+}
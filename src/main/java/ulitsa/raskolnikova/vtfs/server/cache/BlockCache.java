@@ -0,0 +1,324 @@
+package ulitsa.raskolnikova.vtfs.server.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off-heap cache of file blocks keyed by (ino, block_no).
+ * <p>
+ * Block contents live in direct {@link ByteBuffer} arenas carved into block-sized slots, so cached data adds
+ * no GC pressure; only the small key index is on heap. Slots are recycled with the CLOCK algorithm once
+ * {@code vtfs.cache.block-cache-bytes} is used up. Holes are not cached.
+ * <p>
+ * Every load records the inode's generation before touching storage and is dropped if an invalidation
+ * bumped it in the meantime, so a read or prefetch racing with a write can never re-insert stale data.
+ * <p>
+ * Reads that continue where the previous read of the same inode stopped grow a read-ahead window
+ * (doubling up to {@code vtfs.cache.read-ahead-blocks}); the blocks past the read are then loaded
+ * asynchronously.
+ */
+@Component
+@Profile("!memory")
+@Slf4j
+public class BlockCache implements StatsProvider {
+    
+    private static final int MAX_ARENA_BYTES = 1 << 30;
+    private static final int GENERATION_STRIPES = 1024;
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE = 64;
+    private static final long READ_AHEAD_TRACKED_INODES = 10_000;
+    
+    private final int blockSize;
+    private final int slotCount;
+    private final int slotsPerArena;
+    private final ByteBuffer[] arenas;
+    private final Key[] owners;
+    private final int[] lengths;
+    private final boolean[] referenced;
+    private final Map<Key, Integer> index = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private int usedSlots;
+    private int hand;
+    
+    private final int readAheadBlocks;
+    private final Cache<Long, ReadAheadState> readAheadStates;
+    private final ThreadPoolExecutor prefetchExecutor;
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder prefetchedBlocks = new LongAdder();
+    
+    public BlockCache(VtfsProperties properties) {
+        this.blockSize = properties.getStorage().getBlockSize();
+        this.slotCount = (int) Math.min(Integer.MAX_VALUE, properties.getCache().getBlockCacheBytes() / blockSize);
+        this.slotsPerArena = Math.max(1, MAX_ARENA_BYTES / blockSize);
+        
+        int arenaCount = (slotCount + slotsPerArena - 1) / slotsPerArena;
+        this.arenas = new ByteBuffer[arenaCount];
+        for (int i = 0; i < arenaCount; i++) {
+            int slots = Math.min(slotsPerArena, slotCount - i * slotsPerArena);
+            arenas[i] = ByteBuffer.allocateDirect(slots * blockSize);
+        }
+        this.owners = new Key[slotCount];
+        this.lengths = new int[slotCount];
+        this.referenced = new boolean[slotCount];
+        
+        this.readAheadBlocks = properties.getCache().getReadAheadBlocks();
+        this.readAheadStates = Caffeine.newBuilder().maximumSize(READ_AHEAD_TRACKED_INODES).build();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.prefetchExecutor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "block-prefetch-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+        
+        log.info("Block cache: {} slots of {} bytes, read-ahead up to {} blocks", slotCount, blockSize, readAheadBlocks);
+    }
+    
+    /**
+     * Copies the cached block into {@code dest} and returns its length, or -1 if it is not cached.
+     */
+    public int get(long ino, long blockNo, byte[] dest) {
+        if (slotCount == 0) {
+            misses.increment();
+            return -1;
+        }
+        lock.readLock().lock();
+        try {
+            Integer slot = index.get(new Key(ino, blockNo));
+            if (slot == null) {
+                misses.increment();
+                return -1;
+            }
+            int length = lengths[slot];
+            arena(slot).get(slotOffset(slot), dest, 0, length);
+            referenced[slot] = true;
+            hits.increment();
+            return length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public boolean contains(long ino, long blockNo) {
+        if (slotCount == 0) {
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            return index.containsKey(new Key(ino, blockNo));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the generation to pass to {@link #put} for data about to be loaded from storage.
+     */
+    public long generation(long ino) {
+        return generations.get(stripe(ino));
+    }
+    
+    public void put(long ino, long blockNo, byte[] data, int length, long generation) {
+        if (slotCount == 0 || length > blockSize) {
+            return;
+        }
+        Key key = new Key(ino, blockNo);
+        lock.writeLock().lock();
+        try {
+            if (generations.get(stripe(ino)) != generation) {
+                return;
+            }
+            Integer slot = index.get(key);
+            if (slot == null) {
+                slot = allocateSlot();
+                index.put(key, slot);
+                owners[slot] = key;
+            }
+            arena(slot).put(slotOffset(slot), data, 0, length);
+            lengths[slot] = length;
+            referenced[slot] = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Drops blocks {@code [firstBlock, lastBlock]} of an inode, now and again when the current
+     * transaction completes.
+     */
+    public void invalidate(long ino, long firstBlock, long lastBlock) {
+        if (slotCount == 0 || lastBlock < firstBlock) {
+            return;
+        }
+        doInvalidate(ino, firstBlock, lastBlock);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    doInvalidate(ino, firstBlock, lastBlock);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Records a read of {@code [firstBlock, lastBlock]} and, if it continues the previous read of the inode,
+     * prefetches the next blocks (never past {@code lastFileBlock}) through {@code loader}.
+     */
+    public void readAhead(long ino, long firstBlock, long lastBlock, long lastFileBlock, BlockLoader loader) {
+        if (slotCount == 0 || readAheadBlocks == 0) {
+            return;
+        }
+        ReadAheadState state = readAheadStates.get(ino, key -> new ReadAheadState());
+        long from;
+        long to;
+        synchronized (state) {
+            boolean sequential = firstBlock == state.nextBlock || firstBlock + 1 == state.nextBlock;
+            state.window = sequential ? Math.min(Math.max(state.window * 2, 1), readAheadBlocks) : 0;
+            state.nextBlock = lastBlock + 1;
+            if (!sequential) {
+                state.prefetchedUntil = lastBlock;
+                return;
+            }
+            from = Math.max(lastBlock, state.prefetchedUntil) + 1;
+            to = Math.min(lastBlock + state.window, lastFileBlock);
+            if (from > to) {
+                return;
+            }
+            state.prefetchedUntil = to;
+        }
+        
+        long generation = generation(ino);
+        prefetchExecutor.execute(() -> {
+            try {
+                loader.load(ino, from, to, (blockNo, data, length) -> {
+                    put(ino, blockNo, data, length, generation);
+                    prefetchedBlocks.increment();
+                });
+            } catch (RuntimeException e) {
+                log.debug("Read-ahead of ino={} blocks {}..{} failed: {}", ino, from, to, e.getMessage());
+            }
+        });
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            result.put("block_cache.size", index.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+        result.put("block_cache.capacity", slotCount);
+        result.put("block_cache.hits", hits.sum());
+        result.put("block_cache.misses", misses.sum());
+        result.put("block_cache.evictions", evictions.sum());
+        result.put("block_cache.prefetched_blocks", prefetchedBlocks.sum());
+        return result;
+    }
+    
+    private void doInvalidate(long ino, long firstBlock, long lastBlock) {
+        generations.incrementAndGet(stripe(ino));
+        lock.writeLock().lock();
+        try {
+            if (lastBlock - firstBlock < index.size()) {
+                for (long blockNo = firstBlock; blockNo <= lastBlock; blockNo++) {
+                    release(index.remove(new Key(ino, blockNo)));
+                }
+            } else {
+                index.entrySet().removeIf(entry -> {
+                    Key key = entry.getKey();
+                    if (key.ino() != ino || key.blockNo() < firstBlock || key.blockNo() > lastBlock) {
+                        return false;
+                    }
+                    release(entry.getValue());
+                    return true;
+                });
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private void release(Integer slot) {
+        if (slot != null) {
+            owners[slot] = null;
+            referenced[slot] = false;
+        }
+    }
+    
+    private int allocateSlot() {
+        if (usedSlots < slotCount) {
+            return usedSlots++;
+        }
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % slotCount;
+            if (owners[slot] == null) {
+                return slot;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            index.remove(owners[slot]);
+            owners[slot] = null;
+            evictions.increment();
+            return slot;
+        }
+    }
+    
+    private ByteBuffer arena(int slot) {
+        return arenas[slot / slotsPerArena];
+    }
+    
+    private int slotOffset(int slot) {
+        return (slot % slotsPerArena) * blockSize;
+    }
+    
+    private static int stripe(long ino) {
+        return (int) ((ino ^ (ino >>> 32)) & (GENERATION_STRIPES - 1));
+    }
+    
+    private record Key(long ino, long blockNo) {
+    }
+    
+    private static final class ReadAheadState {
+        
+        private long nextBlock = -1;
+        private long prefetchedUntil = -1;
+        private int window;
+    }
+}
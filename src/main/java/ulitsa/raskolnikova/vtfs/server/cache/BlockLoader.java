@@ -0,0 +1,17 @@
+package ulitsa.raskolnikova.vtfs.server.cache;
+
+/**
+ * Loads the stored blocks of an inode in {@code [firstBlock, lastBlock]} for read-ahead.
+ * Holes are simply not reported. Called from the prefetch threads, outside any request transaction.
+ */
+@FunctionalInterface
+public interface BlockLoader {
+    
+    void load(long ino, long firstBlock, long lastBlock, BlockConsumer consumer);
+    
+    @FunctionalInterface
+    interface BlockConsumer {
+        
+        void accept(long blockNo, byte[] data, int length);
+    }
+}
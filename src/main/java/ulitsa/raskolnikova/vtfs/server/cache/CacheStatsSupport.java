@@ -0,0 +1,24 @@
+package ulitsa.raskolnikova.vtfs.server.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class CacheStatsSupport {
+    
+    private CacheStatsSupport() {
+    }
+    
+    static Map<String, Number> describe(String prefix, Cache<?, ?> cache) {
+        CacheStats stats = cache.stats();
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put(prefix + ".size", cache.estimatedSize());
+        result.put(prefix + ".hits", stats.hitCount());
+        result.put(prefix + ".misses", stats.missCount());
+        result.put(prefix + ".hit_rate", stats.hitRate());
+        result.put(prefix + ".evictions", stats.evictionCount());
+        return result;
+    }
+}
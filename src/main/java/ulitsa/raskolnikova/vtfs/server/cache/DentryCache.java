@@ -0,0 +1,61 @@
+package ulitsa.raskolnikova.vtfs.server.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Caches (parent_ino, name) to ino resolutions, including "not found" results.
+ * Entries are invalidated both immediately and after the mutating transaction completes, so a lookup
+ * racing with an uncommitted create or delete cannot leave a stale entry behind.
+ */
+@Component
+@Profile("!memory")
+public class DentryCache implements StatsProvider {
+    
+    private static final long NEGATIVE = -1L;
+    
+    private final Cache<Key, Long> cache;
+    
+    public DentryCache(VtfsProperties properties) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(properties.getCache().getDentryMaxEntries())
+                .recordStats()
+                .build();
+    }
+    
+    public Optional<Long> lookup(Long parentIno, String name, Supplier<Optional<Long>> loader) {
+        Long ino = cache.get(new Key(parentIno, name), key -> loader.get().orElse(NEGATIVE));
+        return ino == NEGATIVE ? Optional.empty() : Optional.of(ino);
+    }
+    
+    public void invalidate(Long parentIno, String name) {
+        Key key = new Key(parentIno, name);
+        cache.invalidate(key);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    cache.invalidate(key);
+                }
+            });
+        }
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        return CacheStatsSupport.describe("dentry_cache", cache);
+    }
+    
+    private record Key(Long parentIno, String name) {
+    }
+}
@@ -0,0 +1,79 @@
+package ulitsa.raskolnikova.vtfs.server.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes;
+import ulitsa.raskolnikova.vtfs.server.model.Inode;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Size-bounded (W-TinyLFU) cache of inode attributes in front of {@code InodeRepository}.
+ * <p>
+ * Mutations are written through: {@link #update} drops the entry at once and puts the final attributes
+ * in {@code beforeCommit}, while the writer still holds the row lock, so concurrent writers of one inode
+ * publish in commit order. A rollback drops the entry again.
+ */
+@Component
+@Profile("!memory")
+public class InodeCache implements StatsProvider {
+    
+    private final Cache<Long, InodeAttributes> cache;
+    
+    public InodeCache(VtfsProperties properties) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(properties.getCache().getInodeMaxEntries())
+                .recordStats()
+                .build();
+    }
+    
+    public Optional<InodeAttributes> get(Long ino, Function<Long, Optional<InodeAttributes>> loader) {
+        return Optional.ofNullable(cache.get(ino, key -> loader.apply(key).orElse(null)));
+    }
+    
+    public void update(Inode inode) {
+        Long ino = inode.getIno();
+        cache.invalidate(ino);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                cache.put(ino, InodeAttributes.of(inode));
+            }
+            
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    cache.invalidate(ino);
+                }
+            }
+        });
+    }
+    
+    public void evict(Long ino) {
+        cache.invalidate(ino);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    cache.invalidate(ino);
+                }
+            });
+        }
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        return CacheStatsSupport.describe("inode_cache", cache);
+    }
+}
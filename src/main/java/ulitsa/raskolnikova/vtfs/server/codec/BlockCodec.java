@@ -0,0 +1,21 @@
+package ulitsa.raskolnikova.vtfs.server.codec;
+
+/**
+ * Compression scheme for stored block payloads. The id is persisted in the codec column of every
+ * block, so ids of registered codecs must never change.
+ */
+public interface BlockCodec {
+    
+    int RAW = 0;
+    
+    int id();
+    
+    String name();
+    
+    /**
+     * Returns the encoded block, or {@code null} if it would not be at most {@code maxLength} bytes.
+     */
+    byte[] encode(byte[] raw, int maxLength);
+    
+    byte[] decode(byte[] encoded, int maxRawLength);
+}
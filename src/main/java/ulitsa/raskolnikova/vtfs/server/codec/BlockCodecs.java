@@ -0,0 +1,93 @@
+package ulitsa.raskolnikova.vtfs.server.codec;
+
+import org.springframework.stereotype.Component;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of {@link BlockCodec}s. Compresses blocks on write with the configured codec, keeping them raw
+ * when they do not shrink enough, and decodes stored blocks of any registered codec on read.
+ */
+@Component
+public class BlockCodecs implements StatsProvider {
+    
+    private final Map<Integer, BlockCodec> byId = new HashMap<>();
+    private final BlockCodec writeCodec;
+    private final VtfsProperties properties;
+    
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder incompressibleBlocks = new LongAdder();
+    private final LongAdder decodedBlocks = new LongAdder();
+    
+    public BlockCodecs(List<BlockCodec> codecs, VtfsProperties properties) {
+        this.properties = properties;
+        String configured = properties.getCompression().getCodec();
+        BlockCodec selected = null;
+        for (BlockCodec codec : codecs) {
+            if (codec.id() == BlockCodec.RAW || byId.putIfAbsent(codec.id(), codec) != null) {
+                throw new IllegalStateException("Duplicate or reserved block codec id " + codec.id());
+            }
+            if (codec.name().equals(configured)) {
+                selected = codec;
+            }
+        }
+        if (selected == null && !"none".equals(configured)) {
+            throw new IllegalStateException("Unknown block codec: " + configured);
+        }
+        this.writeCodec = selected;
+    }
+    
+    /**
+     * Encodes a block that is about to be stored, leaving it raw if compression is off or does not save
+     * at least the configured share of its size.
+     */
+    public Encoded encode(byte[] raw) {
+        rawBytes.add(raw.length);
+        if (writeCodec != null) {
+            int maxLength = raw.length - raw.length * properties.getCompression().getMinSavingPercent() / 100 - 1;
+            byte[] encoded = maxLength > 0 ? writeCodec.encode(raw, maxLength) : null;
+            if (encoded != null) {
+                storedBytes.add(encoded.length);
+                return new Encoded((short) writeCodec.id(), encoded);
+            }
+            incompressibleBlocks.increment();
+        }
+        storedBytes.add(raw.length);
+        return new Encoded((short) BlockCodec.RAW, raw);
+    }
+    
+    /**
+     * Returns the uncompressed payload of a block stored with {@code codec}.
+     */
+    public byte[] decode(int codec, byte[] data) {
+        if (codec == BlockCodec.RAW) {
+            return data;
+        }
+        BlockCodec decoder = byId.get(codec);
+        if (decoder == null) {
+            throw new IllegalStateException("Block uses unknown codec " + codec);
+        }
+        decodedBlocks.increment();
+        return decoder.decode(data, properties.getStorage().getBlockSize());
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("compression.raw_bytes", rawBytes.sum());
+        result.put("compression.stored_bytes", storedBytes.sum());
+        result.put("compression.incompressible_blocks", incompressibleBlocks.sum());
+        result.put("compression.decoded_blocks", decodedBlocks.sum());
+        return result;
+    }
+    
+    public record Encoded(short codec, byte[] data) {
+    }
+}
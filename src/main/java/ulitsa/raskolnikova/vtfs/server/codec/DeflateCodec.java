@@ -0,0 +1,76 @@
+package ulitsa.raskolnikova.vtfs.server.codec;
+
+import org.springframework.stereotype.Component;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+@Component
+public class DeflateCodec implements BlockCodec {
+    
+    public static final int ID = 1;
+    
+    // Deflater and Inflater hold native buffers; reusing one per thread avoids allocating them per block.
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    
+    public DeflateCodec(VtfsProperties properties) {
+        int level = properties.getCompression().getLevel();
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+    
+    @Override
+    public int id() {
+        return ID;
+    }
+    
+    @Override
+    public String name() {
+        return "deflate";
+    }
+    
+    @Override
+    public byte[] encode(byte[] raw, int maxLength) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        // One spare byte tells "exactly maxLength" apart from "did not fit".
+        byte[] out = new byte[maxLength + 1];
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        if (!deflater.finished() || length > maxLength) {
+            return null;
+        }
+        return Arrays.copyOf(out, length);
+    }
+    
+    @Override
+    public byte[] decode(byte[] encoded, int maxRawLength) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(encoded);
+        byte[] out = new byte[maxRawLength];
+        int length = 0;
+        try {
+            while (!inflater.finished() && length < out.length) {
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt deflate block", e);
+        }
+        if (!inflater.finished()) {
+            throw new IllegalStateException("Deflate block exceeds " + maxRawLength + " bytes");
+        }
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+}
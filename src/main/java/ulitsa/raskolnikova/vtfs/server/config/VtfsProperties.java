@@ -0,0 +1,296 @@
+package ulitsa.raskolnikova.vtfs.server.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Data
+@ConfigurationProperties(prefix = "vtfs")
+public class VtfsProperties {
+    
+    private final Storage storage = new Storage();
+    
+    private final Cache cache = new Cache();
+    
+    private final WriteBack writeBack = new WriteBack();
+    
+    private final Dedup dedup = new Dedup();
+    
+    private final Compression compression = new Compression();
+    
+    private final Memory memory = new Memory();
+    
+    private final Locking locking = new Locking();
+    
+    private final FileCompaction fileCompaction = new FileCompaction();
+    
+    private final Protocol protocol = new Protocol();
+    
+    private final Batch batch = new Batch();
+    
+    @Data
+    public static class Storage {
+        
+        /**
+         * Size of one file_data block in bytes. Block numbers are derived from it, so it must not
+         * change once data has been written (the 007 migration lays existing data out in 4096-byte blocks).
+         */
+        private int blockSize = 4096;
+        
+        /**
+         * Number of blocks a write buffers before flushing them as one JDBC batch.
+         */
+        private int writeBatchSize = 64;
+        
+        /**
+         * Number of entries a recursive delete removes per transaction.
+         */
+        private int deleteBatchSize = 1000;
+        
+        /**
+         * Files no larger than this many bytes keep their contents in the inode row instead of in blocks, and
+         * move back into it when truncated below it; 0 stops storing new contents inline. Values above the
+         * block size act as the block size.
+         */
+        private int inlineThreshold = 2048;
+        
+        /**
+         * Where block payloads live: "jpa" (the file_data table) or "segment" (local segment files,
+         * with only their locations in the database).
+         */
+        private String backend = "jpa";
+        
+        private final Segment segment = new Segment();
+    }
+    
+    @Data
+    public static class Segment {
+        
+        /**
+         * Directory holding the append-only segment files.
+         */
+        private String directory = "./data/segments";
+        
+        /**
+         * Size at which the active segment is sealed and a new one started; at most 1 GiB.
+         */
+        private long segmentSize = 256L * 1024 * 1024;
+        
+        /**
+         * Delay between compaction runs.
+         */
+        private long compactionIntervalMs = 60000;
+        
+        /**
+         * Sealed segments with less live data than this share of their size are compacted.
+         */
+        private int compactionMinLivePercent = 50;
+        
+        /**
+         * Number of blocks relocated per compaction transaction.
+         */
+        private int compactionBatchSize = 256;
+    }
+    
+    @Data
+    public static class Cache {
+        
+        /**
+         * Maximum number of (parent_ino, name) resolutions kept by the dentry cache, negative ones included.
+         */
+        private long dentryMaxEntries = 100_000;
+        
+        /**
+         * Maximum number of inodes whose attributes (mode, size, nlink) are kept in memory.
+         */
+        private long inodeMaxEntries = 100_000;
+        
+        /**
+         * Off-heap memory for cached file blocks, in bytes; 0 disables the block cache.
+         * Counts against -XX:MaxDirectMemorySize.
+         */
+        private long blockCacheBytes = 64L * 1024 * 1024;
+        
+        /**
+         * Upper bound of the read-ahead window, in blocks, for sequentially read files; 0 disables read-ahead.
+         */
+        private int readAheadBlocks = 32;
+    }
+    
+    @Data
+    public static class WriteBack {
+        
+        /**
+         * Buffer writes in memory and persist them later instead of inside each write request.
+         * Buffered data is lost if the process dies before it is flushed.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * Buffered bytes of one inode that trigger an immediate flush; larger single writes bypass the buffer.
+         */
+        private int maxInodeBytes = 1024 * 1024;
+        
+        /**
+         * Buffered bytes across all inodes that trigger a flush of the inode being written.
+         */
+        private long maxTotalBytes = 64L * 1024 * 1024;
+        
+        /**
+         * Maximum age of buffered data before the background flush persists it.
+         */
+        private long flushIntervalMs = 1000;
+    }
+    
+    @Data
+    public static class Dedup {
+        
+        /**
+         * Store written blocks once per distinct content in chunk_contents, keyed by SHA-256.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * Delay between garbage collection runs that remove unreferenced chunk contents.
+         */
+        private long gcIntervalMs = 60000;
+        
+        /**
+         * Number of unreferenced chunk contents removed per garbage collection transaction.
+         */
+        private int gcBatchSize = 1000;
+    }
+    
+    @Data
+    public static class Compression {
+        
+        /**
+         * Codec for newly written blocks: "none" or the name of a registered codec ("deflate").
+         * Blocks already stored keep their codec and stay readable when this changes.
+         */
+        private String codec = "none";
+        
+        /**
+         * Compression level passed to the deflate codec (1 is fastest, 9 smallest).
+         */
+        private int level = 1;
+        
+        /**
+         * Minimum saving, in percent of the block size, for a block to be stored compressed.
+         */
+        private int minSavingPercent = 10;
+    }
+    
+    @Data
+    public static class Memory {
+        
+        /**
+         * Directory holding the write-ahead log and snapshot of the in-memory engine ("memory" profile).
+         */
+        private String directory = "./data/memory";
+        
+        /**
+         * Force the write-ahead log to disk after every change instead of every sync interval.
+         */
+        private boolean syncEveryWrite = false;
+        
+        /**
+         * Interval at which the write-ahead log is forced to disk when not syncing every write.
+         */
+        private long syncIntervalMs = 200;
+        
+        /**
+         * Interval between snapshots; each one lets the log it covers be dropped.
+         */
+        private long snapshotIntervalMs = 300000;
+    }
+    
+    @Data
+    public static class Locking {
+        
+        /**
+         * Where byte-range locks live: "local" (this process) or "database" (PostgreSQL advisory locks,
+         * for several nodes sharing one database).
+         */
+        private String mode = "local";
+        
+        /**
+         * Number of blocks covered by one advisory lock in "database" mode.
+         */
+        private int stripeBlocks = 256;
+        
+        /**
+         * How long a writer waits for an overlapping range in "local" mode before failing with EAGAIN.
+         */
+        private long waitTimeoutMs = 30000;
+    }
+    
+    @Data
+    public static class FileCompaction {
+        
+        /**
+         * Run the background pass that drops zero blocks, trailing zeros and blocks past EOF from stored files.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * Delay between compaction runs.
+         */
+        private long intervalMs = 60000;
+        
+        /**
+         * Stored blocks one run examines at most; the next run resumes where it stopped.
+         */
+        private int maxBlocksPerRun = 16384;
+        
+        /**
+         * Blocks rewritten per transaction, and locked against writers while it runs.
+         */
+        private int batchBlocks = 256;
+    }
+    
+    @Data
+    public static class Protocol {
+        
+        /**
+         * Serve the binary TCP protocol next to the HTTP API.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * Address and port the binary protocol listens on; port 0 picks a free one.
+         */
+        private String host = "0.0.0.0";
+        
+        private int port = 9090;
+        
+        /**
+         * Threads running binary protocol requests.
+         */
+        private int workerThreads = 16;
+        
+        /**
+         * Largest request or response frame; larger requests close the connection and reads are cut to fit.
+         */
+        private int maxFrameBytes = 16 * 1024 * 1024;
+        
+        /**
+         * Requests one connection may have running or waiting for their response to be written before the
+         * server stops reading from it.
+         */
+        private int maxInFlight = 64;
+    }
+    
+    @Data
+    public static class Batch {
+        
+        /**
+         * Operations one batch request may carry.
+         */
+        private int maxOperations = 1024;
+        
+        /**
+         * Largest batch request body.
+         */
+        private int maxRequestBytes = 64 * 1024 * 1024;
+    }
+}
@@ -1,15 +1,24 @@
 package ulitsa.raskolnikova.vtfs.server.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes;
 import ulitsa.raskolnikova.vtfs.server.dto.ListResponse;
-import ulitsa.raskolnikova.vtfs.server.service.FileSystemService;
+import ulitsa.raskolnikova.vtfs.server.protocol.BatchExecutor;
+import ulitsa.raskolnikova.vtfs.server.protocol.OperationCodec;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemOperations;
+import ulitsa.raskolnikova.vtfs.server.service.ReadSink;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 
 @RestController
@@ -18,18 +27,27 @@ import java.nio.charset.StandardCharsets;
 @RequiredArgsConstructor
 public class FsController {
     
-    private final FileSystemService fileSystemService;
+    private static final int STATUS_HEADER_SIZE = 8;
+    private static final String RANGE_UNIT_PREFIX = "bytes=";
+    private static final int MAX_LIST_PAGE = 4096;
+    
+    private final FileSystemOperations fileSystemService;
+    private final BatchExecutor batchExecutor;
     
     @GetMapping(value = "/list", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     public void list(
             @RequestParam String token,
             @RequestParam(required = false) Long dir_ino,
             @RequestParam(required = false) Long file_ino,
+            @RequestParam(required = false) Long cookie,
+            @RequestParam(required = false) Integer limit,
             HttpServletResponse response) throws IOException {
         
-        log.debug("list: token={}, dir_ino={}, file_ino={}", token, dir_ino, file_ino);
+        log.debug("list: token={}, dir_ino={}, file_ino={}, cookie={}, limit={}", token, dir_ino, file_ino, cookie, limit);
         
-        ListResponse listResponse = fileSystemService.list(token, dir_ino, file_ino);
+        boolean paged = cookie != null || limit != null;
+        Integer pageSize = paged ? Math.min(limit != null ? limit : MAX_LIST_PAGE, MAX_LIST_PAGE) : null;
+        ListResponse listResponse = fileSystemService.list(token, dir_ino, file_ino, cookie, pageSize);
         
         StringBuilder sb = new StringBuilder();
         for (ListResponse.Entry entry : listResponse.getEntries()) {
@@ -40,8 +58,11 @@ public class FsController {
                   .append("\t")
                   .append(entry.getIno())
                   .append("\t")
-                  .append(entry.getMode())
-                  .append("\n");
+                  .append(entry.getMode());
+                if (paged) {
+                    sb.append("\t").append(entry.getCookie());
+                }
+                sb.append("\n");
             }
         }
         
@@ -49,6 +70,42 @@ public class FsController {
         writeSuccessResponse(response, responseData);
     }
     
+    /**
+     * Lists a page of directory entries together with their attributes. The body is the entry count as
+     * a u32 followed by one record per entry, all little endian: u64 cookie, u64 ino, u32 mode,
+     * u32 nlink, u64 size, u16 name length and the UTF-8 name. A page shorter than {@code limit} is the
+     * last one.
+     */
+    @GetMapping(value = "/readdirplus", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void readdirPlus(
+            @RequestParam String token,
+            @RequestParam Long dir_ino,
+            @RequestParam(required = false) Long cookie,
+            @RequestParam(required = false) Integer limit,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("readdirplus: token={}, dir_ino={}, cookie={}, limit={}", token, dir_ino, cookie, limit);
+        
+        int pageSize = Math.min(limit != null ? limit : MAX_LIST_PAGE, MAX_LIST_PAGE);
+        ListResponse listResponse = fileSystemService.readdirPlus(token, dir_ino, cookie, pageSize);
+        writeSuccessResponse(response, OperationCodec.encodeEntries(listResponse.getEntries()));
+    }
+    
+    @GetMapping(value = "/lookup", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void lookup(
+            @RequestParam String token,
+            @RequestParam Long dir_ino,
+            @RequestParam String name,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("lookup: token={}, dir_ino={}, name={}", token, dir_ino, name);
+        
+        InodeAttributes attributes = fileSystemService.lookup(token, dir_ino, name);
+        String line = attributes.getIno() + "\t" + attributes.getMode() + "\t"
+                + attributes.getSize() + "\t" + attributes.getNlink() + "\n";
+        writeSuccessResponse(response, line.getBytes(StandardCharsets.UTF_8));
+    }
+    
     @GetMapping(value = "/create", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     public void create(
             @RequestParam String token,
@@ -83,14 +140,25 @@ public class FsController {
     public void read(
             @RequestParam String token,
             @RequestParam Long file_ino,
-            @RequestParam Long offset,
-            @RequestParam Integer len,
+            @RequestParam(required = false) Long offset,
+            @RequestParam(required = false) Integer len,
+            @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
             HttpServletResponse response) throws IOException {
         
-        log.debug("read: token={}, file_ino={}, offset={}, len={}", token, file_ino, offset, len);
+        log.debug("read: token={}, file_ino={}, offset={}, len={}, range={}", token, file_ino, offset, len, range);
+        
+        long[] byteRange = parseRange(range);
+        long readOffset;
+        long readLen;
+        if (byteRange != null) {
+            readOffset = byteRange[0];
+            readLen = byteRange[1];
+        } else {
+            readOffset = offset != null ? offset : 0L;
+            readLen = len != null ? len : Long.MAX_VALUE;
+        }
         
-        byte[] data = fileSystemService.read(token, file_ino, offset, len);
-        writeSuccessResponse(response, data);
+        fileSystemService.read(token, file_ino, readOffset, readLen, new ResponseSink(response, byteRange != null));
     }
     
     @GetMapping(value = "/write", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
@@ -108,6 +176,39 @@ public class FsController {
         writeSuccessResponse(response, responseData);
     }
     
+    @PostMapping(value = "/write",
+                 consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE,
+                 produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void writeStream(
+            @RequestParam String token,
+            @RequestParam Long file_ino,
+            @RequestParam Long offset,
+            InputStream body,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("write (binary): token={}, file_ino={}, offset={}", token, file_ino, offset);
+        
+        Long written = fileSystemService.write(token, file_ino, offset, body, request.getContentLengthLong());
+        byte[] responseData = written.toString().getBytes(StandardCharsets.UTF_8);
+        writeSuccessResponse(response, responseData);
+    }
+    
+    @GetMapping(value = "/seek", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void seek(
+            @RequestParam String token,
+            @RequestParam Long file_ino,
+            @RequestParam Long offset,
+            @RequestParam Integer whence,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("seek: token={}, file_ino={}, offset={}, whence={}", token, file_ino, offset, whence);
+        
+        Long position = fileSystemService.seek(token, file_ino, offset, whence);
+        byte[] responseData = position.toString().getBytes(StandardCharsets.UTF_8);
+        writeSuccessResponse(response, responseData);
+    }
+    
     @GetMapping(value = "/delete", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     public void delete(
             @RequestParam String token,
@@ -134,6 +235,20 @@ public class FsController {
         writeSuccessResponse(response, new byte[0]);
     }
     
+    @GetMapping(value = "/rmtree", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void rmtree(
+            @RequestParam String token,
+            @RequestParam Long dir_ino,
+            @RequestParam String name,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("rmtree: token={}, dir_ino={}, name={}", token, dir_ino, name);
+        
+        Long removed = fileSystemService.rmtree(token, dir_ino, name);
+        byte[] responseData = removed.toString().getBytes(StandardCharsets.UTF_8);
+        writeSuccessResponse(response, responseData);
+    }
+    
     @GetMapping(value = "/link", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     public void link(
             @RequestParam String token,
@@ -148,15 +263,72 @@ public class FsController {
         writeSuccessResponse(response, new byte[0]);
     }
     
+    @GetMapping(value = "/clone", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void cloneFile(
+            @RequestParam String token,
+            @RequestParam Long file_ino,
+            @RequestParam Long dir_ino,
+            @RequestParam String name,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("clone: token={}, file_ino={}, dir_ino={}, name={}", token, file_ino, dir_ino, name);
+        
+        Long ino = fileSystemService.cloneFile(token, file_ino, dir_ino, name);
+        byte[] responseData = ino.toString().getBytes(StandardCharsets.UTF_8);
+        writeSuccessResponse(response, responseData);
+    }
+    
+    @GetMapping(value = "/rename", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void rename(
+            @RequestParam String token,
+            @RequestParam Long dir_ino,
+            @RequestParam String name,
+            @RequestParam Long new_dir_ino,
+            @RequestParam String new_name,
+            @RequestParam(required = false, defaultValue = "false") boolean replace,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("rename: token={}, dir_ino={}, name={}, new_dir_ino={}, new_name={}, replace={}",
+                token, dir_ino, name, new_dir_ino, new_name, replace);
+        
+        fileSystemService.rename(token, dir_ino, name, new_dir_ino, new_name, replace);
+        writeSuccessResponse(response, new byte[0]);
+    }
+    
+    @GetMapping(value = "/fsync", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void fsync(
+            @RequestParam String token,
+            @RequestParam Long file_ino,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("fsync: token={}, file_ino={}", token, file_ino);
+        
+        fileSystemService.fsync(token, file_ino);
+        writeSuccessResponse(response, new byte[0]);
+    }
+    
+    @GetMapping(value = "/close", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void close(
+            @RequestParam String token,
+            @RequestParam Long file_ino,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("close: token={}, file_ino={}", token, file_ino);
+        
+        fileSystemService.fsync(token, file_ino);
+        writeSuccessResponse(response, new byte[0]);
+    }
+    
     @GetMapping(value = "/truncate", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
     public void truncate(
             @RequestParam String token,
             @RequestParam Long file_ino,
+            @RequestParam(required = false, defaultValue = "0") Long length,
             HttpServletResponse response) throws IOException {
         
-        log.debug("truncate: token={}, file_ino={}", token, file_ino);
+        log.debug("truncate: token={}, file_ino={}, length={}", token, file_ino, length);
         
-        fileSystemService.truncate(token, file_ino);
+        fileSystemService.truncate(token, file_ino, length);
         writeSuccessResponse(response, new byte[0]);
     }
     
@@ -173,19 +345,115 @@ public class FsController {
         writeSuccessResponse(response, responseData);
     }
     
-    private void writeSuccessResponse(HttpServletResponse response, byte[] data) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(8 + data.length);
-        buffer.order(java.nio.ByteOrder.LITTLE_ENDIAN);
-        buffer.putLong(0L);
-        buffer.put(data);
+    /**
+     * Runs many operations in one round trip, see {@link BatchExecutor} for the encoding. Unless
+     * {@code atomic} is false they run as one transaction; the header then carries the status of the
+     * operation that failed, if one did, and the results of the operations before it were rolled back.
+     */
+    @PostMapping(value = "/batch",
+                 consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE,
+                 produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void batch(
+            @RequestParam String token,
+            @RequestParam(defaultValue = "true") boolean atomic,
+            InputStream body,
+            HttpServletResponse response) throws IOException {
+        
+        log.debug("batch: token={}, atomic={}", token, atomic);
         
+        BatchExecutor.Result result = batchExecutor.execute(token, body, atomic);
+        writeResponse(response, result.status(), result.data());
+    }
+    
+    private void writeSuccessResponse(HttpServletResponse response, byte[] data) throws IOException {
+        writeResponse(response, 0L, data);
+    }
+    
+    private void writeResponse(HttpServletResponse response, long status, byte[] data) throws IOException {
         response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
-        response.setContentLength(buffer.array().length);
+        response.setContentLength(STATUS_HEADER_SIZE + data.length);
         response.setStatus(HttpServletResponse.SC_OK);
         
         try (var out = response.getOutputStream()) {
-            out.write(buffer.array());
+            out.write(statusHeader(status));
+            out.write(data);
             out.flush();
         }
     }
+    
+    private static byte[] successHeader() {
+        return statusHeader(0L);
+    }
+    
+    private static byte[] statusHeader(long status) {
+        return ByteBuffer.allocate(STATUS_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).putLong(status).array();
+    }
+    
+    /**
+     * Parses a single {@code bytes=first-last} or {@code bytes=first-} range into {offset, length}.
+     * Anything else (suffix ranges, multiple ranges, other units) is ignored, which RFC 9110 allows:
+     * the whole requested region is then served with 200.
+     */
+    private static long[] parseRange(String range) {
+        if (range == null || !range.startsWith(RANGE_UNIT_PREFIX) || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring(RANGE_UNIT_PREFIX.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash <= 0) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(spec.substring(0, dash).trim());
+            String lastPart = spec.substring(dash + 1).trim();
+            if (lastPart.isEmpty()) {
+                return new long[]{first, Long.MAX_VALUE};
+            }
+            long last = Long.parseLong(lastPart);
+            return last < first ? null : new long[]{first, last - first + 1};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Streams read data straight to the servlet output: the status header goes out as soon as the
+     * range is known, then every chunk slice is written as it comes off the database cursor.
+     */
+    private static final class ResponseSink implements ReadSink {
+        
+        private final HttpServletResponse response;
+        private final boolean ranged;
+        private OutputStream out;
+        
+        private ResponseSink(HttpServletResponse response, boolean ranged) {
+            this.response = response;
+            this.ranged = ranged;
+        }
+        
+        @Override
+        public void begin(long offset, long length, long fileSize) throws IOException {
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+            response.setContentLengthLong(STATUS_HEADER_SIZE + length);
+            if (!ranged) {
+                response.setStatus(HttpServletResponse.SC_OK);
+            } else if (length > 0) {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE,
+                        "bytes " + offset + "-" + (offset + length - 1) + "/" + fileSize);
+            } else {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileSize);
+            }
+            
+            out = response.getOutputStream();
+            out.write(successHeader());
+        }
+        
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            out.write(data, off, len);
+        }
+    }
 }
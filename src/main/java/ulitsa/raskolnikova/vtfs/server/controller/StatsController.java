@@ -0,0 +1,57 @@
+package ulitsa.raskolnikova.vtfs.server.controller;
+
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@RestController
+@RequestMapping("/api")
+@Slf4j
+@RequiredArgsConstructor
+public class StatsController {
+    
+    private final List<StatsProvider> providers;
+    
+    @GetMapping(value = "/stats", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void stats(@RequestParam String token, HttpServletResponse response) throws IOException {
+        log.debug("stats: token={}", token);
+        
+        if (token.trim().isEmpty()) {
+            throw new FileSystemException(FileSystemException.EPERM, "Invalid token");
+        }
+        
+        Map<String, Number> stats = new TreeMap<>();
+        for (StatsProvider provider : providers) {
+            stats.putAll(provider.stats());
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        stats.forEach((key, value) -> sb.append(key).append("\t").append(value).append("\n"));
+        byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLength(8 + data.length);
+        response.setStatus(HttpServletResponse.SC_OK);
+        
+        try (var out = response.getOutputStream()) {
+            out.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0L).array());
+            out.write(data);
+            out.flush();
+        }
+    }
+}
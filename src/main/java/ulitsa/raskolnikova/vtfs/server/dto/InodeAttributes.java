@@ -0,0 +1,25 @@
+package ulitsa.raskolnikova.vtfs.server.dto;
+
+import lombok.Value;
+import ulitsa.raskolnikova.vtfs.server.model.Inode;
+
+@Value
+public class InodeAttributes {
+    
+    Long ino;
+    Integer mode;
+    Long size;
+    Integer nlink;
+    
+    public static InodeAttributes of(Inode inode) {
+        return new InodeAttributes(inode.getIno(), inode.getMode(), inode.getSize(), inode.getNlink());
+    }
+    
+    public boolean isRegularFile() {
+        return (mode & 0170000) == 0100000;
+    }
+    
+    public boolean isDirectory() {
+        return (mode & 0170000) == 0040000;
+    }
+}
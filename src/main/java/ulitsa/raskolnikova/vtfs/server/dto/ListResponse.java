@@ -16,11 +16,17 @@ public class ListResponse {
         String name;
         Long ino;
         Integer mode;
+        Long cookie;
+        Long size;
+        Integer nlink;
         
         public Entry(String name) {
             this.name = name;
             this.ino = null;
             this.mode = null;
+            this.cookie = null;
+            this.size = null;
+            this.nlink = null;
         }
     }
 }
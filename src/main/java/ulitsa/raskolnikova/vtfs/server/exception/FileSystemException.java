@@ -20,4 +20,8 @@ public class FileSystemException extends RuntimeException {
     public static final int EPERM = 5;
     public static final int ENOMEM = 6;
     public static final int ENOSPC = 7;
+    public static final int ENXIO = 8;
+    public static final int EINVAL = 9;
+    public static final int EISDIR = 10;
+    public static final int EAGAIN = 11;
 }
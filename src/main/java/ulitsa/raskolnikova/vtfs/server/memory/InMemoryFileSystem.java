@@ -0,0 +1,982 @@
+package ulitsa.raskolnikova.vtfs.server.memory;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes;
+import ulitsa.raskolnikova.vtfs.server.dto.ListResponse;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+import ulitsa.raskolnikova.vtfs.server.service.BatchOperation;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemOperations;
+import ulitsa.raskolnikova.vtfs.server.service.ReadCursor;
+import ulitsa.raskolnikova.vtfs.server.service.ReadSink;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * File system engine that keeps all inodes, directory entries and file blocks in process memory.
+ * <p>
+ * Every change is appended to a {@link WriteAheadLog} before it is applied, and the whole state is
+ * periodically written to a snapshot, after which the log it covers is dropped; on startup the snapshot is
+ * loaded and the remaining log replayed. Namespace changes are serialized by one lock, data changes by a
+ * per-inode monitor, and a snapshot briefly excludes both while it captures the state. File blocks are
+ * never modified in place, so a captured state and a running read can use them without copying.
+ */
+@Service
+@Profile("memory")
+@Slf4j
+public class InMemoryFileSystem implements FileSystemOperations, StatsProvider {
+    
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFREG = 0100000;
+    private static final int S_IFDIR = 0040000;
+    
+    private static final int SEEK_DATA = 3;
+    private static final int SEEK_HOLE = 4;
+    
+    private static final long ROOT_INODE = 1000L;
+    private static final int ROOT_MODE = 16877;
+    
+    private static final int NEW_ENTRY = 1;
+    private static final int LINK = 2;
+    private static final int UNLINK = 3;
+    private static final int RMDIR = 4;
+    private static final int WRITE = 5;
+    private static final int TRUNCATE = 6;
+    private static final int RENAME = 7;
+    private static final int RMTREE = 8;
+    private static final int CLONE = 9;
+    
+    private static final long SNAPSHOT_MAGIC = 0x56544653534E4150L;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    
+    private static final byte[] EMPTY = new byte[0];
+    
+    private final VtfsProperties.Memory config;
+    private final int blockSize;
+    private final Path directory;
+    
+    private final ConcurrentHashMap<Long, Node> inodes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Directory> directories = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final Object namespaceLock = new Object();
+    private final AtomicLong nextIno = new AtomicLong(ROOT_INODE + 1);
+    private final AtomicLong nextEntryId = new AtomicLong(1);
+    
+    private final LongAdder snapshots = new LongAdder();
+    private WriteAheadLog wal;
+    private long snapshotSeq;
+    
+    public InMemoryFileSystem(VtfsProperties properties) {
+        this.config = properties.getMemory();
+        this.blockSize = properties.getStorage().getBlockSize();
+        this.directory = Paths.get(config.getDirectory());
+    }
+    
+    @PostConstruct
+    public void recover() throws IOException {
+        Files.createDirectories(directory);
+        snapshotSeq = loadSnapshot();
+        if (!inodes.containsKey(ROOT_INODE)) {
+            Node root = new Node(ROOT_INODE, ROOT_MODE, 2);
+            inodes.put(ROOT_INODE, root);
+            directories.put(ROOT_INODE, new Directory());
+        }
+        wal = new WriteAheadLog(directory, config.isSyncEveryWrite());
+        wal.recover(snapshotSeq, this::replay);
+        log.info("Recovered in-memory file system from {}: {} inodes, {} log records replayed",
+                directory, inodes.size(), wal.records());
+    }
+    
+    @PreDestroy
+    public void shutdown() throws IOException {
+        snapshot();
+        wal.close();
+    }
+    
+    @Override
+    public ListResponse list(String token, Long dirIno, Long fileIno, Long cookie, Integer limit) {
+        validateToken(token);
+        
+        if (dirIno != null) {
+            directory(dirIno, "Directory not found", "Not a directory");
+            List<ListResponse.Entry> result = new ArrayList<>();
+            for (Dentry entry : directories.get(dirIno).byId.tailMap(cookie != null ? cookie : 0L, false).values()) {
+                if (limit != null && result.size() >= limit) {
+                    break;
+                }
+                Node node = inodes.get(entry.ino());
+                if (node != null) {
+                    result.add(new ListResponse.Entry(entry.name(), entry.ino(), node.mode, entry.id(), node.size,
+                            node.nlink));
+                }
+            }
+            return new ListResponse(result, false);
+        } else if (fileIno != null) {
+            Node node = node(fileIno, "File not found");
+            List<ListResponse.Entry> result = new ArrayList<>();
+            for (Dentry entry : node.links) {
+                result.add(new ListResponse.Entry(entry.name()));
+            }
+            return new ListResponse(result, true);
+        } else {
+            throw new FileSystemException(FileSystemException.ENOENT, "dir_ino or file_ino required");
+        }
+    }
+    
+    @Override
+    public ListResponse readdirPlus(String token, Long dirIno, Long cookie, Integer limit) {
+        return list(token, dirIno, null, cookie, limit);
+    }
+    
+    @Override
+    public InodeAttributes lookup(String token, Long dirIno, String name) {
+        validateToken(token);
+        
+        Directory dir = directories.get(dirIno);
+        Dentry entry = dir != null ? dir.byName.get(name) : null;
+        Node node = entry != null ? inodes.get(entry.ino()) : null;
+        if (node == null) {
+            throw new FileSystemException(FileSystemException.ENOENT, "Entry not found");
+        }
+        return node.attributes();
+    }
+    
+    @Override
+    public Long create(String token, Long dirIno, String name, Integer mode) {
+        validateToken(token);
+        
+        return newEntry(dirIno, name, S_IFREG | (mode & ~S_IFMT), "File already exists");
+    }
+    
+    @Override
+    public Long mkdir(String token, Long dirIno, String name, Integer mode) {
+        validateToken(token);
+        
+        return newEntry(dirIno, name, S_IFDIR | (mode & ~S_IFMT), "Directory already exists");
+    }
+    
+    private Long newEntry(Long dirIno, String name, int mode, String existsMessage) {
+        return mutate(() -> {
+            synchronized (namespaceLock) {
+                Directory parent = directory(dirIno, "Parent directory not found", "Parent is not a directory");
+                if (parent.byName.containsKey(name)) {
+                    throw new FileSystemException(FileSystemException.EEXIST, existsMessage);
+                }
+                long ino = nextIno.getAndIncrement();
+                long entryId = nextEntryId.getAndIncrement();
+                wal.append(NEW_ENTRY, out -> {
+                    out.writeLong(dirIno);
+                    out.writeUTF(name);
+                    out.writeLong(ino);
+                    out.writeInt(mode);
+                    out.writeLong(entryId);
+                });
+                applyNewEntry(dirIno, name, ino, mode, entryId);
+                log.info("Created {}: name={}, ino={}, mode={}",
+                        (mode & S_IFMT) == S_IFDIR ? "directory" : "file", name, ino, mode);
+                return ino;
+            }
+        });
+    }
+    
+    @Override
+    public void read(String token, Long fileIno, Long offset, long len, ReadSink sink) throws IOException {
+        validateToken(token);
+        
+        if (offset < 0 || len < 0) {
+            throw new FileSystemException(FileSystemException.EINVAL, "Offset and length must not be negative");
+        }
+        
+        Node node = regularFile(fileIno);
+        long fileSize;
+        long endOffset;
+        List<Map.Entry<Long, byte[]>> blocks = new ArrayList<>();
+        synchronized (node) {
+            fileSize = node.size;
+            endOffset = offset >= fileSize || len <= 0 ? offset : offset + Math.min(len, fileSize - offset);
+            if (endOffset > offset) {
+                for (Map.Entry<Long, byte[]> block
+                        : node.blocks.subMap(offset / blockSize, true, (endOffset - 1) / blockSize, true).entrySet()) {
+                    blocks.add(Map.entry(block.getKey(), block.getValue()));
+                }
+            }
+        }
+        
+        sink.begin(offset, endOffset - offset, fileSize);
+        if (endOffset == offset) {
+            return;
+        }
+        ReadCursor cursor = new ReadCursor(sink, offset, endOffset);
+        for (Map.Entry<Long, byte[]> block : blocks) {
+            cursor.emit(block.getKey() * blockSize, block.getValue(), block.getValue().length);
+        }
+        cursor.finish();
+    }
+    
+    @Override
+    public Long write(String token, Long fileIno, Long offset, String data) {
+        byte[] decodedData;
+        try {
+            decodedData = URLDecoder.decode(data, StandardCharsets.UTF_8.name()).getBytes(StandardCharsets.UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new FileSystemException(FileSystemException.ENOENT, "Invalid data encoding");
+        }
+        
+        validateToken(token);
+        return write(fileIno, offset, decodedData);
+    }
+    
+    @Override
+    public Long write(String token, Long fileIno, Long offset, InputStream data, long length) throws IOException {
+        validateToken(token);
+        
+        regularFile(fileIno);
+        return write(fileIno, offset, data.readAllBytes());
+    }
+    
+    private Long write(Long fileIno, Long offset, byte[] data) {
+        if (offset < 0) {
+            throw new FileSystemException(FileSystemException.EINVAL, "Offset must not be negative");
+        }
+        
+        return mutate(() -> {
+            Node node = regularFile(fileIno);
+            synchronized (node) {
+                if (node.removed) {
+                    throw new FileSystemException(FileSystemException.ENOENT, "File not found");
+                }
+                wal.append(WRITE, out -> {
+                    out.writeLong(fileIno);
+                    out.writeLong(offset);
+                    out.writeInt(data.length);
+                    out.write(data);
+                });
+                applyWrite(node, offset, data);
+            }
+            log.info("Written {} bytes to file ino={} at offset={}", data.length, fileIno, offset);
+            return (long) data.length;
+        });
+    }
+    
+    @Override
+    public Long seek(String token, Long fileIno, Long offset, Integer whence) {
+        validateToken(token);
+        
+        Node node = regularFile(fileIno);
+        
+        if (whence != SEEK_DATA && whence != SEEK_HOLE) {
+            throw new FileSystemException(FileSystemException.EINVAL, "whence must be SEEK_DATA or SEEK_HOLE");
+        }
+        
+        synchronized (node) {
+            long fileSize = node.size;
+            if (offset < 0 || offset >= fileSize) {
+                throw new FileSystemException(FileSystemException.ENXIO, "Offset is beyond end of file");
+            }
+            long blockNo = offset / blockSize;
+            
+            if (whence == SEEK_DATA) {
+                Long dataBlock = node.blocks.ceilingKey(blockNo);
+                if (dataBlock == null || dataBlock * blockSize >= fileSize) {
+                    throw new FileSystemException(FileSystemException.ENXIO, "No data past offset");
+                }
+                return Math.max(offset, dataBlock * blockSize);
+            }
+            
+            if (!node.blocks.containsKey(blockNo)) {
+                return offset;
+            }
+            long lastDataBlock = blockNo;
+            while (node.blocks.containsKey(lastDataBlock + 1)) {
+                lastDataBlock++;
+            }
+            return Math.min(fileSize, (lastDataBlock + 1) * blockSize);
+        }
+    }
+    
+    @Override
+    public void delete(String token, Long dirIno, String name) {
+        validateToken(token);
+        
+        mutate(() -> {
+            synchronized (namespaceLock) {
+                Directory dir = directories.get(dirIno);
+                Dentry entry = dir != null ? dir.byName.get(name) : null;
+                if (entry == null) {
+                    throw new FileSystemException(FileSystemException.ENOENT, "File not found");
+                }
+                wal.append(UNLINK, out -> {
+                    out.writeLong(dirIno);
+                    out.writeUTF(name);
+                });
+                applyUnlink(dirIno, name);
+                log.info("Removed entry: name={}, ino={}", name, entry.ino());
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void rmdir(String token, Long dirIno, String name) {
+        validateToken(token);
+        
+        mutate(() -> {
+            synchronized (namespaceLock) {
+                Directory dir = directories.get(dirIno);
+                Dentry entry = dir != null ? dir.byName.get(name) : null;
+                Node node = entry != null ? inodes.get(entry.ino()) : null;
+                if (node == null) {
+                    throw new FileSystemException(FileSystemException.ENOENT, "Directory not found");
+                }
+                if (!node.isDirectory()) {
+                    throw new FileSystemException(FileSystemException.ENOTDIR, "Not a directory");
+                }
+                if (!directories.get(node.ino).byName.isEmpty()) {
+                    throw new FileSystemException(FileSystemException.ENOTEMPTY, "Directory is not empty");
+                }
+                wal.append(RMDIR, out -> {
+                    out.writeLong(dirIno);
+                    out.writeUTF(name);
+                });
+                applyRmdir(dirIno, name);
+                log.info("Removed directory: name={}, ino={}", name, node.ino);
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public Long rmtree(String token, Long dirIno, String name) {
+        validateToken(token);
+        
+        return mutate(() -> {
+            synchronized (namespaceLock) {
+                Directory dir = directories.get(dirIno);
+                if (dir == null || !dir.byName.containsKey(name)) {
+                    throw new FileSystemException(FileSystemException.ENOENT, "Entry not found");
+                }
+                wal.append(RMTREE, out -> {
+                    out.writeLong(dirIno);
+                    out.writeUTF(name);
+                });
+                long removed = applyRmtree(dirIno, name);
+                log.info("Removed tree: name={}, entries={}", name, removed);
+                return removed;
+            }
+        });
+    }
+    
+    @Override
+    public void link(String token, Long fileIno, Long dirIno, String name) {
+        validateToken(token);
+        
+        mutate(() -> {
+            synchronized (namespaceLock) {
+                Node node = node(fileIno, "File not found");
+                if (!node.isRegularFile()) {
+                    throw new FileSystemException(FileSystemException.EPERM, "Cannot create hard link to directory");
+                }
+                Directory parent = directory(dirIno, "Parent directory not found", "Parent is not a directory");
+                if (parent.byName.containsKey(name)) {
+                    throw new FileSystemException(FileSystemException.EEXIST, "File already exists");
+                }
+                long entryId = nextEntryId.getAndIncrement();
+                wal.append(LINK, out -> {
+                    out.writeLong(dirIno);
+                    out.writeUTF(name);
+                    out.writeLong(fileIno);
+                    out.writeLong(entryId);
+                });
+                applyLink(dirIno, name, fileIno, entryId);
+                log.info("Created hard link: name={}, ino={}, nlink={}", name, fileIno, node.nlink);
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public Long cloneFile(String token, Long fileIno, Long dirIno, String name) {
+        validateToken(token);
+        
+        return mutate(() -> {
+            synchronized (namespaceLock) {
+                Node source = node(fileIno, "File not found");
+                if (!source.isRegularFile()) {
+                    throw new FileSystemException(FileSystemException.EISDIR, "Cannot clone a directory");
+                }
+                Directory parent = directory(dirIno, "Parent directory not found", "Parent is not a directory");
+                if (parent.byName.containsKey(name)) {
+                    throw new FileSystemException(FileSystemException.EEXIST, "File already exists");
+                }
+                long ino = nextIno.getAndIncrement();
+                long entryId = nextEntryId.getAndIncrement();
+                synchronized (source) {
+                    wal.append(CLONE, out -> {
+                        out.writeLong(fileIno);
+                        out.writeLong(dirIno);
+                        out.writeUTF(name);
+                        out.writeLong(ino);
+                        out.writeLong(entryId);
+                    });
+                    applyClone(fileIno, dirIno, name, ino, entryId);
+                }
+                log.info("Cloned file: ino={} -> name={}, ino={}, size={}", fileIno, name, ino, source.size);
+                return ino;
+            }
+        });
+    }
+    
+    @Override
+    public void rename(String token, Long dirIno, String name, Long newDirIno, String newName, boolean replace) {
+        validateToken(token);
+        
+        mutate(() -> {
+            synchronized (namespaceLock) {
+                Directory dir = directories.get(dirIno);
+                Dentry entry = dir != null ? dir.byName.get(name) : null;
+                Node node = entry != null ? inodes.get(entry.ino()) : null;
+                if (node == null) {
+                    throw new FileSystemException(FileSystemException.ENOENT, "Source not found");
+                }
+                if (dirIno.equals(newDirIno) && name.equals(newName)) {
+                    return null;
+                }
+                Directory parent = directory(newDirIno, "Destination directory not found", "Destination is not a directory");
+                if (node.isDirectory()) {
+                    checkNotDescendant(node.ino, newDirIno);
+                }
+                Dentry existing = parent.byName.get(newName);
+                if (existing != null) {
+                    if (!replace) {
+                        throw new FileSystemException(FileSystemException.EEXIST, "File already exists");
+                    }
+                    if (existing.ino() == node.ino) {
+                        return null;
+                    }
+                    Node target = node(existing.ino(), "File not found");
+                    if (node.isDirectory()) {
+                        if (!target.isDirectory()) {
+                            throw new FileSystemException(FileSystemException.ENOTDIR, "Cannot replace a file with a directory");
+                        }
+                        if (!directories.get(target.ino).byName.isEmpty()) {
+                            throw new FileSystemException(FileSystemException.ENOTEMPTY, "Directory is not empty");
+                        }
+                    } else if (target.isDirectory()) {
+                        throw new FileSystemException(FileSystemException.EISDIR, "Cannot replace a directory with a file");
+                    }
+                }
+                wal.append(RENAME, out -> {
+                    out.writeLong(dirIno);
+                    out.writeUTF(name);
+                    out.writeLong(newDirIno);
+                    out.writeUTF(newName);
+                });
+                applyRename(dirIno, name, newDirIno, newName);
+                log.info("Renamed entry: {}/{} -> {}/{}, ino={}", dirIno, name, newDirIno, newName, node.ino);
+                return null;
+            }
+        });
+    }
+    
+    private void checkNotDescendant(long dirIno, long ino) {
+        long current = ino;
+        while (current != ROOT_INODE) {
+            if (current == dirIno) {
+                throw new FileSystemException(FileSystemException.EINVAL, "Cannot move a directory into itself");
+            }
+            Node node = inodes.get(current);
+            Dentry up = node != null ? node.links.stream().findFirst().orElse(null) : null;
+            if (up == null) {
+                return;
+            }
+            current = up.parentIno();
+        }
+    }
+    
+    @Override
+    public void fsync(String token, Long fileIno) {
+        validateToken(token);
+        
+        node(fileIno, "File not found");
+        wal.force();
+    }
+    
+    @Override
+    public void truncate(String token, Long fileIno, Long length) {
+        validateToken(token);
+        
+        if (length < 0) {
+            throw new FileSystemException(FileSystemException.EINVAL, "Length must not be negative");
+        }
+        
+        mutate(() -> {
+            Node node = regularFile(fileIno);
+            synchronized (node) {
+                if (node.removed) {
+                    throw new FileSystemException(FileSystemException.ENOENT, "File not found");
+                }
+                wal.append(TRUNCATE, out -> {
+                    out.writeLong(fileIno);
+                    out.writeLong(length);
+                });
+                applyTruncate(node, length);
+            }
+            log.info("Truncated file: ino={}, length={}", fileIno, length);
+            return null;
+        });
+    }
+    
+    @Override
+    public Long size(String token, Long fileIno) {
+        validateToken(token);
+        
+        return node(fileIno, "File not found").size;
+    }
+    
+    /**
+     * Changes are applied and logged as they are made and cannot be taken back, so atomic batches are refused.
+     */
+    @Override
+    public void atomically(List<BatchOperation> operations) {
+        throw new FileSystemException(FileSystemException.EINVAL, "Atomic batches are not supported by the in-memory engine");
+    }
+    
+    /**
+     * Writes a snapshot of the current state and drops the log records it covers. Changes are held off
+     * only while the state is captured, not while it is written out.
+     */
+    @Scheduled(fixedDelayString = "${vtfs.memory.snapshot-interval-ms:300000}")
+    public synchronized void snapshot() throws IOException {
+        List<NodeImage> nodes = new ArrayList<>(inodes.size());
+        List<Dentry> entries = new ArrayList<>();
+        long seq;
+        long ino;
+        long entryId;
+        
+        stateLock.writeLock().lock();
+        try {
+            if (wal.isEmptySince(snapshotSeq)) {
+                return;
+            }
+            seq = wal.rotate();
+            ino = nextIno.get();
+            entryId = nextEntryId.get();
+            for (Node node : inodes.values()) {
+                nodes.add(new NodeImage(node.ino, node.mode, node.nlink, node.size, new TreeMap<>(node.blocks)));
+            }
+            for (Directory dir : directories.values()) {
+                entries.addAll(dir.byId.values());
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        
+        Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeLong(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(seq);
+            out.writeLong(ino);
+            out.writeLong(entryId);
+            out.writeInt(nodes.size());
+            for (NodeImage node : nodes) {
+                out.writeLong(node.ino());
+                out.writeInt(node.mode());
+                out.writeInt(node.nlink());
+                out.writeLong(node.size());
+                out.writeInt(node.blocks().size());
+                for (Map.Entry<Long, byte[]> block : node.blocks().entrySet()) {
+                    out.writeLong(block.getKey());
+                    out.writeInt(block.getValue().length);
+                    out.write(block.getValue());
+                }
+            }
+            out.writeInt(entries.size());
+            for (Dentry entry : entries) {
+                out.writeLong(entry.id());
+                out.writeLong(entry.parentIno());
+                out.writeUTF(entry.name());
+                out.writeLong(entry.ino());
+            }
+            out.flush();
+            long checksum = checked.getChecksum().getValue();
+            out.writeLong(checksum);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE);
+        wal.truncateThrough(seq);
+        snapshotSeq = seq;
+        snapshots.increment();
+        log.info("Wrote snapshot at log sequence {}: {} inodes, {} entries", seq, nodes.size(), entries.size());
+    }
+    
+    @Scheduled(fixedDelayString = "${vtfs.memory.sync-interval-ms:200}")
+    public void syncLog() {
+        if (!config.isSyncEveryWrite()) {
+            wal.force();
+        }
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("memory.inodes", inodes.size());
+        result.put("memory.directories", directories.size());
+        result.put("memory.log_records", wal.records());
+        result.put("memory.snapshots", snapshots.sum());
+        return result;
+    }
+    
+    private long loadSnapshot() throws IOException {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readLong() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported snapshot format in " + file);
+            }
+            long seq = in.readLong();
+            nextIno.set(in.readLong());
+            nextEntryId.set(in.readLong());
+            int nodeCount = in.readInt();
+            for (int i = 0; i < nodeCount; i++) {
+                Node node = new Node(in.readLong(), in.readInt(), in.readInt());
+                node.size = in.readLong();
+                int blockCount = in.readInt();
+                for (int b = 0; b < blockCount; b++) {
+                    long blockNo = in.readLong();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    node.blocks.put(blockNo, data);
+                }
+                inodes.put(node.ino, node);
+                if (node.isDirectory()) {
+                    directories.put(node.ino, new Directory());
+                }
+            }
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                addEntry(new Dentry(in.readLong(), in.readLong(), in.readUTF(), in.readLong()));
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Snapshot " + file + " is corrupt");
+            }
+            log.info("Loaded snapshot at log sequence {}: {} inodes", seq, nodeCount);
+            return seq;
+        }
+    }
+    
+    private void replay(int type, DataInputStream in) throws IOException {
+        switch (type) {
+            case NEW_ENTRY -> applyNewEntry(in.readLong(), in.readUTF(), in.readLong(), in.readInt(), in.readLong());
+            case LINK -> applyLink(in.readLong(), in.readUTF(), in.readLong(), in.readLong());
+            case UNLINK -> applyUnlink(in.readLong(), in.readUTF());
+            case RMDIR -> applyRmdir(in.readLong(), in.readUTF());
+            case RENAME -> applyRename(in.readLong(), in.readUTF(), in.readLong(), in.readUTF());
+            case RMTREE -> applyRmtree(in.readLong(), in.readUTF());
+            case CLONE -> applyClone(in.readLong(), in.readLong(), in.readUTF(), in.readLong(), in.readLong());
+            case WRITE -> {
+                Node node = inodes.get(in.readLong());
+                long offset = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                if (node != null) {
+                    applyWrite(node, offset, data);
+                }
+            }
+            case TRUNCATE -> {
+                Node node = inodes.get(in.readLong());
+                long length = in.readLong();
+                if (node != null) {
+                    applyTruncate(node, length);
+                }
+            }
+            default -> throw new IOException("Unknown write-ahead log record type " + type);
+        }
+    }
+    
+    // The apply methods below are shared by live operations, which validate first, and by replay,
+    // which trusts the log; they only skip changes whose target is already gone.
+    
+    private void applyNewEntry(long parentIno, String name, long ino, int mode, long entryId) {
+        Node node = new Node(ino, mode, (mode & S_IFMT) == S_IFDIR ? 2 : 1);
+        inodes.put(ino, node);
+        if (node.isDirectory()) {
+            directories.put(ino, new Directory());
+        }
+        addEntry(new Dentry(entryId, parentIno, name, ino));
+        nextIno.accumulateAndGet(ino + 1, Math::max);
+        nextEntryId.accumulateAndGet(entryId + 1, Math::max);
+    }
+    
+    private void applyLink(long parentIno, String name, long ino, long entryId) {
+        Node node = inodes.get(ino);
+        if (node == null) {
+            return;
+        }
+        addEntry(new Dentry(entryId, parentIno, name, ino));
+        node.nlink++;
+        nextEntryId.accumulateAndGet(entryId + 1, Math::max);
+    }
+    
+    private void applyUnlink(long parentIno, String name) {
+        Dentry entry = removeEntry(parentIno, name);
+        Node node = entry != null ? inodes.get(entry.ino()) : null;
+        if (node == null) {
+            return;
+        }
+        node.nlink--;
+        if (node.nlink == 0) {
+            removeNode(node);
+        }
+    }
+    
+    private void applyRmdir(long parentIno, String name) {
+        Dentry entry = removeEntry(parentIno, name);
+        Node node = entry != null ? inodes.get(entry.ino()) : null;
+        if (node != null) {
+            removeNode(node);
+        }
+    }
+    
+    private void applyRename(long parentIno, String name, long newParentIno, String newName) {
+        Directory dir = directories.get(parentIno);
+        Dentry entry = dir != null ? dir.byName.get(name) : null;
+        if (entry == null) {
+            return;
+        }
+        Directory newDir = directories.get(newParentIno);
+        Dentry existing = newDir != null ? newDir.byName.get(newName) : null;
+        if (existing != null) {
+            Node target = inodes.get(existing.ino());
+            if (target != null && target.isDirectory()) {
+                applyRmdir(newParentIno, newName);
+            } else {
+                applyUnlink(newParentIno, newName);
+            }
+        }
+        removeEntry(parentIno, name);
+        addEntry(new Dentry(entry.id(), newParentIno, newName, entry.ino()));
+    }
+    
+    /**
+     * Blocks are never modified in place, so the clone simply references the same arrays.
+     */
+    private void applyClone(long sourceIno, long parentIno, String name, long ino, long entryId) {
+        Node source = inodes.get(sourceIno);
+        if (source == null) {
+            return;
+        }
+        applyNewEntry(parentIno, name, ino, source.mode, entryId);
+        Node clone = inodes.get(ino);
+        synchronized (source) {
+            clone.blocks.putAll(source.blocks);
+            clone.size = source.size;
+        }
+    }
+    
+    private long applyRmtree(long parentIno, String name) {
+        Directory dir = directories.get(parentIno);
+        Dentry entry = dir != null ? dir.byName.get(name) : null;
+        Node node = entry != null ? inodes.get(entry.ino()) : null;
+        if (node == null) {
+            return 0;
+        }
+        if (!node.isDirectory()) {
+            applyUnlink(parentIno, name);
+            return 1;
+        }
+        long removed = 1;
+        for (Dentry child : List.copyOf(directories.get(node.ino).byId.values())) {
+            removed += applyRmtree(node.ino, child.name());
+        }
+        applyRmdir(parentIno, name);
+        return removed;
+    }
+    
+    private void applyWrite(Node node, long offset, byte[] data) {
+        long position = offset;
+        int consumed = 0;
+        while (consumed < data.length) {
+            long blockNo = position / blockSize;
+            int blockOffset = (int) (position % blockSize);
+            int n = Math.min(blockSize - blockOffset, data.length - consumed);
+            byte[] existing = node.blocks.getOrDefault(blockNo, EMPTY);
+            byte[] block = Arrays.copyOf(existing, Math.max(existing.length, blockOffset + n));
+            System.arraycopy(data, consumed, block, blockOffset, n);
+            node.blocks.put(blockNo, block);
+            position += n;
+            consumed += n;
+        }
+        node.size = Math.max(node.size, offset + data.length);
+    }
+    
+    private void applyTruncate(Node node, long length) {
+        long boundaryBlock = length / blockSize;
+        int boundaryLength = (int) (length % blockSize);
+        node.blocks.tailMap(boundaryBlock, boundaryLength == 0).clear();
+        byte[] block = node.blocks.get(boundaryBlock);
+        if (block != null && block.length > boundaryLength) {
+            node.blocks.put(boundaryBlock, Arrays.copyOf(block, boundaryLength));
+        }
+        node.size = length;
+    }
+    
+    private void addEntry(Dentry entry) {
+        Directory dir = directories.get(entry.parentIno());
+        Node node = inodes.get(entry.ino());
+        if (dir == null || node == null) {
+            return;
+        }
+        dir.byName.put(entry.name(), entry);
+        dir.byId.put(entry.id(), entry);
+        node.links.add(entry);
+    }
+    
+    private Dentry removeEntry(long parentIno, String name) {
+        Directory dir = directories.get(parentIno);
+        Dentry entry = dir != null ? dir.byName.remove(name) : null;
+        if (entry == null) {
+            return null;
+        }
+        dir.byId.remove(entry.id());
+        Node node = inodes.get(entry.ino());
+        if (node != null) {
+            node.links.remove(entry);
+        }
+        return entry;
+    }
+    
+    private void removeNode(Node node) {
+        synchronized (node) {
+            node.removed = true;
+            node.blocks.clear();
+        }
+        inodes.remove(node.ino);
+        directories.remove(node.ino);
+    }
+    
+    private <T> T mutate(Supplier<T> operation) {
+        stateLock.readLock().lock();
+        try {
+            return operation.get();
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+    
+    private Node node(Long ino, String notFoundMessage) {
+        Node node = inodes.get(ino);
+        if (node == null) {
+            throw new FileSystemException(FileSystemException.ENOENT, notFoundMessage);
+        }
+        return node;
+    }
+    
+    private Node regularFile(Long ino) {
+        Node node = node(ino, "File not found");
+        if (!node.isRegularFile()) {
+            throw new FileSystemException(FileSystemException.ENOENT, "Not a regular file");
+        }
+        return node;
+    }
+    
+    private Directory directory(Long ino, String notFoundMessage, String notDirectoryMessage) {
+        Node node = node(ino, notFoundMessage);
+        if (!node.isDirectory()) {
+            throw new FileSystemException(FileSystemException.ENOTDIR, notDirectoryMessage);
+        }
+        return directories.get(ino);
+    }
+    
+    private void validateToken(String token) {
+        if (token == null || token.trim().isEmpty()) {
+            throw new FileSystemException(FileSystemException.EPERM, "Invalid token");
+        }
+    }
+    
+    private static final class Node {
+        
+        private final long ino;
+        private final int mode;
+        private volatile int nlink;
+        private volatile long size;
+        private final TreeMap<Long, byte[]> blocks = new TreeMap<>();
+        private final Set<Dentry> links = ConcurrentHashMap.newKeySet();
+        private boolean removed;
+        
+        private Node(long ino, int mode, int nlink) {
+            this.ino = ino;
+            this.mode = mode;
+            this.nlink = nlink;
+        }
+        
+        private boolean isRegularFile() {
+            return (mode & S_IFMT) == S_IFREG;
+        }
+        
+        private boolean isDirectory() {
+            return (mode & S_IFMT) == S_IFDIR;
+        }
+        
+        private InodeAttributes attributes() {
+            return new InodeAttributes(ino, mode, size, nlink);
+        }
+    }
+    
+    private static final class Directory {
+        
+        private final ConcurrentHashMap<String, Dentry> byName = new ConcurrentHashMap<>();
+        private final ConcurrentSkipListMap<Long, Dentry> byId = new ConcurrentSkipListMap<>();
+    }
+    
+    private record Dentry(long id, long parentIno, String name, long ino) {
+    }
+    
+    private record NodeImage(long ino, int mode, int nlink, long size, TreeMap<Long, byte[]> blocks) {
+    }
+}
@@ -0,0 +1,230 @@
+package ulitsa.raskolnikova.vtfs.server.memory;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of state changes of the in-memory engine.
+ * <p>
+ * Every record gets a sequence number and is framed as {@code [length][crc32][seq][type][body]}, little
+ * endian. The log is a chain of files named after the first sequence number they hold; a snapshot
+ * {@link #rotate rotates} to a new file and later drops the files it covers. On replay a record that fails
+ * its length or checksum check marks the torn tail of a crash: it and everything after it is cut off.
+ */
+@Slf4j
+final class WriteAheadLog implements Closeable {
+    
+    private static final Pattern FILE_NAME = Pattern.compile("wal-(\\d+)\\.log");
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+    
+    private final Path directory;
+    private final boolean syncEveryWrite;
+    private FileChannel channel;
+    private Path currentFile;
+    private long nextSeq;
+    private long records;
+    
+    WriteAheadLog(Path directory, boolean syncEveryWrite) {
+        this.directory = directory;
+        this.syncEveryWrite = syncEveryWrite;
+    }
+    
+    /**
+     * Feeds every record with a sequence number above {@code afterSeq} to {@code handler} in order and
+     * opens a new log file for appending after the last one.
+     */
+    synchronized void recover(long afterSeq, RecordHandler handler) throws IOException {
+        long lastSeq = afterSeq;
+        for (Path file : files()) {
+            lastSeq = Math.max(lastSeq, replay(file, afterSeq, handler));
+        }
+        nextSeq = lastSeq + 1;
+        openFile();
+    }
+    
+    synchronized long append(int type, RecordWriter body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            long seq = nextSeq;
+            out.writeLong(seq);
+            out.writeByte(type);
+            body.write(out);
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(record.length).putInt((int) crc.getValue()).flip();
+            ByteBuffer[] buffers = {header, ByteBuffer.wrap(record)};
+            long remaining = HEADER_SIZE + record.length;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            if (syncEveryWrite) {
+                channel.force(false);
+            }
+            nextSeq++;
+            records++;
+            return seq;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    synchronized void force() {
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Starts a new log file and returns the sequence number of the last record before it.
+     */
+    synchronized long rotate() throws IOException {
+        channel.force(false);
+        channel.close();
+        openFile();
+        return nextSeq - 1;
+    }
+    
+    /**
+     * Deletes the log files that only hold records up to {@code seq}.
+     */
+    synchronized void truncateThrough(long seq) throws IOException {
+        List<Path> files = files();
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            if (file.equals(currentFile)) {
+                break;
+            }
+            long nextStart = i + 1 < files.size() ? firstSeq(files.get(i + 1)) : nextSeq;
+            if (nextStart - 1 <= seq) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+    
+    synchronized long records() {
+        return records;
+    }
+    
+    synchronized boolean isEmptySince(long seq) {
+        return nextSeq - 1 <= seq;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+    
+    private void openFile() throws IOException {
+        currentFile = directory.resolve(String.format("wal-%020d.log", nextSeq));
+        channel = FileChannel.open(currentFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    
+    private long replay(Path file, long afterSeq, RecordHandler handler) throws IOException {
+        long lastSeq = afterSeq;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                header.clear();
+                if (in.read(header, position) < HEADER_SIZE) {
+                    break;
+                }
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 9 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > size) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(length);
+                in.read(record, position + HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(record.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(record.array()));
+                long seq = body.readLong();
+                int type = body.readUnsignedByte();
+                if (seq > afterSeq) {
+                    handler.apply(type, body);
+                    records++;
+                }
+                lastSeq = Math.max(lastSeq, seq);
+                position += HEADER_SIZE + length;
+            }
+            if (position < size) {
+                log.warn("Truncating torn write-ahead log tail of {} at offset {}", file, position);
+                in.truncate(position);
+            }
+        }
+        return lastSeq;
+    }
+    
+    private List<Path> files() throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : stream) {
+                if (FILE_NAME.matcher(file.getFileName().toString()).matches()) {
+                    result.add(file);
+                }
+            }
+        }
+        result.sort((a, b) -> Long.compare(firstSeq(a), firstSeq(b)));
+        return result;
+    }
+    
+    private static long firstSeq(Path file) {
+        Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a write-ahead log file: " + file);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+    
+    @FunctionalInterface
+    interface RecordWriter {
+        
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    @FunctionalInterface
+    interface RecordHandler {
+        
+        void apply(int type, DataInputStream body) throws IOException;
+    }
+}
@@ -0,0 +1,45 @@
+package ulitsa.raskolnikova.vtfs.server.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Position of a block payload inside a segment file of the segment block store.
+ */
+@Entity
+@Table(name = "block_locations")
+@IdClass(FileDataId.class)
+@Data
+@NoArgsConstructor
+public class BlockLocation {
+    
+    @Id
+    @Column(name = "inode_ino")
+    private Long inodeIno;
+    
+    @Id
+    @Column(name = "block_no")
+    private Long blockNo;
+    
+    @Column(name = "segment_id", nullable = false)
+    private Long segmentId;
+    
+    @Column(name = "segment_offset", nullable = false)
+    private Long segmentOffset;
+    
+    @Column(nullable = false)
+    private Integer length;
+    
+    @Column(nullable = false)
+    private Short codec;
+    
+    public BlockLocation(Long inodeIno, Long blockNo, Long segmentId, Long segmentOffset, Integer length, Short codec) {
+        this.inodeIno = inodeIno;
+        this.blockNo = blockNo;
+        this.segmentId = segmentId;
+        this.segmentOffset = segmentOffset;
+        this.length = length;
+        this.codec = codec;
+    }
+}
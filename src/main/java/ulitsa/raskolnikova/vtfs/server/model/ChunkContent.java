@@ -0,0 +1,25 @@
+package ulitsa.raskolnikova.vtfs.server.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Entity
+@Table(name = "chunk_contents")
+@Data
+@NoArgsConstructor
+public class ChunkContent {
+    
+    @Id
+    @Column(name = "hash", length = 64)
+    private String hash;
+    
+    @Column(nullable = false, columnDefinition = "BYTEA")
+    private byte[] data;
+    
+    @Column(nullable = false)
+    private Short codec;
+    
+    @Column(nullable = false)
+    private Long refcount;
+}
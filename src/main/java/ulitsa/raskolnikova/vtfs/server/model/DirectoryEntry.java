@@ -12,7 +12,8 @@ import lombok.NoArgsConstructor;
 public class DirectoryEntry {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "directory_entries_id_seq")
+    @SequenceGenerator(name = "directory_entries_id_seq", sequenceName = "directory_entries_id_seq", allocationSize = 50)
     private Long id;
     
     @Column(name = "parent_ino", nullable = false)
@@ -6,31 +6,53 @@ import lombok.NoArgsConstructor;
 
 @Entity
 @Table(name = "file_data")
+@IdClass(FileDataId.class)
 @Data
 @NoArgsConstructor
 public class FileData {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    private Long id;
+    @Column(name = "inode_ino")
+    private Long inodeIno;
+    
+    @Id
+    @Column(name = "block_no")
+    private Long blockNo;
     
     @ManyToOne(fetch = FetchType.LAZY)
-    @JoinColumn(name = "inode_ino", nullable = false)
+    @JoinColumn(name = "inode_ino", insertable = false, updatable = false)
     private Inode inode;
     
-    @Column(name = "file_offset", nullable = false)
-    private Long offset;
-    
-    @Column(nullable = false, columnDefinition = "BYTEA")
+    @Column(columnDefinition = "BYTEA")
     private byte[] data;
     
-    public FileData(Inode inode, Long offset, byte[] data) {
-        this.inode = inode;
-        this.offset = offset;
+    /**
+     * SHA-256 of the block when its bytes live in {@link ChunkContent} instead of {@link #data}.
+     */
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+    
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "content_hash", insertable = false, updatable = false)
+    private ChunkContent content;
+    
+    /**
+     * {@link ulitsa.raskolnikova.vtfs.server.codec.BlockCodec} id of the payload, whether it lives in
+     * {@link #data} or in the referenced {@link ChunkContent}.
+     */
+    @Column(nullable = false)
+    private Short codec = 0;
+    
+    public FileData(Long inodeIno, Long blockNo, byte[] data) {
+        this.inodeIno = inodeIno;
+        this.blockNo = blockNo;
         this.data = data;
     }
     
-    public int getDataSize() {
-        return data != null ? data.length : 0;
+    public byte[] getData() {
+        if (data == null && content != null) {
+            return content.getData();
+        }
+        return data;
     }
 }
@@ -0,0 +1,19 @@
+package ulitsa.raskolnikova.vtfs.server.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileDataId implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private Long inodeIno;
+    
+    private Long blockNo;
+}
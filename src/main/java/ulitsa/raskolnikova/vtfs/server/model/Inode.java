@@ -4,19 +4,22 @@ import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.DynamicUpdate;
 
 import java.util.ArrayList;
 import java.util.List;
 
 @Entity
 @Table(name = "inodes")
+@DynamicUpdate
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class Inode {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "inodes_ino_seq")
+    @SequenceGenerator(name = "inodes_ino_seq", sequenceName = "inodes_ino_seq", allocationSize = 50)
     @Column(name = "ino")
     private Long ino;
     
@@ -29,6 +32,14 @@ public class Inode {
     @Column(nullable = false)
     private Integer nlink;
     
+    /**
+     * Contents of a small file stored in the row itself, with {@code size} past its end reading as zeros;
+     * {@code null} when the contents live in the block store. Only the changed columns of an inode are
+     * updated, so saving it for another attribute never writes back a stale copy.
+     */
+    @Column(name = "inline_data", columnDefinition = "BYTEA")
+    private byte[] inlineData;
+    
     @OneToMany(mappedBy = "inode", cascade = CascadeType.ALL, orphanRemoval = true)
     private List<DirectoryEntry> directoryEntries = new ArrayList<>();
     
@@ -0,0 +1,195 @@
+package ulitsa.raskolnikova.vtfs.server.protocol;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+import ulitsa.raskolnikova.vtfs.server.service.BatchOperation;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemOperations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a list of {@link OperationCodec} operations sent in one request, like an NFSv4 COMPOUND.
+ * <p>
+ * The request is a sequence of operations, each a u32 length (not counting the length itself) followed by
+ * a u16 opcode and the arguments. An inode argument of {@code -n} stands for the inode returned by the n-th
+ * operation of the batch, counting from 1, which must be an earlier successful LOOKUP, CREATE, MKDIR or
+ * CLONE. The result is a u32 count followed by, for every operation that ran, its i64 status, a u32 length
+ * and its result.
+ * <p>
+ * An atomic batch runs in one transaction and stops at the first failure, which rolls back the operations
+ * before it too. Otherwise every operation commits on its own and a failure does not stop the rest.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class BatchExecutor {
+    
+    private static final int OPERATION_HEADER_SIZE = Integer.BYTES;
+    private static final int RESULT_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final long INTERNAL_ERROR = -HttpStatus.INTERNAL_SERVER_ERROR.value();
+    
+    private final OperationCodec codec;
+    private final FileSystemOperations fileSystem;
+    private final VtfsProperties properties;
+    
+    /**
+     * Runs the batch read from {@code body}. The returned status is 0, or for an atomic batch that was
+     * rolled back the status of the operation that failed.
+     */
+    public Result execute(String token, InputStream body, boolean atomic) throws IOException {
+        int maxRequestBytes = properties.getBatch().getMaxRequestBytes();
+        byte[] request = body.readNBytes(maxRequestBytes + 1);
+        if (request.length > maxRequestBytes) {
+            throw new FileSystemException(FileSystemException.EINVAL, "Batch request is too large");
+        }
+        
+        Batch batch = new Batch(token, parse(ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN)));
+        int count = batch.operations.size();
+        if (!atomic) {
+            for (int i = 0; i < count; i++) {
+                try {
+                    batch.run(i);
+                } catch (Exception e) {
+                    // Recorded as the status of the operation
+                }
+            }
+            return new Result(0, batch.encode());
+        }
+        
+        List<BatchOperation> steps = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            steps.add(() -> batch.run(index));
+        }
+        try {
+            fileSystem.atomically(steps);
+        } catch (IOException | RuntimeException e) {
+            if (batch.failed < 0) {
+                throw e;
+            }
+            log.debug("Batch rolled back at operation {} of {}", batch.failed + 1, count);
+            return new Result(batch.statuses[batch.failed], batch.encode());
+        }
+        return new Result(0, batch.encode());
+    }
+    
+    private List<Operation> parse(ByteBuffer request) {
+        int maxOperations = properties.getBatch().getMaxOperations();
+        List<Operation> operations = new ArrayList<>();
+        while (request.hasRemaining()) {
+            if (operations.size() == maxOperations) {
+                throw new FileSystemException(FileSystemException.EINVAL,
+                        "Batch has more than " + maxOperations + " operations");
+            }
+            if (request.remaining() < OPERATION_HEADER_SIZE) {
+                throw new FileSystemException(FileSystemException.EINVAL, "Truncated batch operation");
+            }
+            int length = request.getInt();
+            if (length < Short.BYTES || length > request.remaining()) {
+                throw new FileSystemException(FileSystemException.EINVAL, "Invalid batch operation length " + length);
+            }
+            int opcode = Short.toUnsignedInt(request.getShort());
+            ByteBuffer args = request.slice(request.position(), length - Short.BYTES);
+            request.position(request.position() + length - Short.BYTES);
+            operations.add(new Operation(opcode, args));
+        }
+        return operations;
+    }
+    
+    private static boolean returnsInode(int opcode) {
+        return opcode == OperationCodec.LOOKUP || opcode == OperationCodec.CREATE
+                || opcode == OperationCodec.MKDIR || opcode == OperationCodec.CLONE;
+    }
+    
+    public record Result(long status, byte[] data) {
+    }
+    
+    private record Operation(int opcode, ByteBuffer args) {
+    }
+    
+    /**
+     * Results of the operations of one batch as they run.
+     */
+    private final class Batch {
+        
+        private final String token;
+        private final List<Operation> operations;
+        private final long[] statuses;
+        private final byte[][] results;
+        private final Long[] inodes;
+        private int ran;
+        private int failed = -1;
+        
+        private Batch(String token, List<Operation> operations) {
+            this.token = token;
+            this.operations = operations;
+            this.statuses = new long[operations.size()];
+            this.results = new byte[operations.size()][];
+            this.inodes = new Long[operations.size()];
+        }
+        
+        private void run(int index) throws IOException {
+            Operation operation = operations.get(index);
+            ran = index + 1;
+            try {
+                byte[] result = codec.execute(token, operation.opcode(), operation.args(), ino -> resolve(index, ino));
+                results[index] = result;
+                if (returnsInode(operation.opcode())) {
+                    inodes[index] = ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN).getLong();
+                }
+            } catch (FileSystemException e) {
+                log.debug("Batch operation {} failed: code={}, message={}", index + 1, e.getErrorCode(), e.getMessage());
+                fail(index, e.getErrorCode());
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                log.error("Unexpected error in batch operation {}", index + 1, e);
+                fail(index, INTERNAL_ERROR);
+                throw e;
+            }
+        }
+        
+        private void fail(int index, long status) {
+            statuses[index] = status;
+            if (failed < 0) {
+                failed = index;
+            }
+        }
+        
+        private long resolve(int index, long ino) {
+            if (ino >= 0) {
+                return ino;
+            }
+            // -1 refers to the first operation; Long.MIN_VALUE wraps around to a reference past the end
+            long reference = -ino - 1;
+            if (reference >= index || inodes[(int) reference] == null) {
+                throw new FileSystemException(FileSystemException.EINVAL,
+                        "Operation " + (index + 1) + " refers to no inode returned before it");
+            }
+            return inodes[(int) reference];
+        }
+        
+        private byte[] encode() {
+            int length = Integer.BYTES;
+            for (int i = 0; i < ran; i++) {
+                length += RESULT_HEADER_SIZE + (results[i] != null ? results[i].length : 0);
+            }
+            
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(ran);
+            for (int i = 0; i < ran; i++) {
+                byte[] result = results[i] != null ? results[i] : new byte[0];
+                buffer.putLong(statuses[i]).putInt(result.length).put(result);
+            }
+            return buffer.array();
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package ulitsa.raskolnikova.vtfs.server.protocol;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TCP server speaking the {@link OperationCodec} operations over long-lived connections.
+ * <p>
+ * Every frame starts with its length as a u32 (not counting the length itself), little endian like the
+ * rest. A request frame carries a u64 request id, a u16 opcode and the arguments; the response frame
+ * carries the same request id, the i64 status the HTTP API puts in its header (0, a
+ * {@link FileSystemException} code, or -500) and, on success, the result. A connection first binds its
+ * token with a {@link OperationCodec#HELLO} request holding the token as a string.
+ * <p>
+ * Requests are pipelined: a client may send any number of them without waiting, they run concurrently on
+ * the worker pool and responses come back in completion order, so a client that needs two requests
+ * ordered waits for the first response. One selector thread does all socket I/O. A request counts against
+ * the connection's limit until its response has been written to the socket; at the limit the connection
+ * is neither read nor parsed further, so a client that does not read its responses holds at most that many
+ * of them on the server.
+ */
+@Component
+@ConditionalOnProperty(prefix = "vtfs.protocol", name = "enabled", havingValue = "true")
+@Slf4j
+public class BinaryProtocolServer implements StatsProvider {
+    
+    static final int RESPONSE_HEADER_SIZE = Long.BYTES + Long.BYTES;
+    private static final int REQUEST_HEADER_SIZE = Long.BYTES + Short.BYTES;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final long INTERNAL_ERROR = -HttpStatus.INTERNAL_SERVER_ERROR.value();
+    
+    private final OperationCodec codec;
+    private final VtfsProperties.Protocol config;
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread selectorThread;
+    private volatile boolean running;
+    
+    public BinaryProtocolServer(OperationCodec codec, VtfsProperties properties) {
+        this.codec = codec;
+        this.config = properties.getProtocol();
+    }
+    
+    @PostConstruct
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.getHost(), config.getPort()));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        
+        AtomicInteger workerNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(config.getWorkerThreads(), task -> {
+            Thread thread = new Thread(task, "vtfs-protocol-worker-" + workerNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        running = true;
+        selectorThread = new Thread(this::run, "vtfs-protocol-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        log.info("Binary protocol listening on {}", serverChannel.getLocalAddress());
+    }
+    
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+        workers.shutdown();
+        workers.awaitTermination(5, TimeUnit.SECONDS);
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        closeQuietly(selector);
+    }
+    
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+    
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Connection connection;
+                while ((connection = changed.poll()) != null) {
+                    connection.updateInterest();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    handle(key);
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                log.warn("Binary protocol selector failed", e);
+            }
+        }
+    }
+    
+    private void handle(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+        } catch (IOException e) {
+            log.debug("Closing binary protocol connection: {}", e.getMessage());
+            closeQuietly(key);
+        }
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+        openConnections.incrementAndGet();
+        acceptedConnections.increment();
+    }
+    
+    private void closeQuietly(SelectionKey key) {
+        if (key.attachment() instanceof Connection) {
+            openConnections.decrementAndGet();
+        }
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+    
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            log.debug("Failed to close {}", closeable, e);
+        }
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("protocol.connections", openConnections.get());
+        result.put("protocol.accepted_connections", acceptedConnections.sum());
+        result.put("protocol.requests", requests.sum());
+        result.put("protocol.failed_requests", failedRequests.sum());
+        result.put("protocol.bytes_in", bytesIn.sum());
+        result.put("protocol.bytes_out", bytesOut.sum());
+        return result;
+    }
+    
+    private final class Connection {
+        
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private String token;
+        
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+        
+        private void read() throws IOException {
+            int count = channel.read(input);
+            if (count < 0) {
+                throw new IOException("Connection closed by peer");
+            }
+            bytesIn.add(count);
+            parse();
+        }
+        
+        /**
+         * Dispatches the complete frames in the input buffer while the connection is below its limit.
+         */
+        private void parse() throws IOException {
+            input.flip();
+            while (inFlight.get() < config.getMaxInFlight() && input.remaining() >= Integer.BYTES) {
+                int length = input.getInt(input.position());
+                if (length < REQUEST_HEADER_SIZE || length > config.getMaxFrameBytes()) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (input.remaining() < Integer.BYTES + length) {
+                    if (input.capacity() < Integer.BYTES + length) {
+                        input = ByteBuffer.allocate(Integer.BYTES + length).order(ByteOrder.LITTLE_ENDIAN).put(input);
+                        updateInterest();
+                        return;
+                    }
+                    break;
+                }
+                input.position(input.position() + Integer.BYTES);
+                byte[] frame = new byte[length];
+                input.get(frame);
+                dispatch(ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN));
+            }
+            if (!input.hasRemaining() && input.capacity() > INITIAL_BUFFER_SIZE) {
+                input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                input.compact();
+            }
+            updateInterest();
+        }
+        
+        private void dispatch(ByteBuffer request) {
+            long requestId = request.getLong();
+            int opcode = Short.toUnsignedInt(request.getShort());
+            requests.increment();
+            // Released by write() once the response frame has left the output queue
+            inFlight.incrementAndGet();
+            
+            if (opcode == OperationCodec.HELLO) {
+                try {
+                    token = OperationCodec.getString(request);
+                    respond(requestId, 0, new byte[0]);
+                } catch (BufferUnderflowException e) {
+                    respond(requestId, FileSystemException.EINVAL, new byte[0]);
+                }
+                return;
+            }
+            
+            String requestToken = token;
+            workers.execute(() -> {
+                try {
+                    respond(requestId, 0, codec.execute(requestToken, opcode, request));
+                } catch (FileSystemException e) {
+                    log.debug("Binary protocol request {} failed: code={}, message={}", opcode, e.getErrorCode(),
+                            e.getMessage());
+                    respond(requestId, e.getErrorCode(), new byte[0]);
+                } catch (Exception e) {
+                    log.error("Unexpected error in binary protocol request {}", opcode, e);
+                    respond(requestId, INTERNAL_ERROR, new byte[0]);
+                } finally {
+                    changed.add(this);
+                    selector.wakeup();
+                }
+            });
+        }
+        
+        private void respond(long requestId, long status, byte[] result) {
+            if (status != 0) {
+                failedRequests.increment();
+            }
+            ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + RESPONSE_HEADER_SIZE + result.length)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(RESPONSE_HEADER_SIZE + result.length)
+                    .putLong(requestId)
+                    .putLong(status)
+                    .put(result)
+                    .flip();
+            output.add(frame);
+        }
+        
+        private void write() throws IOException {
+            int written = 0;
+            ByteBuffer frame;
+            while ((frame = output.peek()) != null) {
+                bytesOut.add(channel.write(frame));
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                output.poll();
+                written++;
+            }
+            if (written > 0 && inFlight.getAndAdd(-written) >= config.getMaxInFlight()) {
+                // Frames left in the input buffer at the limit would otherwise wait for more input to arrive
+                parse();
+            } else {
+                updateInterest();
+            }
+        }
+        
+        /**
+         * Runs on the selector thread only.
+         */
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (inFlight.get() < config.getMaxInFlight()) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!output.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+    }
+}
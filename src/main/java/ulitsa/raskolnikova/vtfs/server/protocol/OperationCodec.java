@@ -0,0 +1,294 @@
+package ulitsa.raskolnikova.vtfs.server.protocol;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes;
+import ulitsa.raskolnikova.vtfs.server.dto.ListResponse;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemOperations;
+import ulitsa.raskolnikova.vtfs.server.service.ReadSink;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Binary form of the file system operations, shared by every transport that does not go through the
+ * per-operation HTTP endpoints.
+ * <p>
+ * An operation is an opcode followed by its arguments and answers with its result bytes; failures are
+ * thrown as {@link FileSystemException} for the transport to turn into the usual status codes. Integers
+ * are little endian, a string is a u16 byte length followed by UTF-8, and data is a u32 length followed
+ * by the bytes:
+ * <pre>
+ *  1 LOOKUP     dir i64, name str                         -> ino i64, mode u32, size i64, nlink u32
+ *  2 CREATE     dir i64, name str, mode u32              -> ino i64
+ *  3 MKDIR      dir i64, name str, mode u32              -> ino i64
+ *  4 READ       ino i64, offset i64, len u32             -> data
+ *  5 WRITE      ino i64, offset i64, data                -> written i64
+ *  6 SEEK       ino i64, offset i64, whence u32          -> position i64
+ *  7 DELETE     dir i64, name str
+ *  8 RMDIR      dir i64, name str
+ *  9 RMTREE     dir i64, name str                         -> removed i64
+ * 10 LINK       ino i64, dir i64, name str
+ * 11 CLONE      ino i64, dir i64, name str               -> ino i64
+ * 12 RENAME     dir i64, name str, new dir i64, new name str, replace u8
+ * 13 FSYNC      ino i64
+ * 14 TRUNCATE   ino i64, length i64
+ * 15 SIZE       ino i64                                   -> size i64
+ * 16 READDIR    dir i64, cookie i64, limit u32           -> entries as in /api/readdirplus
+ * 17 LIST_LINKS ino i64                                   -> count u32, then one name str per link
+ * </pre>
+ * Opcode 0 ({@link #HELLO}) is reserved for transports that bind a token to a connection.
+ */
+@Component
+@RequiredArgsConstructor
+public class OperationCodec {
+    
+    public static final int HELLO = 0;
+    public static final int LOOKUP = 1;
+    public static final int CREATE = 2;
+    public static final int MKDIR = 3;
+    public static final int READ = 4;
+    public static final int WRITE = 5;
+    public static final int SEEK = 6;
+    public static final int DELETE = 7;
+    public static final int RMDIR = 8;
+    public static final int RMTREE = 9;
+    public static final int LINK = 10;
+    public static final int CLONE = 11;
+    public static final int RENAME = 12;
+    public static final int FSYNC = 13;
+    public static final int TRUNCATE = 14;
+    public static final int SIZE = 15;
+    public static final int READDIR = 16;
+    public static final int LIST_LINKS = 17;
+    
+    private static final int MAX_LIST_PAGE = 4096;
+    private static final int ENTRY_RECORD_SIZE = 3 * Long.BYTES + 2 * Integer.BYTES + Short.BYTES;
+    private static final byte[] EMPTY = new byte[0];
+    
+    private final FileSystemOperations fileSystem;
+    private final VtfsProperties properties;
+    
+    /**
+     * Runs the operation {@code opcode} with the arguments that start at the position of {@code args}
+     * and returns its encoded result.
+     */
+    public byte[] execute(String token, int opcode, ByteBuffer args) throws IOException {
+        return execute(token, opcode, args, LongUnaryOperator.identity());
+    }
+    
+    /**
+     * Runs an operation like {@link #execute(String, int, ByteBuffer)}, passing every inode number among its
+     * arguments through {@code inodes} first.
+     */
+    public byte[] execute(String token, int opcode, ByteBuffer args, LongUnaryOperator inodes) throws IOException {
+        args.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            return dispatch(token, opcode, args, inodes);
+        } catch (BufferUnderflowException e) {
+            throw new FileSystemException(FileSystemException.EINVAL, "Truncated arguments for opcode " + opcode);
+        }
+    }
+    
+    private byte[] dispatch(String token, int opcode, ByteBuffer args, LongUnaryOperator inodes) throws IOException {
+        switch (opcode) {
+            case LOOKUP -> {
+                long dirIno = inodes.applyAsLong(args.getLong());
+                InodeAttributes attributes = fileSystem.lookup(token, dirIno, getString(args));
+                return result(Long.BYTES * 2 + Integer.BYTES * 2)
+                        .putLong(attributes.getIno())
+                        .putInt(attributes.getMode())
+                        .putLong(attributes.getSize())
+                        .putInt(attributes.getNlink())
+                        .array();
+            }
+            case CREATE, MKDIR -> {
+                long dirIno = inodes.applyAsLong(args.getLong());
+                String name = getString(args);
+                int mode = args.getInt();
+                Long ino = opcode == CREATE
+                        ? fileSystem.create(token, dirIno, name, mode)
+                        : fileSystem.mkdir(token, dirIno, name, mode);
+                return longResult(ino);
+            }
+            case READ -> {
+                long fileIno = inodes.applyAsLong(args.getLong());
+                long offset = args.getLong();
+                long len = Math.min(Integer.toUnsignedLong(args.getInt()), maxReadBytes());
+                DataSink sink = new DataSink();
+                fileSystem.read(token, fileIno, offset, len, sink);
+                return sink.toArray();
+            }
+            case WRITE -> {
+                long fileIno = inodes.applyAsLong(args.getLong());
+                long offset = args.getLong();
+                byte[] data = getData(args);
+                return longResult(fileSystem.write(token, fileIno, offset, new ByteArrayInputStream(data), data.length));
+            }
+            case SEEK -> {
+                long fileIno = inodes.applyAsLong(args.getLong());
+                long offset = args.getLong();
+                return longResult(fileSystem.seek(token, fileIno, offset, args.getInt()));
+            }
+            case DELETE -> {
+                long dirIno = inodes.applyAsLong(args.getLong());
+                fileSystem.delete(token, dirIno, getString(args));
+                return EMPTY;
+            }
+            case RMDIR -> {
+                long dirIno = inodes.applyAsLong(args.getLong());
+                fileSystem.rmdir(token, dirIno, getString(args));
+                return EMPTY;
+            }
+            case RMTREE -> {
+                long dirIno = inodes.applyAsLong(args.getLong());
+                return longResult(fileSystem.rmtree(token, dirIno, getString(args)));
+            }
+            case LINK -> {
+                long fileIno = inodes.applyAsLong(args.getLong());
+                long dirIno = inodes.applyAsLong(args.getLong());
+                fileSystem.link(token, fileIno, dirIno, getString(args));
+                return EMPTY;
+            }
+            case CLONE -> {
+                long fileIno = inodes.applyAsLong(args.getLong());
+                long dirIno = inodes.applyAsLong(args.getLong());
+                return longResult(fileSystem.cloneFile(token, fileIno, dirIno, getString(args)));
+            }
+            case RENAME -> {
+                long dirIno = inodes.applyAsLong(args.getLong());
+                String name = getString(args);
+                long newDirIno = inodes.applyAsLong(args.getLong());
+                String newName = getString(args);
+                fileSystem.rename(token, dirIno, name, newDirIno, newName, args.get() != 0);
+                return EMPTY;
+            }
+            case FSYNC -> {
+                fileSystem.fsync(token, inodes.applyAsLong(args.getLong()));
+                return EMPTY;
+            }
+            case TRUNCATE -> {
+                long fileIno = inodes.applyAsLong(args.getLong());
+                fileSystem.truncate(token, fileIno, args.getLong());
+                return EMPTY;
+            }
+            case SIZE -> {
+                return longResult(fileSystem.size(token, inodes.applyAsLong(args.getLong())));
+            }
+            case READDIR -> {
+                long dirIno = inodes.applyAsLong(args.getLong());
+                long cookie = args.getLong();
+                int limit = (int) Math.min(Integer.toUnsignedLong(args.getInt()), MAX_LIST_PAGE);
+                return encodeEntries(fileSystem.readdirPlus(token, dirIno, cookie, limit).getEntries());
+            }
+            case LIST_LINKS -> {
+                return encodeNames(fileSystem.list(token, null, inodes.applyAsLong(args.getLong()), null, null).getEntries());
+            }
+            default -> throw new FileSystemException(FileSystemException.EINVAL, "Unknown opcode " + opcode);
+        }
+    }
+    
+    /**
+     * Encodes directory entries with their attributes: a u32 count, then per entry u64 cookie, u64 ino,
+     * u32 mode, u32 nlink, u64 size and the name as u16 length and UTF-8.
+     */
+    public static byte[] encodeEntries(List<ListResponse.Entry> entries) {
+        List<byte[]> names = new ArrayList<>(entries.size());
+        int length = Integer.BYTES;
+        for (ListResponse.Entry entry : entries) {
+            byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            length += ENTRY_RECORD_SIZE + name.length;
+        }
+        
+        ByteBuffer buffer = result(length);
+        buffer.putInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            ListResponse.Entry entry = entries.get(i);
+            buffer.putLong(entry.getCookie())
+                  .putLong(entry.getIno())
+                  .putInt(entry.getMode())
+                  .putInt(entry.getNlink())
+                  .putLong(entry.getSize())
+                  .putShort((short) names.get(i).length)
+                  .put(names.get(i));
+        }
+        return buffer.array();
+    }
+    
+    private static byte[] encodeNames(List<ListResponse.Entry> entries) {
+        List<byte[]> names = new ArrayList<>(entries.size());
+        int length = Integer.BYTES;
+        for (ListResponse.Entry entry : entries) {
+            byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            length += Short.BYTES + name.length;
+        }
+        
+        ByteBuffer buffer = result(length);
+        buffer.putInt(names.size());
+        for (byte[] name : names) {
+            buffer.putShort((short) name.length).put(name);
+        }
+        return buffer.array();
+    }
+    
+    public static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] getData(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+    
+    private static byte[] longResult(long value) {
+        return result(Long.BYTES).putLong(value).array();
+    }
+    
+    private static ByteBuffer result(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    private long maxReadBytes() {
+        return properties.getProtocol().getMaxFrameBytes() - BinaryProtocolServer.RESPONSE_HEADER_SIZE - Integer.BYTES;
+    }
+    
+    /**
+     * Collects a read into one array prefixed with its u32 length.
+     */
+    private static final class DataSink implements ReadSink {
+        
+        private ByteBuffer buffer = OperationCodec.result(Integer.BYTES).putInt(0);
+        
+        @Override
+        public void begin(long offset, long length, long fileSize) {
+            buffer = OperationCodec.result(Integer.BYTES + (int) length).putInt((int) length);
+        }
+        
+        @Override
+        public void write(byte[] data, int off, int len) {
+            buffer.put(data, off, len);
+        }
+        
+        private byte[] toArray() {
+            return buffer.array();
+        }
+    }
+}
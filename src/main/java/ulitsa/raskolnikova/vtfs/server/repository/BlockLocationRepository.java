@@ -0,0 +1,86 @@
+package ulitsa.raskolnikova.vtfs.server.repository;
+
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import ulitsa.raskolnikova.vtfs.server.model.BlockLocation;
+import ulitsa.raskolnikova.vtfs.server.model.FileDataId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+@Repository
+public interface BlockLocationRepository extends JpaRepository<BlockLocation, FileDataId> {
+    
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "64"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("SELECT bl FROM BlockLocation bl WHERE bl.inodeIno = :inodeIno " +
+           "AND bl.blockNo BETWEEN :firstBlock AND :lastBlock ORDER BY bl.blockNo ASC")
+    Stream<BlockLocation> streamRange(@Param("inodeIno") Long inodeIno,
+                                      @Param("firstBlock") Long firstBlock,
+                                      @Param("lastBlock") Long lastBlock);
+    
+    @Modifying
+    @Query("DELETE FROM BlockLocation bl WHERE bl.inodeIno = :inodeIno AND bl.blockNo BETWEEN :firstBlock AND :lastBlock")
+    int deleteBlockRange(@Param("inodeIno") Long inodeIno,
+                         @Param("firstBlock") Long firstBlock,
+                         @Param("lastBlock") Long lastBlock);
+    
+    @Modifying
+    @Query("DELETE FROM BlockLocation bl WHERE bl.inodeIno = :inodeIno")
+    int deleteByInodeIno(@Param("inodeIno") Long inodeIno);
+    
+    @Modifying
+    @Query("DELETE FROM BlockLocation bl WHERE bl.inodeIno IN :inodeInos")
+    int deleteByInodeInoIn(@Param("inodeInos") Collection<Long> inodeInos);
+    
+    @Modifying
+    @Query(value = "INSERT INTO block_locations (inode_ino, block_no, segment_id, segment_offset, length, codec) " +
+                   "SELECT :targetIno, block_no, segment_id, segment_offset, length, codec FROM block_locations " +
+                   "WHERE inode_ino = :sourceIno", nativeQuery = true)
+    int copyLocations(@Param("sourceIno") Long sourceIno, @Param("targetIno") Long targetIno);
+    
+    @Query("SELECT DISTINCT bl.segmentId FROM BlockLocation bl WHERE bl.inodeIno = :inodeIno")
+    List<Long> findSegmentIdsByInodeIno(@Param("inodeIno") Long inodeIno);
+    
+    @Query("SELECT MIN(bl.blockNo) FROM BlockLocation bl WHERE bl.inodeIno = :inodeIno AND bl.blockNo >= :fromBlock")
+    Long findFirstBlockFrom(@Param("inodeIno") Long inodeIno, @Param("fromBlock") Long fromBlock);
+    
+    @Query("SELECT MIN(bl.blockNo) FROM BlockLocation bl WHERE bl.inodeIno = :inodeIno AND bl.blockNo >= :fromBlock " +
+           "AND NOT EXISTS (SELECT 1 FROM BlockLocation n WHERE n.inodeIno = bl.inodeIno AND n.blockNo = bl.blockNo + 1)")
+    Long findLastBlockOfRunFrom(@Param("inodeIno") Long inodeIno, @Param("fromBlock") Long fromBlock);
+    
+    @Query("SELECT bl.segmentId AS segmentId, SUM(bl.length) AS liveBytes FROM BlockLocation bl GROUP BY bl.segmentId")
+    List<SegmentUsageView> findSegmentUsage();
+    
+    @Query("SELECT bl FROM BlockLocation bl WHERE bl.segmentId = :segmentId AND bl.segmentOffset >= :fromOffset " +
+           "ORDER BY bl.segmentOffset ASC")
+    List<BlockLocation> findBySegmentFrom(@Param("segmentId") Long segmentId,
+                                          @Param("fromOffset") Long fromOffset,
+                                          Limit limit);
+    
+    boolean existsBySegmentId(Long segmentId);
+    
+    /**
+     * Moves a block to a new position unless it was overwritten or deleted since it was read.
+     */
+    @Modifying
+    @Query("UPDATE BlockLocation bl SET bl.segmentId = :newSegmentId, bl.segmentOffset = :newOffset " +
+           "WHERE bl.inodeIno = :inodeIno AND bl.blockNo = :blockNo " +
+           "AND bl.segmentId = :oldSegmentId AND bl.segmentOffset = :oldOffset")
+    int relocate(@Param("inodeIno") Long inodeIno,
+                 @Param("blockNo") Long blockNo,
+                 @Param("oldSegmentId") Long oldSegmentId,
+                 @Param("oldOffset") Long oldOffset,
+                 @Param("newSegmentId") Long newSegmentId,
+                 @Param("newOffset") Long newOffset);
+}
@@ -0,0 +1,70 @@
+package ulitsa.raskolnikova.vtfs.server.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import ulitsa.raskolnikova.vtfs.server.model.ChunkContent;
+
+import java.util.Collection;
+
+@Repository
+public interface ChunkContentRepository extends JpaRepository<ChunkContent, String> {
+    
+    @Modifying
+    @Query("UPDATE ChunkContent c SET c.refcount = c.refcount + :count WHERE c.hash = :hash")
+    int addReferences(@Param("hash") String hash, @Param("count") long count);
+    
+    @Modifying
+    @Query(value = "INSERT INTO chunk_contents (hash, data, codec, refcount) VALUES (:hash, :data, :codec, :count) " +
+                   "ON CONFLICT DO NOTHING", nativeQuery = true)
+    int insertIfAbsent(@Param("hash") String hash,
+                       @Param("data") byte[] data,
+                       @Param("codec") short codec,
+                       @Param("count") long count);
+    
+    /**
+     * Drops the references held by blocks {@code firstBlock..lastBlock} of an inode. Must run before
+     * those file_data rows are deleted.
+     */
+    @Modifying
+    @Query(value = "UPDATE chunk_contents SET refcount = refcount - (" +
+                   "SELECT COUNT(*) FROM file_data f WHERE f.inode_ino = :inodeIno " +
+                   "AND f.block_no BETWEEN :firstBlock AND :lastBlock AND f.content_hash = chunk_contents.hash) " +
+                   "WHERE hash IN (SELECT content_hash FROM file_data WHERE inode_ino = :inodeIno " +
+                   "AND block_no BETWEEN :firstBlock AND :lastBlock)", nativeQuery = true)
+    int releaseBlockRange(@Param("inodeIno") Long inodeIno,
+                          @Param("firstBlock") Long firstBlock,
+                          @Param("lastBlock") Long lastBlock);
+    
+    /**
+     * Adds the references held by all blocks of an inode whose rows were copied from another inode.
+     */
+    @Modifying
+    @Query(value = "UPDATE chunk_contents SET refcount = refcount + (" +
+                   "SELECT COUNT(*) FROM file_data f WHERE f.inode_ino = :inodeIno " +
+                   "AND f.content_hash = chunk_contents.hash) " +
+                   "WHERE hash IN (SELECT content_hash FROM file_data WHERE inode_ino = :inodeIno)", nativeQuery = true)
+    int retainInode(@Param("inodeIno") Long inodeIno);
+    
+    /**
+     * Drops the references held by all blocks of the given inodes. Must run before those file_data rows
+     * are deleted.
+     */
+    @Modifying
+    @Query(value = "UPDATE chunk_contents SET refcount = refcount - (" +
+                   "SELECT COUNT(*) FROM file_data f WHERE f.inode_ino IN (:inodeInos) " +
+                   "AND f.content_hash = chunk_contents.hash) " +
+                   "WHERE hash IN (SELECT content_hash FROM file_data WHERE inode_ino IN (:inodeInos))", nativeQuery = true)
+    int releaseInodes(@Param("inodeInos") Collection<Long> inodeInos);
+    
+    /**
+     * Deletes up to {@code limit} unreferenced contents. The refcount is checked again on the deleted row
+     * itself, which PostgreSQL re-reads after waiting for a writer that has just referenced it again.
+     */
+    @Modifying
+    @Query(value = "DELETE FROM chunk_contents WHERE refcount <= 0 AND hash IN (" +
+                   "SELECT hash FROM chunk_contents WHERE refcount <= 0 LIMIT :limit)", nativeQuery = true)
+    int deleteUnreferenced(@Param("limit") int limit);
+}
@@ -1,11 +1,14 @@
 package ulitsa.raskolnikova.vtfs.server.repository;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ulitsa.raskolnikova.vtfs.server.model.DirectoryEntry;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -14,6 +17,13 @@ public interface DirectoryEntryRepository extends JpaRepository<DirectoryEntry,
     
     List<DirectoryEntry> findByParentIno(Long parentIno);
     
+    @Query("SELECT de.id AS id, de.name AS name, i.ino AS ino, i.mode AS mode, i.size AS size, i.nlink AS nlink " +
+           "FROM DirectoryEntry de JOIN de.inode i " +
+           "WHERE de.parentIno = :parentIno AND de.id > :cookie ORDER BY de.id ASC")
+    List<DirectoryEntryView> findViewsByParentIno(@Param("parentIno") Long parentIno,
+                                                  @Param("cookie") Long cookie,
+                                                  Limit limit);
+    
     Optional<DirectoryEntry> findByParentInoAndName(Long parentIno, String name);
     
     boolean existsByParentInoAndName(Long parentIno, String name);
@@ -23,4 +33,19 @@ public interface DirectoryEntryRepository extends JpaRepository<DirectoryEntry,
     
     @Query("SELECT COUNT(de) FROM DirectoryEntry de WHERE de.parentIno = :parentIno AND de.name NOT IN ('.', '..')")
     long countByParentInoExcludingDots(@Param("parentIno") Long parentIno);
+    
+    /**
+     * Returns the entries of a directory whose id is greater than {@code cookie}, in id order, with the inode
+     * attributes needed to remove them.
+     */
+    @Query("SELECT de.id AS id, de.parentIno AS parentIno, de.name AS name, i.ino AS ino, i.mode AS mode, " +
+           "i.size AS size FROM DirectoryEntry de JOIN de.inode i " +
+           "WHERE de.parentIno = :parentIno AND de.id > :cookie AND de.name NOT IN ('.', '..') ORDER BY de.id ASC")
+    List<SubtreeEntryView> findChildrenAfter(@Param("parentIno") Long parentIno,
+                                             @Param("cookie") Long cookie,
+                                             Limit limit);
+    
+    @Modifying
+    @Query("DELETE FROM DirectoryEntry de WHERE de.id IN :ids")
+    int deleteByIdIn(@Param("ids") Collection<Long> ids);
 }
@@ -0,0 +1,19 @@
+package ulitsa.raskolnikova.vtfs.server.repository;
+
+/**
+ * Directory entry joined with the attributes of the inode it points to, loaded in one query.
+ */
+public interface DirectoryEntryView {
+    
+    Long getId();
+    
+    String getName();
+    
+    Long getIno();
+    
+    Integer getMode();
+    
+    Long getSize();
+    
+    Integer getNlink();
+}
@@ -1,24 +1,72 @@
 package ulitsa.raskolnikova.vtfs.server.repository;
 
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ulitsa.raskolnikova.vtfs.server.model.FileData;
+import ulitsa.raskolnikova.vtfs.server.model.FileDataId;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
-public interface FileDataRepository extends JpaRepository<FileData, Long> {
+public interface FileDataRepository extends JpaRepository<FileData, FileDataId> {
     
-    List<FileData> findByInodeInoOrderByOffsetAsc(Long inodeIno);
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "16"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("SELECT fd FROM FileData fd LEFT JOIN FETCH fd.content WHERE fd.inodeIno = :inodeIno " +
+           "AND fd.blockNo BETWEEN :firstBlock AND :lastBlock ORDER BY fd.blockNo ASC")
+    Stream<FileData> streamChunksInRange(@Param("inodeIno") Long inodeIno,
+                                         @Param("firstBlock") Long firstBlock,
+                                         @Param("lastBlock") Long lastBlock);
     
-    @Query(value = "SELECT * FROM file_data WHERE inode_ino = :inodeIno " +
-           "AND file_offset < :endOffset AND (file_offset + length(data)) > :startOffset " +
-           "ORDER BY file_offset ASC", nativeQuery = true)
-    List<FileData> findChunksInRange(@Param("inodeIno") Long inodeIno,
-                                      @Param("startOffset") Long startOffset,
-                                      @Param("endOffset") Long endOffset);
+    @Query("SELECT fd FROM FileData fd WHERE fd.inodeIno = :inodeIno AND fd.data IS NOT NULL ORDER BY fd.blockNo ASC")
+    List<FileData> findInlineChunks(@Param("inodeIno") Long inodeIno, Limit limit);
     
-    void deleteByInodeIno(Long inodeIno);
+    @Modifying
+    @Query("UPDATE FileData fd SET fd.contentHash = :contentHash, fd.data = NULL " +
+           "WHERE fd.inodeIno = :inodeIno AND fd.blockNo = :blockNo")
+    int moveToContent(@Param("inodeIno") Long inodeIno,
+                      @Param("blockNo") Long blockNo,
+                      @Param("contentHash") String contentHash);
+    
+    /**
+     * Gives {@code targetIno} a row for every block of {@code sourceIno} referencing the same content.
+     * Only valid once none of the source blocks is stored inline.
+     */
+    @Modifying
+    @Query(value = "INSERT INTO file_data (inode_ino, block_no, content_hash, codec) " +
+                   "SELECT :targetIno, block_no, content_hash, codec FROM file_data WHERE inode_ino = :sourceIno",
+           nativeQuery = true)
+    int copyBlocks(@Param("sourceIno") Long sourceIno, @Param("targetIno") Long targetIno);
+    
+    @Modifying
+    @Query("DELETE FROM FileData fd WHERE fd.inodeIno = :inodeIno AND fd.blockNo BETWEEN :firstBlock AND :lastBlock")
+    int deleteBlockRange(@Param("inodeIno") Long inodeIno,
+                         @Param("firstBlock") Long firstBlock,
+                         @Param("lastBlock") Long lastBlock);
+    
+    @Query("SELECT MIN(fd.blockNo) FROM FileData fd WHERE fd.inodeIno = :inodeIno AND fd.blockNo >= :fromBlock")
+    Long findFirstBlockFrom(@Param("inodeIno") Long inodeIno, @Param("fromBlock") Long fromBlock);
+    
+    @Query("SELECT MIN(fd.blockNo) FROM FileData fd WHERE fd.inodeIno = :inodeIno AND fd.blockNo >= :fromBlock " +
+           "AND NOT EXISTS (SELECT 1 FROM FileData n WHERE n.inodeIno = fd.inodeIno AND n.blockNo = fd.blockNo + 1)")
+    Long findLastBlockOfRunFrom(@Param("inodeIno") Long inodeIno, @Param("fromBlock") Long fromBlock);
+    
+    @Modifying
+    @Query("DELETE FROM FileData fd WHERE fd.inodeIno = :inodeIno")
+    int deleteByInodeIno(@Param("inodeIno") Long inodeIno);
+    
+    @Modifying
+    @Query("DELETE FROM FileData fd WHERE fd.inodeIno IN :inodeInos")
+    int deleteByInodeInoIn(@Param("inodeInos") Collection<Long> inodeInos);
 }
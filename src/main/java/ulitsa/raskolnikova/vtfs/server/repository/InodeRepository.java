@@ -1,12 +1,17 @@
 package ulitsa.raskolnikova.vtfs.server.repository;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes;
 import ulitsa.raskolnikova.vtfs.server.model.Inode;
 import jakarta.persistence.LockModeType;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
@@ -15,4 +20,37 @@ public interface InodeRepository extends JpaRepository<Inode, Long> {
     @Lock(LockModeType.PESSIMISTIC_WRITE)
     @Query("SELECT i FROM Inode i WHERE i.ino = :ino")
     Optional<Inode> findByIdForUpdate(@Param("ino") Long ino);
+    
+    /**
+     * Reads attributes straight from the database, bypassing both the persistence context and
+     * {@code InodeCache}.
+     */
+    @Query("SELECT new ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes(i.ino, i.mode, i.size, i.nlink) " +
+           "FROM Inode i WHERE i.ino = :ino")
+    Optional<InodeAttributes> findAttributes(@Param("ino") Long ino);
+    
+    /**
+     * Returns regular files after {@code ino} whose contents live in blocks, in inode order.
+     */
+    @Query("SELECT i.ino FROM Inode i WHERE i.ino > :ino AND i.mode / 4096 = 8 AND i.inlineData IS NULL " +
+           "ORDER BY i.ino")
+    List<Long> findBlockFileInosAfter(@Param("ino") Long ino, Limit limit);
+    
+    /**
+     * Raises the size to {@code size} unless a concurrent writer already took it further.
+     */
+    @Modifying
+    @Query("UPDATE Inode i SET i.size = GREATEST(i.size, :size) WHERE i.ino = :ino")
+    int extendSize(@Param("ino") Long ino, @Param("size") Long size);
+    
+    @Modifying
+    @Query("UPDATE Inode i SET i.nlink = i.nlink - :count WHERE i.ino IN :inos")
+    int decrementNlink(@Param("inos") Collection<Long> inos, @Param("count") int count);
+    
+    @Query("SELECT i.ino FROM Inode i WHERE i.ino IN :inos AND i.nlink <= 0")
+    List<Long> findUnlinked(@Param("inos") Collection<Long> inos);
+    
+    @Modifying
+    @Query("DELETE FROM Inode i WHERE i.ino IN :inos")
+    int deleteByInoIn(@Param("inos") Collection<Long> inos);
 }
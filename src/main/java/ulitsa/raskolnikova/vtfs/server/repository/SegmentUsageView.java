@@ -0,0 +1,11 @@
+package ulitsa.raskolnikova.vtfs.server.repository;
+
+/**
+ * Bytes of a segment file still referenced by block locations.
+ */
+public interface SegmentUsageView {
+    
+    Long getSegmentId();
+    
+    Long getLiveBytes();
+}
@@ -0,0 +1,19 @@
+package ulitsa.raskolnikova.vtfs.server.repository;
+
+/**
+ * Entry below a directory being removed, with the inode attributes needed to remove it.
+ */
+public interface SubtreeEntryView {
+    
+    Long getId();
+    
+    Long getParentIno();
+    
+    String getName();
+    
+    Long getIno();
+    
+    Integer getMode();
+    
+    Long getSize();
+}
@@ -0,0 +1,12 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import java.io.IOException;
+
+/**
+ * One step of a batch handed to {@link FileSystemOperations#atomically}.
+ */
+@FunctionalInterface
+public interface BatchOperation {
+    
+    void run() throws IOException;
+}
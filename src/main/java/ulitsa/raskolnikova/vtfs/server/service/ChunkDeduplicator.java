@@ -0,0 +1,139 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.model.FileData;
+import ulitsa.raskolnikova.vtfs.server.repository.ChunkContentRepository;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves block payloads into the content-addressed chunk_contents table and keeps its reference
+ * counts. Each distinct content is stored once; file_data rows then carry only its hash.
+ */
+@Component
+@Profile("!memory")
+@Slf4j
+@RequiredArgsConstructor
+public class ChunkDeduplicator implements StatsProvider {
+    
+    private static final HexFormat HEX = HexFormat.of();
+    
+    private final ChunkContentRepository chunkContentRepository;
+    private final VtfsProperties properties;
+    private final TransactionTemplate transactionTemplate;
+    
+    private final LongAdder sharedBlocks = new LongAdder();
+    private final LongAdder storedBlocks = new LongAdder();
+    private final LongAdder collected = new LongAdder();
+    
+    public boolean isEnabled() {
+        return properties.getDedup().isEnabled();
+    }
+    
+    /**
+     * Replaces the payload of each block with a reference to its content, inserting content that is not
+     * stored yet. Runs in the caller's transaction, before the blocks themselves are persisted.
+     */
+    public void deduplicate(List<FileData> blocks) {
+        // Sorted so that concurrent writers lock chunk_contents rows in the same order.
+        Map<String, Content> contents = new TreeMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (FileData block : blocks) {
+            String hash = hash(block.getCodec(), block.getData());
+            contents.putIfAbsent(hash, new Content(block.getCodec(), block.getData()));
+            counts.merge(hash, 1, Integer::sum);
+            block.setContentHash(hash);
+            block.setData(null);
+        }
+        
+        for (Map.Entry<String, Content> content : contents.entrySet()) {
+            String hash = content.getKey();
+            int count = counts.get(hash);
+            if (chunkContentRepository.addReferences(hash, count) > 0) {
+                sharedBlocks.add(count);
+                continue;
+            }
+            Content stored = content.getValue();
+            if (chunkContentRepository.insertIfAbsent(hash, stored.data(), stored.codec(), count) > 0) {
+                storedBlocks.increment();
+                sharedBlocks.add(count - 1);
+                continue;
+            }
+            // Inserted by a concurrent writer between the two statements above.
+            chunkContentRepository.addReferences(hash, count);
+            sharedBlocks.add(count);
+        }
+    }
+    
+    /**
+     * Drops the references of blocks that are about to be deleted. Deleted rows may reference content
+     * even when deduplication has since been switched off, so this always runs.
+     */
+    public void release(Long inodeIno, long firstBlock, long lastBlock) {
+        chunkContentRepository.releaseBlockRange(inodeIno, firstBlock, lastBlock);
+    }
+    
+    public void releaseAll(Long inodeIno) {
+        release(inodeIno, 0, Long.MAX_VALUE);
+    }
+    
+    public void retainAll(Long inodeIno) {
+        chunkContentRepository.retainInode(inodeIno);
+    }
+    
+    public void releaseAll(Collection<Long> inodeInos) {
+        chunkContentRepository.releaseInodes(inodeInos);
+    }
+    
+    @Scheduled(fixedDelayString = "${vtfs.dedup.gc-interval-ms:60000}")
+    public void collectGarbage() {
+        int batchSize = properties.getDedup().getGcBatchSize();
+        int deleted;
+        do {
+            deleted = transactionTemplate.execute(status -> chunkContentRepository.deleteUnreferenced(batchSize));
+            collected.add(deleted);
+        } while (deleted == batchSize);
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("dedup.shared_blocks", sharedBlocks.sum());
+        result.put("dedup.stored_blocks", storedBlocks.sum());
+        result.put("dedup.collected_contents", collected.sum());
+        return result;
+    }
+    
+    private record Content(short codec, byte[] data) {
+    }
+    
+    /**
+     * Hashes the stored form of a block; the codec id is part of the key because equal bytes mean
+     * different contents under different codecs.
+     */
+    private static String hash(short codec, byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) codec);
+            return HEX.formatHex(digest.digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
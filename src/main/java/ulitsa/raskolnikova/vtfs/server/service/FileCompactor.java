@@ -0,0 +1,208 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import ulitsa.raskolnikova.vtfs.server.cache.BlockCache;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+import ulitsa.raskolnikova.vtfs.server.repository.InodeRepository;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+import ulitsa.raskolnikova.vtfs.server.storage.BlockStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background pass over the stored blocks of every file that drops what reads never need: blocks holding
+ * only zeros, which read the same as holes, zeros trailing the data of a block, and blocks left past the
+ * end of the file.
+ * <p>
+ * Files are visited in inode order, a bounded number of blocks per run, and the next run resumes where the
+ * previous one stopped. Each batch of blocks is examined and replaced in one transaction under a range lock
+ * on exactly those blocks, so it is atomic for readers and never holds up writers elsewhere in the file.
+ * Files whose range stays locked past the lock timeout are skipped until the next pass.
+ */
+@Component
+@Profile("!memory")
+@Slf4j
+@RequiredArgsConstructor
+public class FileCompactor implements StatsProvider {
+    
+    private final InodeRepository inodeRepository;
+    private final BlockStore blockStore;
+    private final BlockCache blockCache;
+    private final RangeLockManager rangeLockManager;
+    private final VtfsProperties properties;
+    private final TransactionTemplate transactionTemplate;
+    
+    private final LongAdder scannedFiles = new LongAdder();
+    private final LongAdder scannedBlocks = new LongAdder();
+    private final LongAdder punchedBlocks = new LongAdder();
+    private final LongAdder trimmedBlocks = new LongAdder();
+    private final LongAdder prunedBlocks = new LongAdder();
+    private final LongAdder droppedBytes = new LongAdder();
+    private final LongAdder fragmentedFiles = new LongAdder();
+    private final LongAdder skippedFiles = new LongAdder();
+    private final LongAdder passes = new LongAdder();
+    
+    private volatile long lastIno;
+    private Long currentIno;
+    private long nextBlock;
+    private boolean currentChanged;
+    
+    @Scheduled(fixedDelayString = "${vtfs.file-compaction.interval-ms:60000}")
+    public void compactScheduled() {
+        if (properties.getFileCompaction().isEnabled()) {
+            compact();
+        }
+    }
+    
+    /**
+     * Runs one budget of the pass and returns the number of blocks examined.
+     */
+    public synchronized long compact() {
+        VtfsProperties.FileCompaction config = properties.getFileCompaction();
+        long budget = config.getMaxBlocksPerRun();
+        long examined = 0;
+        
+        while (examined < budget) {
+            if (currentIno == null) {
+                List<Long> next = inodeRepository.findBlockFileInosAfter(lastIno, Limit.of(1));
+                if (next.isEmpty()) {
+                    lastIno = 0;
+                    passes.increment();
+                    break;
+                }
+                currentIno = next.get(0);
+                nextBlock = 0;
+                currentChanged = false;
+                scannedFiles.increment();
+            }
+            
+            long ino = currentIno;
+            long fromBlock = nextBlock;
+            int maxBlocks = (int) Math.min(config.getBatchBlocks(), budget - examined);
+            Batch batch;
+            try {
+                batch = transactionTemplate.execute(status -> compactBatch(ino, fromBlock, maxBlocks));
+            } catch (FileSystemException e) {
+                if (e.getErrorCode() != FileSystemException.EAGAIN) {
+                    throw e;
+                }
+                log.debug("Skipping compaction of busy file ino={}", ino);
+                skippedFiles.increment();
+                finishFile();
+                continue;
+            }
+            
+            examined += Math.max(1, batch.examined());
+            if (batch.changed()) {
+                currentChanged = true;
+            }
+            if (batch.nextBlock() == null) {
+                finishFile();
+            } else {
+                nextBlock = batch.nextBlock();
+            }
+        }
+        return examined;
+    }
+    
+    private void finishFile() {
+        if (currentChanged) {
+            fragmentedFiles.increment();
+        }
+        lastIno = currentIno;
+        currentIno = null;
+    }
+    
+    private Batch compactBatch(long ino, long fromBlock, int maxBlocks) {
+        Long firstBlock = blockStore.firstBlockFrom(ino, fromBlock);
+        if (firstBlock == null) {
+            return new Batch(0, false, null);
+        }
+        long lastBlock = firstBlock + maxBlocks - 1;
+        rangeLockManager.lock(ino, firstBlock, lastBlock);
+        
+        InodeAttributes inode = inodeRepository.findAttributes(ino).orElse(null);
+        if (inode == null) {
+            return new Batch(0, false, null);
+        }
+        
+        int blockSize = properties.getStorage().getBlockSize();
+        long size = inode.getSize();
+        List<Long> dropped = new ArrayList<>();
+        List<BlockStore.Block> trimmed = new ArrayList<>();
+        int[] examined = new int[1];
+        try {
+            blockStore.read(ino, firstBlock, lastBlock, (blockNo, data, length) -> {
+                examined[0]++;
+                long start = blockNo * blockSize;
+                int keep = (int) Math.max(0, Math.min(length, size - start));
+                while (keep > 0 && data[keep - 1] == 0) {
+                    keep--;
+                }
+                if (keep == length) {
+                    return;
+                }
+                dropped.add(blockNo);
+                droppedBytes.add(length - keep);
+                if (keep > 0) {
+                    trimmed.add(new BlockStore.Block(blockNo, Arrays.copyOf(data, keep)));
+                    trimmedBlocks.increment();
+                } else if (start < size) {
+                    punchedBlocks.increment();
+                } else {
+                    prunedBlocks.increment();
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        scannedBlocks.add(examined[0]);
+        
+        int runStart = 0;
+        for (int i = 1; i <= dropped.size(); i++) {
+            if (i == dropped.size() || dropped.get(i) != dropped.get(i - 1) + 1) {
+                blockStore.delete(ino, dropped.get(runStart), dropped.get(i - 1));
+                blockCache.invalidate(ino, dropped.get(runStart), dropped.get(i - 1));
+                runStart = i;
+            }
+        }
+        if (!trimmed.isEmpty()) {
+            blockStore.write(ino, trimmed);
+        }
+        return new Batch(examined[0], !dropped.isEmpty(), lastBlock + 1);
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("file_compaction.scanned_files", scannedFiles.sum());
+        result.put("file_compaction.scanned_blocks", scannedBlocks.sum());
+        result.put("file_compaction.fragmented_files", fragmentedFiles.sum());
+        result.put("file_compaction.punched_blocks", punchedBlocks.sum());
+        result.put("file_compaction.trimmed_blocks", trimmedBlocks.sum());
+        result.put("file_compaction.pruned_blocks", prunedBlocks.sum());
+        result.put("file_compaction.dropped_bytes", droppedBytes.sum());
+        result.put("file_compaction.skipped_files", skippedFiles.sum());
+        result.put("file_compaction.passes", passes.sum());
+        result.put("file_compaction.position_ino", lastIno);
+        return result;
+    }
+    
+    private record Batch(int examined, boolean changed, Long nextBlock) {
+    }
+}
@@ -0,0 +1,79 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes;
+import ulitsa.raskolnikova.vtfs.server.dto.ListResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * File system operations served by the API. {@link FileSystemService} implements them on top of the
+ * database; the {@code memory} profile swaps in an embedded in-process engine.
+ */
+public interface FileSystemOperations {
+    
+    ListResponse list(String token, Long dirIno, Long fileIno, Long cookie, Integer limit);
+    
+    /**
+     * Lists a page of directory entries like {@link #list} with the size and link count of each one filled in.
+     */
+    ListResponse readdirPlus(String token, Long dirIno, Long cookie, Integer limit);
+    
+    InodeAttributes lookup(String token, Long dirIno, String name);
+    
+    Long create(String token, Long dirIno, String name, Integer mode);
+    
+    Long mkdir(String token, Long dirIno, String name, Integer mode);
+    
+    void read(String token, Long fileIno, Long offset, long len, ReadSink sink) throws IOException;
+    
+    Long write(String token, Long fileIno, Long offset, String data);
+    
+    /**
+     * Writes the contents of {@code data}, which holds {@code length} bytes or, if {@code length} is -1,
+     * an unknown number of them.
+     */
+    Long write(String token, Long fileIno, Long offset, InputStream data, long length) throws IOException;
+    
+    Long seek(String token, Long fileIno, Long offset, Integer whence);
+    
+    void delete(String token, Long dirIno, String name);
+    
+    void rmdir(String token, Long dirIno, String name);
+    
+    /**
+     * Removes the entry {@code name} of {@code dirIno} and, if it is a directory, everything below it.
+     * Returns the number of entries removed.
+     */
+    Long rmtree(String token, Long dirIno, String name);
+    
+    void link(String token, Long fileIno, Long dirIno, String name);
+    
+    /**
+     * Creates {@code name} in {@code dirIno} as a new file sharing the contents of {@code fileIno}; the two
+     * diverge block by block as either is written. Returns the new inode number.
+     */
+    Long cloneFile(String token, Long fileIno, Long dirIno, String name);
+    
+    /**
+     * Moves the entry {@code name} of {@code dirIno} to {@code newName} in {@code newDirIno} atomically. An
+     * existing target is replaced only when {@code replace} is set.
+     */
+    void rename(String token, Long dirIno, String name, Long newDirIno, String newName, boolean replace);
+    
+    void fsync(String token, Long fileIno);
+    
+    /**
+     * Sets the file size to {@code length}: shrinking drops the data past it, growing adds a hole.
+     */
+    void truncate(String token, Long fileIno, Long length);
+    
+    Long size(String token, Long fileIno);
+    
+    /**
+     * Runs {@code operations} in order as one transaction: if one of them throws, the changes of those before
+     * it are rolled back and the rest are not run.
+     */
+    void atomically(List<BatchOperation> operations) throws IOException;
+}
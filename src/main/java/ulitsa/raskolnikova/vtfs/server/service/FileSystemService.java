@@ -1,42 +1,83 @@
 package ulitsa.raskolnikova.vtfs.server.service;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.persistence.EntityManager;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ulitsa.raskolnikova.vtfs.server.cache.BlockCache;
+import ulitsa.raskolnikova.vtfs.server.cache.BlockLoader;
+import ulitsa.raskolnikova.vtfs.server.cache.DentryCache;
+import ulitsa.raskolnikova.vtfs.server.cache.InodeCache;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.dto.InodeAttributes;
 import ulitsa.raskolnikova.vtfs.server.dto.ListResponse;
 import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
 import ulitsa.raskolnikova.vtfs.server.model.DirectoryEntry;
-import ulitsa.raskolnikova.vtfs.server.model.FileData;
 import ulitsa.raskolnikova.vtfs.server.model.Inode;
 import ulitsa.raskolnikova.vtfs.server.repository.DirectoryEntryRepository;
-import ulitsa.raskolnikova.vtfs.server.repository.FileDataRepository;
+import ulitsa.raskolnikova.vtfs.server.repository.DirectoryEntryView;
 import ulitsa.raskolnikova.vtfs.server.repository.InodeRepository;
+import ulitsa.raskolnikova.vtfs.server.repository.SubtreeEntryView;
+import ulitsa.raskolnikova.vtfs.server.storage.BlockStore;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
 
 @Service
+@Profile("!memory")
 @Slf4j
 @RequiredArgsConstructor
-public class FileSystemService {
+public class FileSystemService implements FileSystemOperations {
     
     private static final int S_IFMT = 0170000;
     private static final int S_IFREG = 0100000;
     private static final int S_IFDIR = 0040000;
     
+    private static final int SEEK_DATA = 3;
+    private static final int SEEK_HOLE = 4;
+    
     private static final long ROOT_INODE = 1000L;
     private static final int ROOT_MODE = 16877;
     
+    private static final String BATCH_TRANSACTION = "vtfs-batch";
+    
     private final InodeRepository inodeRepository;
     private final DirectoryEntryRepository directoryEntryRepository;
-    private final FileDataRepository fileDataRepository;
     private final EntityManager entityManager;
+    private final VtfsProperties properties;
+    private final DentryCache dentryCache;
+    private final InodeCache inodeCache;
+    private final BlockCache blockCache;
+    private final TransactionTemplate transactionTemplate;
+    private final WriteBackBuffer writeBackBuffer;
+    private final BlockStore blockStore;
+    private final RangeLockManager rangeLockManager;
     
     @PostConstruct
     @Transactional
@@ -54,12 +95,13 @@ public class FileSystemService {
         }
     }
     
+    @Override
     @Transactional
-    public ListResponse list(String token, Long dirIno, Long fileIno) {
+    public ListResponse list(String token, Long dirIno, Long fileIno, Long cookie, Integer limit) {
         validateToken(token);
         
         if (dirIno != null) {
-            return listDirectory(dirIno);
+            return listDirectory(dirIno, cookie, limit);
         } else if (fileIno != null) {
             return listHardLinks(fileIno);
         } else {
@@ -67,22 +109,47 @@ public class FileSystemService {
         }
     }
     
-    private ListResponse listDirectory(Long dirIno) {
-        Inode dir = inodeRepository.findById(dirIno)
-                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "Directory not found"));
+    @Override
+    @Transactional
+    public ListResponse readdirPlus(String token, Long dirIno, Long cookie, Integer limit) {
+        validateToken(token);
+        
+        ListResponse listing = listDirectory(dirIno, cookie, limit);
+        List<ListResponse.Entry> result = new ArrayList<>(listing.getEntries().size());
+        for (ListResponse.Entry entry : listing.getEntries()) {
+            long size = writeBackBuffer.effectiveSize(entry.getIno(), entry.getSize());
+            result.add(size == entry.getSize() ? entry : new ListResponse.Entry(entry.getName(), entry.getIno(),
+                    entry.getMode(), entry.getCookie(), size, entry.getNlink()));
+        }
+        return new ListResponse(result, false);
+    }
+    
+    /**
+     * Lists the entries of a directory whose cookie (entry id) is greater than {@code cookie}, at most
+     * {@code limit} of them, or all of them when {@code limit} is null. Ids never change, so a cookie
+     * stays a stable position while entries are added and removed between pages.
+     */
+    private ListResponse listDirectory(Long dirIno, Long cookie, Integer limit) {
+        InodeAttributes dir = getAttributes(dirIno, "Directory not found");
         
         if (!dir.isDirectory()) {
             throw new FileSystemException(FileSystemException.ENOTDIR, "Not a directory");
         }
         
-        List<DirectoryEntry> entries = directoryEntryRepository.findByParentIno(dirIno);
-        List<ListResponse.Entry> result = new ArrayList<>();
+        List<DirectoryEntryView> entries = directoryEntryRepository.findViewsByParentIno(
+                dirIno,
+                cookie != null ? cookie : 0L,
+                limit != null ? Limit.of(limit) : Limit.unlimited());
+        List<ListResponse.Entry> result = new ArrayList<>(entries.size());
         
-        for (DirectoryEntry entry : entries) {
+        for (DirectoryEntryView entry : entries) {
             result.add(new ListResponse.Entry(
                     entry.getName(),
-                    entry.getInode().getIno(),
-                    entry.getInode().getMode()
+                    entry.getIno(),
+                    entry.getMode(),
+                    entry.getId(),
+                    entry.getSize(),
+                    entry.getNlink()
             ));
         }
         
@@ -90,9 +157,7 @@ public class FileSystemService {
     }
     
     private ListResponse listHardLinks(Long fileIno) {
-        if (!inodeRepository.existsById(fileIno)) {
-            throw new FileSystemException(FileSystemException.ENOENT, "File not found");
-        }
+        getAttributes(fileIno, "File not found");
         
         List<DirectoryEntry> entries = directoryEntryRepository.findByInodeIno(fileIno);
         List<ListResponse.Entry> result = new ArrayList<>();
@@ -104,12 +169,31 @@ public class FileSystemService {
         return new ListResponse(result, true);
     }
     
+    @Override
+    @Transactional
+    public InodeAttributes lookup(String token, Long dirIno, String name) {
+        validateToken(token);
+        
+        Long ino = dentryCache.lookup(dirIno, name,
+                        () -> directoryEntryRepository.findByParentInoAndName(dirIno, name)
+                                .map(entry -> entry.getInode().getIno()))
+                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "Entry not found"));
+        
+        InodeAttributes attributes = loadAttributes(ino).orElse(null);
+        if (attributes == null) {
+            dentryCache.invalidate(dirIno, name);
+            throw new FileSystemException(FileSystemException.ENOENT, "Entry not found");
+        }
+        
+        return withBufferedSize(attributes);
+    }
+    
+    @Override
     @Transactional
     public Long create(String token, Long dirIno, String name, Integer mode) {
         validateToken(token);
         
-        Inode parentDir = inodeRepository.findById(dirIno)
-                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "Parent directory not found"));
+        InodeAttributes parentDir = getAttributes(dirIno, "Parent directory not found");
         
         if (!parentDir.isDirectory()) {
             throw new FileSystemException(FileSystemException.ENOTDIR, "Parent is not a directory");
@@ -122,20 +206,22 @@ public class FileSystemService {
         int fileMode = S_IFREG | (mode & ~S_IFMT);
         Inode newInode = new Inode(fileMode, 0L, 1);
         newInode = inodeRepository.save(newInode);
+        inodeCache.update(newInode);
         
         DirectoryEntry entry = new DirectoryEntry(dirIno, name, newInode);
         directoryEntryRepository.save(entry);
+        dentryCache.invalidate(dirIno, name);
         
         log.info("Created file: name={}, ino={}, mode={}", name, newInode.getIno(), fileMode);
         return newInode.getIno();
     }
     
+    @Override
     @Transactional
     public Long mkdir(String token, Long dirIno, String name, Integer mode) {
         validateToken(token);
         
-        Inode parentDir = inodeRepository.findById(dirIno)
-                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "Parent directory not found"));
+        InodeAttributes parentDir = getAttributes(dirIno, "Parent directory not found");
         
         if (!parentDir.isDirectory()) {
             throw new FileSystemException(FileSystemException.ENOTDIR, "Parent is not a directory");
@@ -148,9 +234,11 @@ public class FileSystemService {
         int dirMode = S_IFDIR | (mode & ~S_IFMT);
         Inode newInode = new Inode(dirMode, 0L, 2);
         newInode = inodeRepository.save(newInode);
+        inodeCache.update(newInode);
         
         DirectoryEntry entry = new DirectoryEntry(dirIno, name, newInode);
         directoryEntryRepository.save(entry);
+        dentryCache.invalidate(dirIno, name);
         
         log.info("Created directory: name={}, ino={}, mode={}", name, newInode.getIno(), dirMode);
         return newInode.getIno();
@@ -158,107 +246,477 @@ public class FileSystemService {
     
     @Transactional
     public byte[] read(String token, Long fileIno, Long offset, Integer len) {
+        ByteArraySink sink = new ByteArraySink();
+        try {
+            read(token, fileIno, offset, len, sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sink.result;
+    }
+    
+    @Override
+    @Transactional
+    public void read(String token, Long fileIno, Long offset, long len, ReadSink sink) throws IOException {
         validateToken(token);
         
-        Inode inode = inodeRepository.findById(fileIno)
+        if (offset < 0 || len < 0) {
+            throw new FileSystemException(FileSystemException.EINVAL, "Offset and length must not be negative");
+        }
+        
+        // Loading the whole row on a miss leaves it in the persistence context, so inline contents are then
+        // served from the same fetch as the attributes
+        long inlineGeneration = blockCache.generation(fileIno);
+        InodeAttributes inode = inodeCache.get(fileIno, key -> inodeRepository.findById(key).map(InodeAttributes::of))
                 .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "File not found"));
         
         if (!inode.isRegularFile()) {
             throw new FileSystemException(FileSystemException.ENOENT, "Not a regular file");
         }
         
-        if (offset >= inode.getSize()) {
-            return new byte[0];
+        long fileSize = writeBackBuffer.effectiveSize(fileIno, inode.getSize());
+        if (offset >= fileSize || len <= 0) {
+            sink.begin(offset, 0, fileSize);
+            return;
         }
         
-        long endOffset = Math.min(offset + len, inode.getSize());
-        long actualLen = endOffset - offset;
-        
-        List<FileData> chunks = fileDataRepository.findChunksInRange(fileIno, offset, endOffset);
-        
-        if (chunks.isEmpty()) {
-            return new byte[0];
-        }
-        
-        byte[] result = new byte[(int) actualLen];
-        
-        for (FileData chunk : chunks) {
-            long chunkStart = chunk.getOffset();
-            long chunkEnd = chunkStart + chunk.getDataSize();
+        long endOffset = offset + Math.min(len, fileSize - offset);
+        sink = writeBackBuffer.overlay(fileIno, offset, endOffset, sink);
+        sink.begin(offset, endOffset - offset, fileSize);
+        
+        int blockSize = blockSize();
+        long firstBlock = offset / blockSize;
+        long lastBlock = (endOffset - 1) / blockSize;
+        ReadCursor cursor = new ReadCursor(sink, offset, endOffset);
+        byte[] cached = new byte[blockSize];
+        
+        long blockNo = firstBlock;
+        while (blockNo <= lastBlock) {
+            int cachedLen = blockCache.get(fileIno, blockNo, cached);
+            if (cachedLen >= 0) {
+                cursor.emit(blockNo * blockSize, cached, cachedLen);
+                blockNo++;
+                continue;
+            }
             
-            long readStart = Math.max(offset, chunkStart);
-            long readEnd = Math.min(endOffset, chunkEnd);
+            if (blockNo == 0 && inode.getSize() <= blockSize) {
+                byte[] inline = inlineData(fileIno);
+                if (inline != null) {
+                    cursor.emit(0, inline, inline.length);
+                    blockCache.put(fileIno, 0, inline, inline.length, inlineGeneration);
+                    blockNo++;
+                    continue;
+                }
+            }
             
-            if (readStart < readEnd) {
-                int resultPos = (int) (readStart - offset);
-                int chunkPos = (int) (readStart - chunkStart);
-                int copyLen = (int) (readEnd - readStart);
-                
-                System.arraycopy(chunk.getData(), chunkPos, result, resultPos, copyLen);
+            long runEnd = blockNo;
+            while (runEnd < lastBlock && !blockCache.contains(fileIno, runEnd + 1)) {
+                runEnd++;
             }
+            long generation = blockCache.generation(fileIno);
+            blockStore.read(fileIno, blockNo, runEnd, (storedBlock, payload, length) -> {
+                cursor.emit(storedBlock * blockSize, payload, length);
+                blockCache.put(fileIno, storedBlock, payload, length, generation);
+            });
+            blockNo = runEnd + 1;
         }
+        cursor.finish();
         
-        return result;
+        blockCache.readAhead(fileIno, firstBlock, lastBlock, (fileSize - 1) / blockSize, this::loadBlocks);
     }
     
+    private void loadBlocks(long fileIno, long firstBlock, long lastBlock, BlockLoader.BlockConsumer consumer) {
+        transactionTemplate.executeWithoutResult(status -> {
+            try {
+                blockStore.read(fileIno, firstBlock, lastBlock, consumer::accept);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+    
+    @Override
     @Transactional
     public Long write(String token, Long fileIno, Long offset, String data) {
+        byte[] decodedData;
+        try {
+            decodedData = URLDecoder.decode(data, StandardCharsets.UTF_8.name()).getBytes(StandardCharsets.UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new FileSystemException(FileSystemException.ENOENT, "Invalid data encoding");
+        }
+        
+        try {
+            return write(token, fileIno, offset, new ByteArrayInputStream(decodedData), decodedData.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    @Override
+    @Transactional(rollbackOn = IOException.class)
+    public Long write(String token, Long fileIno, Long offset, InputStream data, long length) throws IOException {
         validateToken(token);
         
-        Inode inode = inodeRepository.findByIdForUpdate(fileIno)
+        if (offset < 0) {
+            throw new FileSystemException(FileSystemException.EINVAL, "Offset must not be negative");
+        }
+        
+        if (writeBackBuffer.isEnabled()) {
+            if (!inBatch()) {
+                return bufferWrite(fileIno, offset, data, length);
+            }
+            // Buffered data would outlive a rolled back batch, so a batch writes through, after what is buffered
+            flushWriteBack(fileIno);
+        }
+        return writeThrough(fileIno, offset, data, length);
+    }
+    
+    private Long bufferWrite(Long fileIno, Long offset, InputStream data, long length) throws IOException {
+        InodeAttributes inode = getAttributes(fileIno, "File not found");
+        
+        if (!inode.isRegularFile()) {
+            throw new FileSystemException(FileSystemException.ENOENT, "Not a regular file");
+        }
+        
+        int limit = writeBackBuffer.getMaxInodeBytes();
+        byte[] bytes = data.readNBytes(limit + 1);
+        if (bytes.length > limit) {
+            flushWriteBack(fileIno);
+            return writeThrough(fileIno, offset, new SequenceInputStream(new ByteArrayInputStream(bytes), data), length);
+        }
+        
+        if (bytes.length > 0 && writeBackBuffer.buffer(fileIno, offset, bytes)) {
+            flushWriteBack(fileIno);
+        }
+        log.debug("Buffered {} bytes for file ino={} at offset={}", bytes.length, fileIno, offset);
+        return (long) bytes.length;
+    }
+    
+    /**
+     * Writes under a lock on just the blocks the write covers (or everything from {@code offset} on when
+     * the length is unknown), so writers of disjoint regions run in parallel. Blocks inside the locked range
+     * are only ever stored by committed writers, whose size updates are therefore visible here too; the size
+     * is raised with a conditional update as the last statement, which keeps the inode row lock short.
+     */
+    private Long writeThrough(Long fileIno, Long offset, InputStream data, long length) throws IOException {
+        int blockSize = blockSize();
+        long lastBlock = length < 0 ? RangeLockManager.TO_END : (offset + Math.max(length, 1) - 1) / blockSize;
+        rangeLockManager.lock(fileIno, offset / blockSize, lastBlock);
+        
+        InodeAttributes inode = inodeRepository.findAttributes(fileIno)
                 .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "File not found"));
         
         if (!inode.isRegularFile()) {
             throw new FileSystemException(FileSystemException.ENOENT, "Not a regular file");
         }
         
-        byte[] decodedData;
+        long storedEnd = inode.getSize();
+        if (storedEnd <= blockSize) {
+            // Inline contents are rewritten as a whole, so writers of a file that may have them take turns
+            // on its row
+            Inode row = inodeRepository.findByIdForUpdate(fileIno)
+                    .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "File not found"));
+            storedEnd = row.getSize();
+            if (row.getInlineData() != null || storedEnd == 0) {
+                long room = Math.max(0, inlineThreshold() - offset);
+                long wanted = length >= 0 ? Math.min(length, room + 1) : room + 1;
+                byte[] bytes = data.readNBytes((int) wanted);
+                if ((bytes.length < wanted || bytes.length == length) && bytes.length <= room) {
+                    return writeInline(row, offset, bytes);
+                }
+                moveToBlocks(row);
+                data = new SequenceInputStream(new ByteArrayInputStream(bytes), data);
+            }
+        }
+        
+        BlockBatch batch = new BlockBatch(fileIno, storedEnd);
+        long position = offset;
+        
+        while (true) {
+            int blockOffset = (int) (position % blockSize);
+            int capacity = blockSize - blockOffset;
+            if (length >= 0) {
+                capacity = (int) Math.min(capacity, offset + length - position);
+            }
+            byte[] buffer = new byte[blockSize];
+            int len = capacity > 0 ? data.readNBytes(buffer, blockOffset, capacity) : 0;
+            if (len == 0) {
+                break;
+            }
+            long blockNo = position / blockSize;
+            batch.add(blockNo, mergeBlock(fileIno, blockNo, buffer, blockOffset, len, storedEnd));
+            position += len;
+        }
+        batch.flush();
+        
+        long written = position - offset;
+        if (written > 0) {
+            blockCache.invalidate(fileIno, offset / blockSize, (position - 1) / blockSize);
+        }
+        if (position > storedEnd) {
+            inodeRepository.extendSize(fileIno, position);
+            inodeCache.evict(fileIno);
+        }
+        
+        log.info("Written {} bytes to file ino={} at offset={}", written, fileIno, offset);
+        return written;
+    }
+    
+    private Long writeInline(Inode inode, long offset, byte[] bytes) {
+        if (bytes.length > 0) {
+            byte[] current = inode.getInlineData() != null ? inode.getInlineData() : new byte[0];
+            int end = (int) offset + bytes.length;
+            byte[] content = Arrays.copyOf(current, Math.max(current.length, end));
+            System.arraycopy(bytes, 0, content, (int) offset, bytes.length);
+            inode.setInlineData(content);
+            inode.setSize(Math.max(inode.getSize(), end));
+            inodeRepository.save(inode);
+            inodeCache.update(inode);
+            blockCache.invalidate(inode.getIno(), 0, 0);
+        }
+        
+        log.info("Written {} inline bytes to file ino={} at offset={}", bytes.length, inode.getIno(), offset);
+        return (long) bytes.length;
+    }
+    
+    /**
+     * Stores the inline contents of a locked inode as its block 0. The contents stay the same, so cached
+     * copies of the block remain valid.
+     */
+    private void moveToBlocks(Inode inode) {
+        byte[] inline = inode.getInlineData();
+        if (inline == null) {
+            return;
+        }
+        if (inline.length > 0) {
+            blockStore.write(inode.getIno(), List.of(new BlockStore.Block(0, inline)));
+        }
+        inode.setInlineData(null);
+        inodeRepository.saveAndFlush(inode);
+    }
+    
+    /**
+     * Moves the contents of a locked inode no larger than one block from block 0 into the row.
+     */
+    private void moveToInline(Inode inode) {
+        byte[] block = blockStore.readBlock(inode.getIno(), 0);
+        blockStore.deleteAll(inode.getIno());
+        inode.setInlineData(block != null ? block : new byte[0]);
+    }
+    
+    private byte[] inlineData(Long fileIno) {
+        Inode inode = entityManager.find(Inode.class, fileIno);
+        return inode != null ? inode.getInlineData() : null;
+    }
+    
+    /**
+     * Returns the new contents of block {@code blockNo} after {@code len} bytes were read into
+     * {@code buffer} at {@code blockOffset}. Nothing is ever stored past EOF and unwritten ranges are
+     * holes that read as zeros, so only a partially covered edge block below {@code storedEnd} has to
+     * be read back and merged with its current contents.
+     */
+    private byte[] mergeBlock(Long fileIno, long blockNo, byte[] buffer, int blockOffset, int len, long storedEnd) {
+        int blockSize = blockSize();
+        
+        if (blockOffset == 0 && len == blockSize) {
+            return buffer;
+        }
+        
+        byte[] existing = blockNo * blockSize < storedEnd ? blockStore.readBlock(fileIno, blockNo) : null;
+        if (existing == null) {
+            return Arrays.copyOf(buffer, blockOffset + len);
+        }
+        
+        byte[] content = Arrays.copyOf(existing, Math.max(existing.length, blockOffset + len));
+        System.arraycopy(buffer, blockOffset, content, blockOffset, len);
+        return content;
+    }
+    
+    @Override
+    public void fsync(String token, Long fileIno) {
+        validateToken(token);
+        
+        getAttributes(fileIno, "File not found");
+        flushWriteBack(fileIno);
+    }
+    
+    @Scheduled(fixedDelayString = "${vtfs.write-back.flush-interval-ms:1000}")
+    public void flushExpiredWriteBack() {
+        for (Long fileIno : writeBackBuffer.expiredInodes(properties.getWriteBack().getFlushIntervalMs())) {
+            flushWriteBackQuietly(fileIno);
+        }
+    }
+    
+    @PreDestroy
+    public void flushAllWriteBack() {
+        for (Long fileIno : writeBackBuffer.dirtyInodes()) {
+            flushWriteBackQuietly(fileIno);
+        }
+    }
+    
+    /**
+     * Persists the buffered ranges of a file in transactions of their own, so that a flush triggered from
+     * inside a request is not rolled back together with it. Returns once the ranges buffered before the call
+     * are stored, including those another thread was already flushing.
+     * <p>
+     * A batch flushes in its own transaction instead: a second connection would wait for the row locks the
+     * batch already holds. Ranges flushed by a batch that rolls back go back into the buffer.
+     */
+    private void flushWriteBack(Long fileIno) {
+        if (!writeBackBuffer.isDirty(fileIno)) {
+            return;
+        }
+        TransactionTemplate flushTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        // A batch flushes into its own transaction, whose claims stay open until the batch ends
+        Object owner;
+        if (inBatch()) {
+            owner = TransactionSynchronizationManager.getResource(BATCH_TRANSACTION);
+        } else {
+            owner = new Object();
+            flushTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        }
+        while (writeBackBuffer.hasUnclaimed(fileIno)) {
+            flushTransaction.executeWithoutResult(status -> flushClaimed(fileIno, owner));
+        }
+        if (!writeBackBuffer.awaitClaims(fileIno, owner, properties.getLocking().getWaitTimeoutMs())) {
+            throw new FileSystemException(FileSystemException.EAGAIN, "Timed out waiting for a write-back flush");
+        }
+    }
+    
+    /**
+     * Locks the blocks holding the unclaimed ranges of a file and claims the ranges inside them. Locking first
+     * keeps the order every writer takes, so a flush never holds buffered data while it waits for a lock; a
+     * write buffered meanwhile outside the locked blocks is left to the next round. The claim is completed
+     * with the transaction, which puts the ranges back into the buffer if it rolls back.
+     */
+    private void flushClaimed(Long fileIno, Object owner) {
+        WriteBackBuffer.Span span = writeBackBuffer.unclaimedSpan(fileIno);
+        if (span == null) {
+            return;
+        }
+        int blockSize = blockSize();
+        long firstBlock = span.start() / blockSize;
+        long lastBlock = (span.end() - 1) / blockSize;
+        // One lock over the whole span, so the flush never waits for a range while holding another
+        rangeLockManager.lock(fileIno, firstBlock, lastBlock);
+        
+        WriteBackBuffer.Claim claim = writeBackBuffer.claim(fileIno, firstBlock * blockSize, (lastBlock + 1) * blockSize, owner);
+        if (claim == null) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                writeBackBuffer.complete(claim, status == STATUS_COMMITTED);
+            }
+        });
+        for (WriteBackBuffer.Range range : claim.ranges()) {
+            try {
+                writeThrough(fileIno, range.start(),
+                        new ByteArrayInputStream(range.buffer(), 0, range.length()), range.length());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    private void flushWriteBackQuietly(Long fileIno) {
         try {
-            decodedData = URLDecoder.decode(data, StandardCharsets.UTF_8.name()).getBytes(StandardCharsets.UTF_8);
-        } catch (UnsupportedEncodingException e) {
-            throw new FileSystemException(FileSystemException.ENOENT, "Invalid data encoding");
+            flushWriteBack(fileIno);
+        } catch (FileSystemException e) {
+            if (e.getErrorCode() == FileSystemException.ENOENT) {
+                writeBackBuffer.discard(fileIno);
+            }
+            log.warn("Write-back flush failed for file ino={}: {}", fileIno, e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("Write-back flush failed for file ino={}", fileIno, e);
+        }
+    }
+    
+    /**
+     * Drops the buffered data of a file whose contents are going away. A batch may still roll back, so
+     * there the data is flushed into the batch instead, which removes it from storage like any other and
+     * returns it to the buffer if the batch is rolled back.
+     */
+    private void discardWriteBack(Long fileIno) {
+        if (inBatch()) {
+            flushWriteBack(fileIno);
+        } else {
+            writeBackBuffer.discard(fileIno);
         }
+    }
+    
+    private InodeAttributes withBufferedSize(InodeAttributes attributes) {
+        long size = writeBackBuffer.effectiveSize(attributes.getIno(), attributes.getSize());
+        if (size == attributes.getSize()) {
+            return attributes;
+        }
+        return new InodeAttributes(attributes.getIno(), attributes.getMode(), size, attributes.getNlink());
+    }
+    
+    private void invalidateBlocks(Long fileIno, long fromOffset, long toOffset) {
+        if (toOffset > fromOffset) {
+            blockCache.invalidate(fileIno, fromOffset / blockSize(), (toOffset - 1) / blockSize());
+        }
+    }
+    
+    private int blockSize() {
+        return properties.getStorage().getBlockSize();
+    }
+    
+    /**
+     * Size up to which new contents go inline. Inline contents never exceed one block, whatever the
+     * threshold was when they were written, so that is the bound checked for existing files.
+     */
+    private int inlineThreshold() {
+        return Math.min(properties.getStorage().getInlineThreshold(), blockSize());
+    }
+    
+    @Override
+    @Transactional
+    public Long seek(String token, Long fileIno, Long offset, Integer whence) {
+        validateToken(token);
         
-        int dataLen = decodedData.length;
+        flushWriteBack(fileIno);
         
-        if (offset > inode.getSize()) {
-            long gapSize = offset - inode.getSize();
-            byte[] zeros = new byte[(int) gapSize];
-            FileData gapChunk = new FileData(inode, inode.getSize(), zeros);
-            fileDataRepository.save(gapChunk);
-            inode.setSize(offset);
+        InodeAttributes inode = getAttributes(fileIno, "File not found");
+        
+        if (!inode.isRegularFile()) {
+            throw new FileSystemException(FileSystemException.ENOENT, "Not a regular file");
         }
         
-        long writeEnd = offset + dataLen;
-        List<FileData> overlappingChunks = fileDataRepository.findChunksInRange(fileIno, offset, writeEnd);
-        for (FileData chunk : overlappingChunks) {
-            fileDataRepository.delete(chunk);
+        if (whence != SEEK_DATA && whence != SEEK_HOLE) {
+            throw new FileSystemException(FileSystemException.EINVAL, "whence must be SEEK_DATA or SEEK_HOLE");
         }
         
-        int chunkSize = 4096;
-        int written = 0;
+        long fileSize = inode.getSize();
+        if (offset < 0 || offset >= fileSize) {
+            throw new FileSystemException(FileSystemException.ENXIO, "Offset is beyond end of file");
+        }
         
-        while (written < dataLen) {
-            long chunkOffset = offset + written;
-            int chunkLen = Math.min(chunkSize, dataLen - written);
-            
-            byte[] chunkData = new byte[chunkLen];
-            System.arraycopy(decodedData, written, chunkData, 0, chunkLen);
-            
-            FileData newChunk = new FileData(inode, chunkOffset, chunkData);
-            fileDataRepository.save(newChunk);
-            
-            written += chunkLen;
+        if (fileSize <= blockSize() && inlineData(fileIno) != null) {
+            return whence == SEEK_DATA ? offset : fileSize;
         }
         
-        long newSize = Math.max(inode.getSize(), offset + dataLen);
-        inode.setSize(newSize);
-        inodeRepository.save(inode);
+        int blockSize = blockSize();
+        long blockNo = offset / blockSize;
+        
+        if (whence == SEEK_DATA) {
+            Long dataBlock = blockStore.firstBlockFrom(fileIno, blockNo);
+            if (dataBlock == null || dataBlock * blockSize >= fileSize) {
+                throw new FileSystemException(FileSystemException.ENXIO, "No data past offset");
+            }
+            return Math.max(offset, dataBlock * blockSize);
+        }
         
-        log.info("Written {} bytes to file ino={} at offset={}", dataLen, fileIno, offset);
-        return (long) dataLen;
+        if (!blockStore.exists(fileIno, blockNo)) {
+            return offset;
+        }
+        Long lastDataBlock = blockStore.lastBlockOfRunFrom(fileIno, blockNo);
+        return Math.min(fileSize, (lastDataBlock + 1) * blockSize);
     }
     
+    @Override
     @Transactional
     public void delete(String token, Long dirIno, String name) {
         validateToken(token);
@@ -266,22 +724,36 @@ public class FileSystemService {
         DirectoryEntry entry = directoryEntryRepository.findByParentInoAndName(dirIno, name)
                 .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "File not found"));
         
+        unlinkEntry(entry);
+    }
+    
+    private void unlinkEntry(DirectoryEntry entry) {
         Inode inode = entry.getInode();
         
+        if (inode.getNlink() <= 1) {
+            discardWriteBack(inode.getIno());
+            rangeLockManager.lock(inode.getIno(), 0, RangeLockManager.TO_END);
+        }
+        
         directoryEntryRepository.delete(entry);
+        dentryCache.invalidate(entry.getParentIno(), entry.getName());
         
         inode.setNlink(inode.getNlink() - 1);
         
         if (inode.getNlink() == 0) {
-            fileDataRepository.deleteByInodeIno(inode.getIno());
+            invalidateBlocks(inode.getIno(), 0, inode.getSize());
+            blockStore.deleteAll(inode.getIno());
             inodeRepository.delete(inode);
+            inodeCache.evict(inode.getIno());
             log.info("Deleted file completely: ino={}", inode.getIno());
         } else {
             inodeRepository.save(inode);
-            log.info("Removed hard link: name={}, remaining nlink={}", name, inode.getNlink());
+            inodeCache.update(inode);
+            log.info("Removed hard link: name={}, remaining nlink={}", entry.getName(), inode.getNlink());
         }
     }
     
+    @Override
     @Transactional
     public void rmdir(String token, Long dirIno, String name) {
         validateToken(token);
@@ -300,12 +772,167 @@ public class FileSystemService {
             throw new FileSystemException(FileSystemException.ENOTEMPTY, "Directory is not empty");
         }
         
+        removeDirectory(entry);
+    }
+    
+    /**
+     * Removes a subtree in bounded transactions, depth first, so a crash or failure leaves a smaller but
+     * still consistent tree that can be removed again. The named entry itself goes last.
+     * <p>
+     * The walk keeps the path from the named directory down to the one being emptied, with a cookie per
+     * directory, so each transaction resumes where the previous one stopped instead of searching the tree
+     * again.
+     */
+    @Override
+    public Long rmtree(String token, Long dirIno, String name) {
+        validateToken(token);
+        
+        Deque<SubtreeFrame> path = new ArrayDeque<>();
+        boolean file = transactionTemplate.execute(status -> {
+            DirectoryEntry entry = directoryEntryRepository.findByParentInoAndName(dirIno, name)
+                    .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "Entry not found"));
+            
+            if (!entry.getInode().isDirectory()) {
+                unlinkEntry(entry);
+                return true;
+            }
+            path.push(new SubtreeFrame(entry.getId(), entry.getParentIno(), entry.getName(), entry.getInode().getIno()));
+            return false;
+        });
+        if (file) {
+            log.info("Removed tree: name={}, entries=1", name);
+            return 1L;
+        }
+        
+        int batchSize = properties.getStorage().getDeleteBatchSize();
+        long removed = 0;
+        while (!path.isEmpty()) {
+            removed += transactionTemplate.execute(status -> removeSubtreeBatch(path, batchSize));
+        }
+        
+        log.info("Removed tree: name={}, entries={}", name, removed);
+        return removed;
+    }
+    
+    /**
+     * Removes up to about {@code batchSize} entries of the directory on top of {@code path}, descending into
+     * subdirectories and removing directories once they are empty. Returns the number of entries removed.
+     * <p>
+     * Files are range locked before the directory row is locked, in the order writers take them. The
+     * directory row lock keeps new entries out of it until the transaction ends, which is what makes it
+     * safe to remove once it has been seen empty.
+     */
+    private int removeSubtreeBatch(Deque<SubtreeFrame> path, int batchSize) {
+        int removed = 0;
+        int work = 0;
+        while (!path.isEmpty() && work < batchSize) {
+            SubtreeFrame directory = path.peek();
+            int limit = batchSize - work;
+            List<SubtreeEntryView> seen = directoryEntryRepository.findChildrenAfter(directory.ino, directory.cookie,
+                    Limit.of(limit));
+            
+            Set<Long> locked = new TreeSet<>();
+            for (SubtreeEntryView child : seen) {
+                if ((child.getMode() & S_IFMT) != S_IFDIR) {
+                    locked.add(child.getIno());
+                }
+            }
+            locked.forEach(ino -> rangeLockManager.lock(ino, 0, RangeLockManager.TO_END));
+            inodeRepository.findByIdForUpdate(directory.ino);
+            
+            // Entries that appeared after the first read have no range lock yet and wait for the next round
+            List<SubtreeEntryView> children = seen.isEmpty() ? seen
+                    : directoryEntryRepository.findChildrenAfter(directory.ino, directory.cookie, Limit.of(limit));
+            List<SubtreeEntryView> files = new ArrayList<>();
+            SubtreeEntryView subdirectory = null;
+            boolean stopped = false;
+            for (SubtreeEntryView child : children) {
+                if ((child.getMode() & S_IFMT) == S_IFDIR) {
+                    subdirectory = child;
+                    break;
+                }
+                if (!locked.contains(child.getIno())) {
+                    stopped = true;
+                    break;
+                }
+                files.add(child);
+            }
+            
+            if (!files.isEmpty()) {
+                removeSubtreeFiles(files);
+                directory.cookie = files.get(files.size() - 1).getId();
+                removed += files.size();
+                work += files.size();
+            }
+            if (subdirectory != null) {
+                path.push(new SubtreeFrame(subdirectory.getId(), subdirectory.getParentIno(), subdirectory.getName(),
+                        subdirectory.getIno()));
+                work++;
+            } else if (!stopped && children.size() < limit) {
+                if (directoryEntryRepository.countByParentInoExcludingDots(directory.ino) == 0) {
+                    removeSubtreeDirectory(directory);
+                    path.pop();
+                    removed++;
+                    work++;
+                } else {
+                    // Entries were added behind the cookie since the directory was first read
+                    directory.cookie = 0;
+                }
+            }
+        }
+        return removed;
+    }
+    
+    private void removeSubtreeFiles(List<SubtreeEntryView> entries) {
+        List<Long> entryIds = new ArrayList<>(entries.size());
+        Map<Long, Integer> removedLinks = new HashMap<>();
+        Map<Long, Long> sizes = new HashMap<>();
+        for (SubtreeEntryView entry : entries) {
+            entryIds.add(entry.getId());
+            dentryCache.invalidate(entry.getParentIno(), entry.getName());
+            removedLinks.merge(entry.getIno(), 1, Integer::sum);
+            sizes.put(entry.getIno(), entry.getSize());
+        }
+        
+        directoryEntryRepository.deleteByIdIn(entryIds);
+        
+        Map<Integer, List<Long>> inosByLinks = new HashMap<>();
+        removedLinks.forEach((ino, links) -> inosByLinks.computeIfAbsent(links, key -> new ArrayList<>()).add(ino));
+        inosByLinks.forEach((links, inos) -> inodeRepository.decrementNlink(inos, links));
+        
+        // Files still linked from outside the subtree keep their inode and data
+        List<Long> unlinked = inodeRepository.findUnlinked(removedLinks.keySet());
+        if (!unlinked.isEmpty()) {
+            for (Long ino : unlinked) {
+                discardWriteBack(ino);
+                invalidateBlocks(ino, 0, sizes.get(ino));
+            }
+            blockStore.deleteAll(unlinked);
+            inodeRepository.deleteByInoIn(unlinked);
+        }
+        
+        removedLinks.keySet().forEach(inodeCache::evict);
+    }
+    
+    private void removeSubtreeDirectory(SubtreeFrame directory) {
+        directoryEntryRepository.deleteByIdIn(List.of(directory.entryId));
+        dentryCache.invalidate(directory.parentIno, directory.name);
+        inodeRepository.deleteByInoIn(List.of(directory.ino));
+        inodeCache.evict(directory.ino);
+    }
+    
+    private void removeDirectory(DirectoryEntry entry) {
+        Inode inode = entry.getInode();
+        
         directoryEntryRepository.delete(entry);
+        dentryCache.invalidate(entry.getParentIno(), entry.getName());
         inodeRepository.delete(inode);
+        inodeCache.evict(inode.getIno());
         
-        log.info("Removed directory: name={}, ino={}", name, inode.getIno());
+        log.info("Removed directory: name={}, ino={}", entry.getName(), inode.getIno());
     }
     
+    @Override
     @Transactional
     public void link(String token, Long fileIno, Long dirIno, String name) {
         validateToken(token);
@@ -317,8 +944,7 @@ public class FileSystemService {
             throw new FileSystemException(FileSystemException.EPERM, "Cannot create hard link to directory");
         }
         
-        Inode parentDir = inodeRepository.findById(dirIno)
-                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "Parent directory not found"));
+        InodeAttributes parentDir = getAttributes(dirIno, "Parent directory not found");
         
         if (!parentDir.isDirectory()) {
             throw new FileSystemException(FileSystemException.ENOTDIR, "Parent is not a directory");
@@ -330,17 +956,155 @@ public class FileSystemService {
         
         DirectoryEntry entry = new DirectoryEntry(dirIno, name, inode);
         directoryEntryRepository.save(entry);
+        dentryCache.invalidate(dirIno, name);
         
         inode.setNlink(inode.getNlink() + 1);
         inodeRepository.save(inode);
+        inodeCache.update(inode);
         
         log.info("Created hard link: name={}, ino={}, nlink={}", name, fileIno, inode.getNlink());
     }
     
+    @Override
     @Transactional
-    public void truncate(String token, Long fileIno) {
+    public Long cloneFile(String token, Long fileIno, Long dirIno, String name) {
         validateToken(token);
         
+        flushWriteBack(fileIno);
+        rangeLockManager.lock(fileIno, 0, RangeLockManager.TO_END);
+        
+        Inode source = inodeRepository.findByIdForUpdate(fileIno)
+                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "File not found"));
+        
+        if (!source.isRegularFile()) {
+            throw new FileSystemException(FileSystemException.EISDIR, "Cannot clone a directory");
+        }
+        
+        InodeAttributes parentDir = getAttributes(dirIno, "Parent directory not found");
+        
+        if (!parentDir.isDirectory()) {
+            throw new FileSystemException(FileSystemException.ENOTDIR, "Parent is not a directory");
+        }
+        
+        if (directoryEntryRepository.existsByParentInoAndName(dirIno, name)) {
+            throw new FileSystemException(FileSystemException.EEXIST, "File already exists");
+        }
+        
+        Inode clone = new Inode(source.getMode(), source.getSize(), 1);
+        clone.setInlineData(source.getInlineData());
+        clone = inodeRepository.saveAndFlush(clone);
+        inodeCache.update(clone);
+        
+        DirectoryEntry entry = new DirectoryEntry(dirIno, name, clone);
+        directoryEntryRepository.save(entry);
+        dentryCache.invalidate(dirIno, name);
+        
+        blockStore.copy(fileIno, clone.getIno());
+        
+        log.info("Cloned file: ino={} -> name={}, ino={}, size={}", fileIno, name, clone.getIno(), clone.getSize());
+        return clone.getIno();
+    }
+    
+    @Override
+    @Transactional
+    public void rename(String token, Long dirIno, String name, Long newDirIno, String newName, boolean replace) {
+        validateToken(token);
+        
+        DirectoryEntry entry = directoryEntryRepository.findByParentInoAndName(dirIno, name)
+                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "Source not found"));
+        
+        if (dirIno.equals(newDirIno) && name.equals(newName)) {
+            return;
+        }
+        
+        InodeAttributes parentDir = getAttributes(newDirIno, "Destination directory not found");
+        
+        if (!parentDir.isDirectory()) {
+            throw new FileSystemException(FileSystemException.ENOTDIR, "Destination is not a directory");
+        }
+        
+        Inode inode = entry.getInode();
+        
+        if (inode.isDirectory()) {
+            // Directory moves are serialized on the root inode so two of them cannot together form a cycle
+            inodeRepository.findByIdForUpdate(ROOT_INODE);
+            checkNotDescendant(inode.getIno(), newDirIno);
+        }
+        
+        Optional<DirectoryEntry> existing = directoryEntryRepository.findByParentInoAndName(newDirIno, newName);
+        if (existing.isPresent()) {
+            if (!replace) {
+                throw new FileSystemException(FileSystemException.EEXIST, "File already exists");
+            }
+            
+            DirectoryEntry target = existing.get();
+            Inode targetInode = target.getInode();
+            
+            if (targetInode.getIno().equals(inode.getIno())) {
+                return;
+            }
+            
+            if (inode.isDirectory()) {
+                if (!targetInode.isDirectory()) {
+                    throw new FileSystemException(FileSystemException.ENOTDIR, "Cannot replace a file with a directory");
+                }
+                if (directoryEntryRepository.countByParentInoExcludingDots(targetInode.getIno()) > 0) {
+                    throw new FileSystemException(FileSystemException.ENOTEMPTY, "Directory is not empty");
+                }
+                removeDirectory(target);
+            } else {
+                if (targetInode.isDirectory()) {
+                    throw new FileSystemException(FileSystemException.EISDIR, "Cannot replace a directory with a file");
+                }
+                unlinkEntry(target);
+            }
+            
+            // Hibernate flushes updates before deletes, so the replaced row has to be gone before the
+            // moved one takes over its (parent_ino, name)
+            directoryEntryRepository.flush();
+        }
+        
+        entry.setParentIno(newDirIno);
+        entry.setName(newName);
+        directoryEntryRepository.save(entry);
+        dentryCache.invalidate(dirIno, name);
+        dentryCache.invalidate(newDirIno, newName);
+        
+        log.info("Renamed entry: {}/{} -> {}/{}, ino={}", dirIno, name, newDirIno, newName, inode.getIno());
+    }
+    
+    private void checkNotDescendant(Long dirIno, Long ino) {
+        Long current = ino;
+        while (!current.equals(ROOT_INODE)) {
+            if (current.equals(dirIno)) {
+                throw new FileSystemException(FileSystemException.EINVAL, "Cannot move a directory into itself");
+            }
+            List<DirectoryEntry> parents = directoryEntryRepository.findByInodeIno(current);
+            if (parents.isEmpty()) {
+                return;
+            }
+            current = parents.get(0).getParentIno();
+        }
+    }
+    
+    @Override
+    @Transactional
+    public void truncate(String token, Long fileIno, Long length) {
+        validateToken(token);
+        
+        if (length < 0) {
+            throw new FileSystemException(FileSystemException.EINVAL, "Length must not be negative");
+        }
+        
+        if (length == 0) {
+            discardWriteBack(fileIno);
+        } else {
+            flushWriteBack(fileIno);
+        }
+        // Moving the contents into the row rewrites block 0 whatever the new length
+        boolean mayInline = length <= inlineThreshold();
+        rangeLockManager.lock(fileIno, mayInline ? 0 : length / blockSize(), RangeLockManager.TO_END);
+        
         Inode inode = inodeRepository.findByIdForUpdate(fileIno)
                 .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "File not found"));
         
@@ -348,22 +1112,101 @@ public class FileSystemService {
             throw new FileSystemException(FileSystemException.ENOENT, "Not a regular file");
         }
         
-        fileDataRepository.deleteByInodeIno(fileIno);
+        byte[] inline = inode.getInlineData();
+        if (length < inode.getSize()) {
+            invalidateBlocks(fileIno, length, inode.getSize());
+            if (inline != null) {
+                inode.setInlineData(Arrays.copyOf(inline, (int) Math.min(inline.length, length)));
+            } else if (length == 0) {
+                blockStore.deleteAll(fileIno);
+            } else {
+                trimBlocks(fileIno, length);
+                if (mayInline) {
+                    moveToInline(inode);
+                }
+            }
+        } else if (inline != null && !mayInline) {
+            moveToBlocks(inode);
+        }
         
-        inode.setSize(0L);
+        inode.setSize(length);
         inodeRepository.save(inode);
+        inodeCache.update(inode);
+        
+        log.info("Truncated file: ino={}, length={}", fileIno, length);
+    }
+    
+    /**
+     * Drops every block past {@code length} with one range delete and cuts the block holding the new end
+     * down to it, so that growing the file again exposes a hole rather than the old bytes.
+     */
+    private void trimBlocks(Long fileIno, long length) {
+        int blockSize = blockSize();
+        long boundaryBlock = length / blockSize;
+        int boundaryLength = (int) (length % blockSize);
+        
+        blockStore.delete(fileIno, boundaryLength == 0 ? boundaryBlock : boundaryBlock + 1, Long.MAX_VALUE);
+        if (boundaryLength == 0) {
+            return;
+        }
         
-        log.info("Truncated file: ino={}", fileIno);
+        byte[] block = blockStore.readBlock(fileIno, boundaryBlock);
+        if (block != null && block.length > boundaryLength) {
+            blockStore.delete(fileIno, boundaryBlock, boundaryBlock);
+            blockStore.write(fileIno, List.of(new BlockStore.Block(boundaryBlock, Arrays.copyOf(block, boundaryLength))));
+        }
     }
     
+    @Override
     @Transactional
     public Long size(String token, Long fileIno) {
         validateToken(token);
         
-        Inode inode = inodeRepository.findById(fileIno)
-                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, "File not found"));
-        
-        return inode.getSize();
+        return withBufferedSize(getAttributes(fileIno, "File not found")).getSize();
+    }
+    
+    /**
+     * Runs the operations in one transaction that their own transactions join. Each operation starts with an
+     * empty persistence context, as it would on its own, since bulk updates bypass the managed entities.
+     */
+    @Override
+    public void atomically(List<BatchOperation> operations) throws IOException {
+        TransactionTemplate batchTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        batchTransaction.setName(BATCH_TRANSACTION);
+        try {
+            batchTransaction.executeWithoutResult(status -> {
+                // Identifies the batch as the owner of the write-back claims it makes
+                TransactionSynchronizationManager.bindResource(BATCH_TRANSACTION, new Object());
+                try {
+                    for (BatchOperation operation : operations) {
+                        try {
+                            operation.run();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        entityManager.flush();
+                        entityManager.clear();
+                    }
+                } finally {
+                    TransactionSynchronizationManager.unbindResource(BATCH_TRANSACTION);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    private static boolean inBatch() {
+        return BATCH_TRANSACTION.equals(TransactionSynchronizationManager.getCurrentTransactionName());
+    }
+    
+    private InodeAttributes getAttributes(Long ino, String notFoundMessage) {
+        return loadAttributes(ino)
+                .orElseThrow(() -> new FileSystemException(FileSystemException.ENOENT, notFoundMessage));
+    }
+    
+    private Optional<InodeAttributes> loadAttributes(Long ino) {
+        return inodeCache.get(ino, inodeRepository::findAttributes);
     }
     
     private void validateToken(String token) {
@@ -371,4 +1214,84 @@ public class FileSystemService {
             throw new FileSystemException(FileSystemException.EPERM, "Invalid token");
         }
     }
+    
+    /**
+     * A directory on the path {@link #rmtree} is emptying, and the id of the last entry removed from it.
+     */
+    private static final class SubtreeFrame {
+        
+        private final Long entryId;
+        private final Long parentIno;
+        private final String name;
+        private final Long ino;
+        private long cookie;
+        
+        private SubtreeFrame(Long entryId, Long parentIno, String name, Long ino) {
+            this.entryId = entryId;
+            this.parentIno = parentIno;
+            this.name = name;
+            this.ino = ino;
+        }
+    }
+    
+    private static final class ByteArraySink implements ReadSink {
+        
+        private byte[] result = new byte[0];
+        private int position;
+        
+        @Override
+        public void begin(long offset, long length, long fileSize) {
+            result = new byte[(int) length];
+        }
+        
+        @Override
+        public void write(byte[] data, int off, int len) {
+            System.arraycopy(data, off, result, position, len);
+            position += len;
+        }
+    }
+    
+    /**
+     * Collects the blocks of one write and stores them a batch at a time: the blocks that may already
+     * exist (those below the old EOF, always one contiguous run) are removed with a single range DELETE
+     * and every block is inserted fresh, so Hibernate can send the inserts as one JDBC batch.
+     */
+    private final class BlockBatch {
+        
+        private final Long fileIno;
+        private final long storedEnd;
+        private final List<BlockStore.Block> pending = new ArrayList<>();
+        private long firstReplaced = -1;
+        private long lastReplaced = -1;
+        
+        private BlockBatch(Long fileIno, long storedEnd) {
+            this.fileIno = fileIno;
+            this.storedEnd = storedEnd;
+        }
+        
+        private void add(long blockNo, byte[] content) {
+            if (blockNo * blockSize() < storedEnd) {
+                if (firstReplaced < 0) {
+                    firstReplaced = blockNo;
+                }
+                lastReplaced = blockNo;
+            }
+            pending.add(new BlockStore.Block(blockNo, content));
+            if (pending.size() >= properties.getStorage().getWriteBatchSize()) {
+                flush();
+            }
+        }
+        
+        private void flush() {
+            if (firstReplaced >= 0) {
+                blockStore.delete(fileIno, firstReplaced, lastReplaced);
+                firstReplaced = -1;
+                lastReplaced = -1;
+            }
+            if (!pending.isEmpty()) {
+                blockStore.write(fileIno, pending);
+                pending.clear();
+            }
+        }
+    }
 }
@@ -0,0 +1,220 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exclusive locks on block ranges of a file, held until the current transaction completes.
+ * <p>
+ * Writers lock only the blocks they touch, so writes to disjoint regions of one file run in parallel; the
+ * block is the unit because a partial write reads, merges and rewrites its whole block. In "local" mode the
+ * locks live in this process. In "database" mode they are PostgreSQL transaction-scoped advisory locks seen
+ * by every node on the database: a bounded range takes the file's lock shared and the locks of the stripes
+ * it spans exclusively, in ascending order, while an open-ended range takes the file's lock exclusively.
+ * <p>
+ * Ranges already covered by the transaction are not locked again. Locks belong to the physical transaction:
+ * one started with REQUIRES_NEW inside another gets an owner of its own, since its advisory locks live on its
+ * own connection and end with it. Range locks must be taken before any row lock, so that a range wait never
+ * closes a cycle with locks held inside the database.
+ */
+@Component
+@Profile("!memory")
+@RequiredArgsConstructor
+public class RangeLockManager implements StatsProvider {
+    
+    public static final long TO_END = Long.MAX_VALUE;
+    
+    private static final long FILE_STRIPE = -1;
+    
+    private final VtfsProperties properties;
+    private final EntityManager entityManager;
+    
+    private final ConcurrentHashMap<Long, LockedFile> files = new ConcurrentHashMap<>();
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    
+    /**
+     * Locks blocks {@code firstBlock..lastBlock} of an inode ({@link #TO_END} for everything from
+     * {@code firstBlock} on) until the current transaction commits or rolls back.
+     */
+    public void lock(long ino, long firstBlock, long lastBlock) {
+        Owner owner = currentOwner();
+        if (owner.covers(ino, firstBlock, lastBlock)) {
+            return;
+        }
+        if ("database".equals(properties.getLocking().getMode())) {
+            lockInDatabase(ino, firstBlock, lastBlock);
+        } else {
+            lockLocally(owner, ino, firstBlock, lastBlock);
+        }
+        owner.ranges.add(new Range(ino, firstBlock, lastBlock));
+        acquired.increment();
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("range_locks.acquired", acquired.sum());
+        result.put("range_locks.contended", contended.sum());
+        result.put("range_locks.timeouts", timeouts.sum());
+        result.put("range_locks.locked_files", files.size());
+        return result;
+    }
+    
+    private void lockLocally(Owner owner, long ino, long firstBlock, long lastBlock) {
+        LockedFile file = files.compute(ino, (key, existing) -> {
+            LockedFile locked = existing != null ? existing : new LockedFile();
+            locked.users++;
+            return locked;
+        });
+        owner.uses.merge(ino, 1, Integer::sum);
+        
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(properties.getLocking().getWaitTimeoutMs());
+        synchronized (file) {
+            boolean waited = false;
+            while (file.conflicts(owner, firstBlock, lastBlock)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeouts.increment();
+                    throw new FileSystemException(FileSystemException.EAGAIN, "Timed out waiting for a byte-range lock");
+                }
+                if (!waited) {
+                    contended.increment();
+                    waited = true;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(file, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new FileSystemException(FileSystemException.EAGAIN, "Interrupted waiting for a byte-range lock");
+                }
+            }
+            file.held.add(new Held(owner, firstBlock, lastBlock));
+        }
+    }
+    
+    private void lockInDatabase(long ino, long firstBlock, long lastBlock) {
+        if (lastBlock == TO_END) {
+            advisoryLock(key(ino, FILE_STRIPE), false);
+            return;
+        }
+        advisoryLock(key(ino, FILE_STRIPE), true);
+        int stripeBlocks = properties.getLocking().getStripeBlocks();
+        for (long stripe = firstBlock / stripeBlocks; stripe <= lastBlock / stripeBlocks; stripe++) {
+            advisoryLock(key(ino, stripe), false);
+        }
+    }
+    
+    private void advisoryLock(long key, boolean shared) {
+        entityManager.createNativeQuery(shared
+                        ? "SELECT COUNT(*) FROM (SELECT pg_advisory_xact_lock_shared(:key)) AS l"
+                        : "SELECT COUNT(*) FROM (SELECT pg_advisory_xact_lock(:key)) AS l")
+                .setParameter("key", key)
+                .getSingleResult();
+    }
+    
+    /**
+     * Advisory lock keys share one 64-bit space with every other user of the database; a collision only
+     * makes two unrelated ranges wait for each other.
+     */
+    private static long key(long ino, long stripe) {
+        return ino * 0x9E3779B97F4A7C15L + stripe;
+    }
+    
+    private Owner currentOwner() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Range locks require an active transaction");
+        }
+        Owner owner = (Owner) TransactionSynchronizationManager.getResource(this);
+        if (owner != null) {
+            return owner;
+        }
+        Owner created = new Owner();
+        TransactionSynchronizationManager.bindResource(this, created);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void suspend() {
+                TransactionSynchronizationManager.unbindResource(RangeLockManager.this);
+            }
+            
+            @Override
+            public void resume() {
+                TransactionSynchronizationManager.bindResource(RangeLockManager.this, created);
+            }
+            
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(RangeLockManager.this);
+                release(created);
+            }
+        });
+        return created;
+    }
+    
+    private void release(Owner owner) {
+        for (Map.Entry<Long, Integer> use : owner.uses.entrySet()) {
+            LockedFile file = files.get(use.getKey());
+            synchronized (file) {
+                file.held.removeIf(held -> held.owner() == owner);
+                file.notifyAll();
+            }
+            files.computeIfPresent(use.getKey(), (key, locked) -> {
+                locked.users -= use.getValue();
+                return locked.users == 0 ? null : locked;
+            });
+        }
+    }
+    
+    private static final class LockedFile {
+        
+        private final List<Held> held = new ArrayList<>();
+        private int users;
+        
+        private boolean conflicts(Owner owner, long firstBlock, long lastBlock) {
+            for (Held range : held) {
+                if (range.owner() != owner && range.firstBlock() <= lastBlock && firstBlock <= range.lastBlock()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static final class Owner {
+        
+        private final List<Range> ranges = new ArrayList<>();
+        private final Map<Long, Integer> uses = new HashMap<>();
+        
+        private boolean covers(long ino, long firstBlock, long lastBlock) {
+            for (Range range : ranges) {
+                if (range.ino() == ino && range.firstBlock() <= firstBlock && lastBlock <= range.lastBlock()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private record Range(long ino, long firstBlock, long lastBlock) {
+    }
+    
+    private record Held(Owner owner, long firstBlock, long lastBlock) {
+    }
+}
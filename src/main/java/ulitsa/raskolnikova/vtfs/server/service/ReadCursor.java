@@ -0,0 +1,44 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import java.io.IOException;
+
+/**
+ * Emits stored blocks of a read range in block order and fills everything in between (holes and
+ * the tails of short blocks) with zeros.
+ */
+public final class ReadCursor {
+    
+    private static final byte[] ZEROS = new byte[8192];
+    
+    private final ReadSink sink;
+    private final long endOffset;
+    private long position;
+    
+    public ReadCursor(ReadSink sink, long offset, long endOffset) {
+        this.sink = sink;
+        this.position = offset;
+        this.endOffset = endOffset;
+    }
+    
+    public void emit(long blockStart, byte[] data, int length) throws IOException {
+        long readStart = Math.max(position, blockStart);
+        long readEnd = Math.min(endOffset, blockStart + length);
+        if (readStart < readEnd) {
+            writeZeros(readStart - position);
+            sink.write(data, (int) (readStart - blockStart), (int) (readEnd - readStart));
+            position = readEnd;
+        }
+    }
+    
+    public void finish() throws IOException {
+        writeZeros(endOffset - position);
+    }
+    
+    private void writeZeros(long count) throws IOException {
+        while (count > 0) {
+            int n = (int) Math.min(count, ZEROS.length);
+            sink.write(ZEROS, 0, n);
+            count -= n;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import java.io.IOException;
+
+/**
+ * Receives the bytes of a read as they are fetched from storage.
+ * {@link #begin} is called exactly once, before any data, with the resolved range;
+ * the following {@link #write} calls deliver exactly {@code length} bytes in order.
+ */
+public interface ReadSink {
+    
+    void begin(long offset, long length, long fileSize) throws IOException;
+    
+    void write(byte[] data, int off, int len) throws IOException;
+}
@@ -0,0 +1,477 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds not yet persisted writes per inode when write-back mode is enabled.
+ * <p>
+ * Each inode keeps a sorted set of disjoint dirty ranges; a new write is merged with every range it overlaps
+ * or touches, so a stream of small sequential writes collapses into one growing range. A flush first
+ * {@link #claim claims} ranges, which stay visible to readers while they are being persisted, and then
+ * {@link #complete completes} the claim: persisted ranges are dropped, failed ones go back under whatever was
+ * buffered since. The inode's monitor is only held while the ranges are handed over, never during the flush.
+ */
+@Component
+@Profile("!memory")
+public class WriteBackBuffer implements StatsProvider {
+    
+    private final VtfsProperties.WriteBack config;
+    private final ConcurrentHashMap<Long, DirtyFile> files = new ConcurrentHashMap<>();
+    private final AtomicLong totalDirtyBytes = new AtomicLong();
+    private final LongAdder bufferedWrites = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedBytes = new LongAdder();
+    
+    public WriteBackBuffer(VtfsProperties properties) {
+        this.config = properties.getWriteBack();
+    }
+    
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+    
+    public int getMaxInodeBytes() {
+        return config.getMaxInodeBytes();
+    }
+    
+    /**
+     * Buffers a write and returns true if the inode has reached a flush threshold.
+     */
+    public boolean buffer(long ino, long offset, byte[] data) {
+        while (true) {
+            DirtyFile file = files.computeIfAbsent(ino, key -> new DirtyFile());
+            synchronized (file) {
+                if (file.removed) {
+                    continue;
+                }
+                long added = file.add(offset, data);
+                long total = totalDirtyBytes.addAndGet(added);
+                bufferedWrites.increment();
+                return file.dirtyBytes >= config.getMaxInodeBytes() || total >= config.getMaxTotalBytes();
+            }
+        }
+    }
+    
+    /**
+     * Returns the file size as seen by clients: the stored size extended by buffered writes past it.
+     */
+    public long effectiveSize(long ino, long storedSize) {
+        DirtyFile file = files.get(ino);
+        if (file == null) {
+            return storedSize;
+        }
+        synchronized (file) {
+            long end = file.end();
+            for (Claim claim : file.claims) {
+                end = Math.max(end, claim.end());
+            }
+            return Math.max(storedSize, end);
+        }
+    }
+    
+    /**
+     * Wraps {@code sink} so that buffered bytes inside {@code [offset, endOffset)} replace the stored ones.
+     */
+    public ReadSink overlay(long ino, long offset, long endOffset, ReadSink sink) {
+        DirtyFile file = files.get(ino);
+        if (file == null) {
+            return sink;
+        }
+        // Claimed ranges are older than the buffered ones, so these are laid over them
+        DirtyFile view = new DirtyFile();
+        synchronized (file) {
+            for (Claim claim : file.claims) {
+                for (Range range : claim.ranges) {
+                    view.addSlice(range.start(), range.buffer(), range.length(), offset, endOffset);
+                }
+            }
+            for (DirtyRange range : file.ranges.values()) {
+                view.addSlice(range.start, range.buffer, range.length, offset, endOffset);
+            }
+        }
+        if (view.ranges.isEmpty()) {
+            return sink;
+        }
+        List<Range> slices = new ArrayList<>(view.ranges.size());
+        for (DirtyRange range : view.ranges.values()) {
+            slices.add(new Range(range.start, range.buffer, range.length));
+        }
+        return new OverlaySink(sink, slices);
+    }
+    
+    /**
+     * Returns true if {@code ino} has buffered or claimed ranges.
+     */
+    public boolean isDirty(long ino) {
+        return files.containsKey(ino);
+    }
+    
+    /**
+     * Returns true if {@code ino} has buffered ranges that no flush has claimed yet.
+     */
+    public boolean hasUnclaimed(long ino) {
+        DirtyFile file = files.get(ino);
+        if (file == null) {
+            return false;
+        }
+        synchronized (file) {
+            return !file.ranges.isEmpty();
+        }
+    }
+    
+    /**
+     * Returns the span from the start of the first to the end of the last unclaimed range of {@code ino},
+     * or null if there are none.
+     */
+    public Span unclaimedSpan(long ino) {
+        DirtyFile file = files.get(ino);
+        if (file == null) {
+            return null;
+        }
+        synchronized (file) {
+            return file.ranges.isEmpty() ? null : new Span(file.ranges.firstKey(), file.end());
+        }
+    }
+    
+    /**
+     * Returns the inodes with unclaimed ranges whose oldest buffered write is older than {@code maxAgeMillis}.
+     */
+    public List<Long> expiredInodes(long maxAgeMillis) {
+        long deadline = System.nanoTime() - maxAgeMillis * 1_000_000L;
+        List<Long> result = new ArrayList<>();
+        files.forEach((ino, file) -> {
+            if (file.firstDirtyAt - deadline <= 0 && hasUnclaimed(ino)) {
+                result.add(ino);
+            }
+        });
+        return result;
+    }
+    
+    public List<Long> dirtyInodes() {
+        return new ArrayList<>(files.keySet());
+    }
+    
+    /**
+     * Takes the unclaimed ranges of {@code ino} lying within {@code [fromOffset, toOffset)} for a flush by
+     * {@code owner}, or returns null if there are none. The caller must pass the claim to {@link #complete}
+     * once the ranges are persisted or the flush has failed. Writes buffered in the meantime are kept apart
+     * from the claim.
+     */
+    public Claim claim(long ino, long fromOffset, long toOffset, Object owner) {
+        DirtyFile file = files.get(ino);
+        if (file == null) {
+            return null;
+        }
+        synchronized (file) {
+            if (file.removed) {
+                return null;
+            }
+            List<Range> ranges = new ArrayList<>();
+            long bytes = 0;
+            Iterator<DirtyRange> candidates = file.ranges.tailMap(fromOffset, true).values().iterator();
+            while (candidates.hasNext()) {
+                DirtyRange range = candidates.next();
+                if (range.end() > toOffset) {
+                    break;
+                }
+                ranges.add(new Range(range.start, range.buffer, range.length));
+                bytes += range.length;
+                candidates.remove();
+            }
+            if (ranges.isEmpty()) {
+                return null;
+            }
+            file.dirtyBytes -= bytes;
+            Claim claim = new Claim(ino, file, owner, ranges, bytes);
+            file.claims.add(claim);
+            return claim;
+        }
+    }
+    
+    /**
+     * Ends a flush: persisted ranges are dropped, while the ranges of a failed flush are buffered again
+     * underneath the writes that arrived after they were claimed.
+     */
+    public void complete(Claim claim, boolean persisted) {
+        DirtyFile file = claim.file;
+        synchronized (file) {
+            if (!file.claims.remove(claim)) {
+                return;
+            }
+            if (persisted) {
+                totalDirtyBytes.addAndGet(-claim.bytes);
+                flushes.increment();
+                flushedBytes.add(claim.bytes);
+            } else if (file.removed) {
+                totalDirtyBytes.addAndGet(-claim.bytes);
+            } else {
+                TreeMap<Long, DirtyRange> newer = new TreeMap<>(file.ranges);
+                long before = file.dirtyBytes + claim.bytes;
+                file.ranges.clear();
+                file.dirtyBytes = 0;
+                for (Range range : claim.ranges) {
+                    file.add(range.start(), range.buffer(), range.length());
+                }
+                for (DirtyRange range : newer.values()) {
+                    file.add(range.start, range.buffer, range.length);
+                }
+                totalDirtyBytes.addAndGet(file.dirtyBytes - before);
+            }
+            if (!file.removed && file.ranges.isEmpty() && file.claims.isEmpty()) {
+                file.removed = true;
+                files.remove(claim.ino, file);
+            }
+            file.notifyAll();
+        }
+    }
+    
+    /**
+     * Waits up to {@code timeoutMillis} until no flush of {@code ino} by another owner than {@code owner} is
+     * in progress and returns false if one still is. The owner's own claims end with its transaction.
+     */
+    public boolean awaitClaims(long ino, Object owner, long timeoutMillis) {
+        DirtyFile file = files.get(ino);
+        if (file == null) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (file) {
+            while (file.claims.stream().anyMatch(claim -> claim.owner != owner)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(file, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    public void discard(long ino) {
+        DirtyFile file = files.get(ino);
+        if (file == null) {
+            return;
+        }
+        synchronized (file) {
+            if (!file.removed) {
+                remove(ino, file);
+            }
+        }
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("write_back.dirty_inodes", files.size());
+        result.put("write_back.dirty_bytes", totalDirtyBytes.get());
+        result.put("write_back.buffered_writes", bufferedWrites.sum());
+        result.put("write_back.flushes", flushes.sum());
+        result.put("write_back.flushed_bytes", flushedBytes.sum());
+        return result;
+    }
+    
+    private void remove(long ino, DirtyFile file) {
+        file.removed = true;
+        files.remove(ino, file);
+        // Claimed bytes leave the total when their flush completes
+        totalDirtyBytes.addAndGet(-file.dirtyBytes);
+        file.ranges.clear();
+        file.dirtyBytes = 0;
+    }
+    
+    /**
+     * {@code length} bytes of {@code buffer} that belong at file offset {@code start}.
+     */
+    public record Range(long start, byte[] buffer, int length) {
+        
+        public long end() {
+            return start + length;
+        }
+    }
+    
+    /**
+     * Bytes {@code [start, end)} of a file.
+     */
+    public record Span(long start, long end) {
+    }
+    
+    /**
+     * Ranges taken from the buffer by one flush, in file order.
+     */
+    public static final class Claim {
+        
+        private final long ino;
+        private final DirtyFile file;
+        private final Object owner;
+        private final List<Range> ranges;
+        private final long bytes;
+        
+        private Claim(long ino, DirtyFile file, Object owner, List<Range> ranges, long bytes) {
+            this.ino = ino;
+            this.file = file;
+            this.owner = owner;
+            this.ranges = ranges;
+            this.bytes = bytes;
+        }
+        
+        public List<Range> ranges() {
+            return ranges;
+        }
+        
+        private long end() {
+            return ranges.get(ranges.size() - 1).end();
+        }
+    }
+    
+    private static final class DirtyFile {
+        
+        private final TreeMap<Long, DirtyRange> ranges = new TreeMap<>();
+        private final List<Claim> claims = new ArrayList<>();
+        private final long firstDirtyAt = System.nanoTime();
+        private long dirtyBytes;
+        private boolean removed;
+        
+        private long add(long offset, byte[] data) {
+            return add(offset, data, data.length);
+        }
+        
+        /**
+         * Buffers the part of {@code length} bytes at {@code offset} that falls inside {@code [from, to)}.
+         */
+        private void addSlice(long offset, byte[] data, int length, long from, long to) {
+            long start = Math.max(offset, from);
+            long end = Math.min(offset + length, to);
+            if (start < end) {
+                add(start, Arrays.copyOfRange(data, (int) (start - offset), (int) (end - offset)));
+            }
+        }
+        
+        private long add(long offset, byte[] data, int dataLength) {
+            long end = offset + dataLength;
+            long before = 0;
+            
+            Map.Entry<Long, DirtyRange> floor = ranges.floorEntry(offset);
+            DirtyRange target;
+            if (floor != null && floor.getValue().end() >= offset) {
+                target = floor.getValue();
+                before += target.length;
+            } else {
+                target = new DirtyRange(offset);
+                ranges.put(offset, target);
+            }
+            
+            Iterator<DirtyRange> following = ranges.tailMap(target.start, false).values().iterator();
+            while (following.hasNext()) {
+                DirtyRange next = following.next();
+                if (next.start > Math.max(end, target.end())) {
+                    break;
+                }
+                before += next.length;
+                target.write(next.start, next.buffer, next.length);
+                following.remove();
+            }
+            target.write(offset, data, dataLength);
+            
+            long added = target.length - before;
+            dirtyBytes += added;
+            return added;
+        }
+        
+        private long end() {
+            return ranges.isEmpty() ? 0 : ranges.lastEntry().getValue().end();
+        }
+    }
+    
+    private static final class DirtyRange {
+        
+        private final long start;
+        private byte[] buffer = new byte[0];
+        private int length;
+        
+        private DirtyRange(long start) {
+            this.start = start;
+        }
+        
+        private long end() {
+            return start + length;
+        }
+        
+        private void write(long offset, byte[] data, int dataLength) {
+            int position = (int) (offset - start);
+            int newLength = Math.max(length, position + dataLength);
+            if (newLength > buffer.length) {
+                byte[] grown = new byte[Math.max(newLength, buffer.length * 2)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+            System.arraycopy(data, 0, buffer, position, dataLength);
+            length = newLength;
+        }
+    }
+    
+    private static final class OverlaySink implements ReadSink {
+        
+        private final ReadSink target;
+        private final List<Range> slices;
+        private int next;
+        private long position;
+        
+        private OverlaySink(ReadSink target, List<Range> slices) {
+            this.target = target;
+            this.slices = slices;
+        }
+        
+        @Override
+        public void begin(long offset, long length, long fileSize) throws IOException {
+            position = offset;
+            target.begin(offset, length, fileSize);
+        }
+        
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            long segmentStart = position;
+            long segmentEnd = position + len;
+            long cursor = segmentStart;
+            
+            while (cursor < segmentEnd) {
+                while (next < slices.size() && slices.get(next).end() <= cursor) {
+                    next++;
+                }
+                Range slice = next < slices.size() ? slices.get(next) : null;
+                if (slice == null || slice.start() >= segmentEnd) {
+                    target.write(data, off + (int) (cursor - segmentStart), (int) (segmentEnd - cursor));
+                    break;
+                }
+                if (slice.start() > cursor) {
+                    target.write(data, off + (int) (cursor - segmentStart), (int) (slice.start() - cursor));
+                    cursor = slice.start();
+                }
+                long overlapEnd = Math.min(segmentEnd, slice.end());
+                target.write(slice.buffer(), (int) (cursor - slice.start()), (int) (overlapEnd - cursor));
+                cursor = overlapEnd;
+            }
+            position = segmentEnd;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package ulitsa.raskolnikova.vtfs.server.stats;
+
+import java.util.Map;
+
+/**
+ * A component that reports counters for {@code /api/stats}. Keys should be prefixed with the
+ * component name, e.g. {@code inode_cache.hits}.
+ */
+public interface StatsProvider {
+    
+    Map<String, Number> stats();
+}
@@ -0,0 +1,67 @@
+package ulitsa.raskolnikova.vtfs.server.storage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Storage of file contents as fixed-size blocks addressed by (inode, block number).
+ * <p>
+ * Implementations hold only what is written: a block that was never stored (or was deleted) is a hole
+ * and reads as zeros, and blocks may be shorter than the block size. Payloads passed in and out are
+ * uncompressed. All methods run inside the caller's transaction.
+ */
+public interface BlockStore {
+    
+    /**
+     * Streams the stored blocks in {@code [firstBlock, lastBlock]} in block order, skipping holes.
+     */
+    void read(long ino, long firstBlock, long lastBlock, BlockSink sink) throws IOException;
+    
+    /**
+     * Returns the payload of one block, or {@code null} if it is a hole.
+     */
+    byte[] readBlock(long ino, long blockNo);
+    
+    /**
+     * Stores blocks that do not exist yet; callers delete the range they overwrite first.
+     */
+    void write(long ino, List<Block> blocks);
+    
+    void delete(long ino, long firstBlock, long lastBlock);
+    
+    void deleteAll(long ino);
+    
+    /**
+     * Deletes every block of the given inodes in set-based statements.
+     */
+    void deleteAll(Collection<Long> inos);
+    
+    /**
+     * Makes {@code targetIno}, which has no blocks yet, share every block of {@code sourceIno}. Shared
+     * blocks are not copied: a later write to either inode replaces only the blocks it touches, and a
+     * block's payload is freed once no inode references it.
+     */
+    void copy(long sourceIno, long targetIno);
+    
+    boolean exists(long ino, long blockNo);
+    
+    /**
+     * Returns the first stored block at or after {@code fromBlock}, or {@code null}.
+     */
+    Long firstBlockFrom(long ino, long fromBlock);
+    
+    /**
+     * Returns the last block of the run of consecutive stored blocks that contains {@code fromBlock}.
+     */
+    Long lastBlockOfRunFrom(long ino, long fromBlock);
+    
+    record Block(long blockNo, byte[] data) {
+    }
+    
+    @FunctionalInterface
+    interface BlockSink {
+        
+        void accept(long blockNo, byte[] data, int length) throws IOException;
+    }
+}
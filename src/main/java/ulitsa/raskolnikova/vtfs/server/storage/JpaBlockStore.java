@@ -0,0 +1,139 @@
+package ulitsa.raskolnikova.vtfs.server.storage;
+
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import ulitsa.raskolnikova.vtfs.server.codec.BlockCodecs;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.model.FileData;
+import ulitsa.raskolnikova.vtfs.server.model.FileDataId;
+import ulitsa.raskolnikova.vtfs.server.repository.FileDataRepository;
+import ulitsa.raskolnikova.vtfs.server.service.ChunkDeduplicator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Keeps block payloads in the file_data table, optionally compressed and deduplicated.
+ */
+@Component
+@Profile("!memory")
+@ConditionalOnProperty(prefix = "vtfs.storage", name = "backend", havingValue = "jpa", matchIfMissing = true)
+@RequiredArgsConstructor
+public class JpaBlockStore implements BlockStore {
+    
+    private final FileDataRepository fileDataRepository;
+    private final EntityManager entityManager;
+    private final BlockCodecs blockCodecs;
+    private final ChunkDeduplicator chunkDeduplicator;
+    private final VtfsProperties properties;
+    
+    @Override
+    public void read(long ino, long firstBlock, long lastBlock, BlockSink sink) throws IOException {
+        try (Stream<FileData> chunks = fileDataRepository.streamChunksInRange(ino, firstBlock, lastBlock)) {
+            Iterator<FileData> iterator = chunks.iterator();
+            while (iterator.hasNext()) {
+                FileData chunk = iterator.next();
+                byte[] payload = blockCodecs.decode(chunk.getCodec(), chunk.getData());
+                entityManager.detach(chunk);
+                sink.accept(chunk.getBlockNo(), payload, payload.length);
+            }
+        }
+    }
+    
+    @Override
+    public byte[] readBlock(long ino, long blockNo) {
+        FileData existing = fileDataRepository.findById(new FileDataId(ino, blockNo)).orElse(null);
+        if (existing == null) {
+            return null;
+        }
+        byte[] payload = blockCodecs.decode(existing.getCodec(), existing.getData());
+        entityManager.detach(existing);
+        return payload;
+    }
+    
+    @Override
+    public void write(long ino, List<Block> blocks) {
+        List<FileData> rows = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            BlockCodecs.Encoded encoded = blockCodecs.encode(block.data());
+            FileData row = new FileData(ino, block.blockNo(), encoded.data());
+            row.setCodec(encoded.codec());
+            rows.add(row);
+        }
+        if (chunkDeduplicator.isEnabled()) {
+            chunkDeduplicator.deduplicate(rows);
+        }
+        for (FileData row : rows) {
+            entityManager.persist(row);
+        }
+        entityManager.flush();
+        // Written blocks are never touched again in this transaction; detaching them keeps the
+        // persistence context (and the heap) flat no matter how large the request body is.
+        for (FileData row : rows) {
+            entityManager.detach(row);
+        }
+    }
+    
+    @Override
+    public void delete(long ino, long firstBlock, long lastBlock) {
+        chunkDeduplicator.release(ino, firstBlock, lastBlock);
+        fileDataRepository.deleteBlockRange(ino, firstBlock, lastBlock);
+    }
+    
+    @Override
+    public void deleteAll(long ino) {
+        chunkDeduplicator.releaseAll(ino);
+        fileDataRepository.deleteByInodeIno(ino);
+    }
+    
+    @Override
+    public void deleteAll(Collection<Long> inos) {
+        chunkDeduplicator.releaseAll(inos);
+        fileDataRepository.deleteByInodeInoIn(inos);
+    }
+    
+    /**
+     * Shares blocks through chunk_contents: blocks of the source still stored inline are moved there
+     * first (once per file), after which the copy is a single INSERT ... SELECT of hashes.
+     */
+    @Override
+    public void copy(long sourceIno, long targetIno) {
+        int batchSize = properties.getStorage().getWriteBatchSize();
+        List<FileData> inline;
+        while (!(inline = fileDataRepository.findInlineChunks(sourceIno, Limit.of(batchSize))).isEmpty()) {
+            // Detached first: a flush of the hashed rows must not run ahead of the content inserts
+            for (FileData row : inline) {
+                entityManager.detach(row);
+            }
+            chunkDeduplicator.deduplicate(inline);
+            for (FileData row : inline) {
+                fileDataRepository.moveToContent(sourceIno, row.getBlockNo(), row.getContentHash());
+            }
+        }
+        fileDataRepository.copyBlocks(sourceIno, targetIno);
+        chunkDeduplicator.retainAll(targetIno);
+    }
+    
+    @Override
+    public boolean exists(long ino, long blockNo) {
+        return fileDataRepository.existsById(new FileDataId(ino, blockNo));
+    }
+    
+    @Override
+    public Long firstBlockFrom(long ino, long fromBlock) {
+        return fileDataRepository.findFirstBlockFrom(ino, fromBlock);
+    }
+    
+    @Override
+    public Long lastBlockOfRunFrom(long ino, long fromBlock) {
+        return fileDataRepository.findLastBlockOfRunFrom(ino, fromBlock);
+    }
+}
@@ -0,0 +1,159 @@
+package ulitsa.raskolnikova.vtfs.server.storage;
+
+import jakarta.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ulitsa.raskolnikova.vtfs.server.codec.BlockCodecs;
+import ulitsa.raskolnikova.vtfs.server.model.BlockLocation;
+import ulitsa.raskolnikova.vtfs.server.model.FileDataId;
+import ulitsa.raskolnikova.vtfs.server.repository.BlockLocationRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Keeps block payloads in local append-only segment files and only their locations in the database.
+ * <p>
+ * Overwriting or deleting a block just drops its location row; the bytes stay in the segment until
+ * {@link SegmentCompactor} reclaims them. Appended data is forced to disk before the transaction that
+ * records its locations commits, so a committed location never points at unwritten bytes, and the
+ * segments stay pinned against compaction until that transaction has completed.
+ */
+@Component
+@Profile("!memory")
+@ConditionalOnProperty(prefix = "vtfs.storage", name = "backend", havingValue = "segment")
+@RequiredArgsConstructor
+public class SegmentBlockStore implements BlockStore {
+    
+    private final BlockLocationRepository blockLocationRepository;
+    private final SegmentFiles segmentFiles;
+    private final BlockCodecs blockCodecs;
+    private final EntityManager entityManager;
+    
+    @Override
+    public void read(long ino, long firstBlock, long lastBlock, BlockSink sink) throws IOException {
+        try (Stream<BlockLocation> locations = blockLocationRepository.streamRange(ino, firstBlock, lastBlock)) {
+            Iterator<BlockLocation> iterator = locations.iterator();
+            while (iterator.hasNext()) {
+                BlockLocation location = iterator.next();
+                entityManager.detach(location);
+                byte[] payload = load(location);
+                sink.accept(location.getBlockNo(), payload, payload.length);
+            }
+        }
+    }
+    
+    @Override
+    public byte[] readBlock(long ino, long blockNo) {
+        BlockLocation location = blockLocationRepository.findById(new FileDataId(ino, blockNo)).orElse(null);
+        if (location == null) {
+            return null;
+        }
+        entityManager.detach(location);
+        return load(location);
+    }
+    
+    @Override
+    public void write(long ino, List<Block> blocks) {
+        List<byte[]> payloads = new ArrayList<>(blocks.size());
+        List<Short> codecs = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            BlockCodecs.Encoded encoded = blockCodecs.encode(block.data());
+            payloads.add(encoded.data());
+            codecs.add(encoded.codec());
+        }
+        
+        List<SegmentFiles.Location> appended = segmentFiles.append(payloads);
+        Set<Long> touched = new LinkedHashSet<>();
+        List<BlockLocation> rows = new ArrayList<>(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            SegmentFiles.Location location = appended.get(i);
+            touched.add(location.segmentId());
+            rows.add(new BlockLocation(ino, blocks.get(i).blockNo(), location.segmentId(), location.offset(),
+                    location.length(), codecs.get(i)));
+        }
+        syncWithTransaction(touched);
+        
+        for (BlockLocation row : rows) {
+            entityManager.persist(row);
+        }
+        entityManager.flush();
+        for (BlockLocation row : rows) {
+            entityManager.detach(row);
+        }
+    }
+    
+    @Override
+    public void delete(long ino, long firstBlock, long lastBlock) {
+        blockLocationRepository.deleteBlockRange(ino, firstBlock, lastBlock);
+    }
+    
+    @Override
+    public void deleteAll(long ino) {
+        blockLocationRepository.deleteByInodeIno(ino);
+    }
+    
+    @Override
+    public void deleteAll(Collection<Long> inos) {
+        blockLocationRepository.deleteByInodeInoIn(inos);
+    }
+    
+    @Override
+    public void copy(long sourceIno, long targetIno) {
+        // The copied locations stay invisible to the compactor until commit, so it must not retire the
+        // segments they point at in the meantime
+        Set<Long> segmentIds = new LinkedHashSet<>(blockLocationRepository.findSegmentIdsByInodeIno(sourceIno));
+        segmentFiles.pin(segmentIds);
+        syncWithTransaction(segmentIds);
+        blockLocationRepository.copyLocations(sourceIno, targetIno);
+    }
+    
+    @Override
+    public boolean exists(long ino, long blockNo) {
+        return blockLocationRepository.existsById(new FileDataId(ino, blockNo));
+    }
+    
+    @Override
+    public Long firstBlockFrom(long ino, long fromBlock) {
+        return blockLocationRepository.findFirstBlockFrom(ino, fromBlock);
+    }
+    
+    @Override
+    public Long lastBlockOfRunFrom(long ino, long fromBlock) {
+        return blockLocationRepository.findLastBlockOfRunFrom(ino, fromBlock);
+    }
+    
+    private byte[] load(BlockLocation location) {
+        byte[] stored = segmentFiles.read(location.getSegmentId(), location.getSegmentOffset(), location.getLength());
+        return blockCodecs.decode(location.getCodec(), stored);
+    }
+    
+    private void syncWithTransaction(Set<Long> segmentIds) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            segmentFiles.force(segmentIds);
+            segmentFiles.unpin(segmentIds);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                segmentFiles.force(segmentIds);
+            }
+            
+            @Override
+            public void afterCompletion(int status) {
+                segmentFiles.unpin(segmentIds);
+            }
+        });
+    }
+}
@@ -0,0 +1,138 @@
+package ulitsa.raskolnikova.vtfs.server.storage;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.model.BlockLocation;
+import ulitsa.raskolnikova.vtfs.server.repository.BlockLocationRepository;
+import ulitsa.raskolnikova.vtfs.server.repository.SegmentUsageView;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reclaims space of overwritten and deleted blocks in sealed segments.
+ * <p>
+ * A sealed segment whose live bytes fall below the configured share is emptied by copying its live blocks
+ * to the active segment; each location moves only if it still points at the copied bytes. An empty segment
+ * is retired and unlinked on the next run, and its mapping is dropped one run later, so reads that looked
+ * up an old location in the meantime can still finish against it.
+ */
+@Component
+@Profile("!memory")
+@ConditionalOnProperty(prefix = "vtfs.storage", name = "backend", havingValue = "segment")
+@Slf4j
+@RequiredArgsConstructor
+public class SegmentCompactor implements StatsProvider {
+    
+    private final BlockLocationRepository blockLocationRepository;
+    private final SegmentFiles segmentFiles;
+    private final VtfsProperties properties;
+    private final TransactionTemplate transactionTemplate;
+    
+    private final Set<Long> retired = ConcurrentHashMap.newKeySet();
+    private final Set<Long> unlinked = ConcurrentHashMap.newKeySet();
+    private final LongAdder compactedSegments = new LongAdder();
+    private final LongAdder relocatedBlocks = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    
+    @Scheduled(fixedDelayString = "${vtfs.storage.segment.compaction-interval-ms:60000}")
+    public void compact() {
+        VtfsProperties.Segment config = properties.getStorage().getSegment();
+        
+        segmentFiles.forget(unlinked);
+        unlinked.clear();
+        for (Long segmentId : new ArrayList<>(retired)) {
+            if (!segmentFiles.isPinned(segmentId) && !blockLocationRepository.existsBySegmentId(segmentId)) {
+                reclaimedBytes.add(segmentFiles.delete(segmentId));
+                unlinked.add(segmentId);
+            }
+            retired.remove(segmentId);
+        }
+        
+        Map<Long, Long> liveBytes = new HashMap<>();
+        for (SegmentUsageView usage : blockLocationRepository.findSegmentUsage()) {
+            liveBytes.put(usage.getSegmentId(), usage.getLiveBytes());
+        }
+        
+        Map<Long, Long> sealed = segmentFiles.sealedSegments();
+        for (Map.Entry<Long, Long> segment : sealed.entrySet()) {
+            long segmentId = segment.getKey();
+            long live = liveBytes.getOrDefault(segmentId, 0L);
+            if (live * 100 >= segment.getValue() * config.getCompactionMinLivePercent()) {
+                continue;
+            }
+            if (live > 0) {
+                relocate(segmentId, config.getCompactionBatchSize());
+            }
+            retired.add(segmentId);
+            compactedSegments.increment();
+            log.info("Compacted segment {}: {} of {} bytes were live", segmentId, live, segment.getValue());
+        }
+    }
+    
+    private void relocate(long segmentId, int batchSize) {
+        Set<Long> pinned = new LinkedHashSet<>();
+        long fromOffset = 0;
+        while (true) {
+            long from = fromOffset;
+            List<BlockLocation> batch;
+            try {
+                batch = transactionTemplate.execute(status -> {
+                    List<BlockLocation> locations =
+                            blockLocationRepository.findBySegmentFrom(segmentId, from, Limit.of(batchSize));
+                    if (locations.isEmpty()) {
+                        return locations;
+                    }
+                    List<byte[]> payloads = new ArrayList<>(locations.size());
+                    for (BlockLocation location : locations) {
+                        payloads.add(segmentFiles.read(segmentId, location.getSegmentOffset(), location.getLength()));
+                    }
+                    List<SegmentFiles.Location> moved = segmentFiles.append(payloads);
+                    for (SegmentFiles.Location location : moved) {
+                        pinned.add(location.segmentId());
+                    }
+                    segmentFiles.force(pinned);
+                    
+                    for (int i = 0; i < locations.size(); i++) {
+                        BlockLocation location = locations.get(i);
+                        relocatedBlocks.add(blockLocationRepository.relocate(location.getInodeIno(),
+                                location.getBlockNo(), segmentId, location.getSegmentOffset(),
+                                moved.get(i).segmentId(), moved.get(i).offset()));
+                    }
+                    return locations;
+                });
+            } finally {
+                segmentFiles.unpin(pinned);
+                pinned.clear();
+            }
+            if (batch.size() < batchSize) {
+                return;
+            }
+            fromOffset = batch.get(batch.size() - 1).getSegmentOffset() + 1;
+        }
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("segments.compacted", compactedSegments.sum());
+        result.put("segments.relocated_blocks", relocatedBlocks.sum());
+        result.put("segments.reclaimed_bytes", reclaimedBytes.sum());
+        return result;
+    }
+}
@@ -0,0 +1,300 @@
+package ulitsa.raskolnikova.vtfs.server.storage;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.stats.StatsProvider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only segment files of the segment block store.
+ * <p>
+ * All appends go to a single active segment, which is sealed once it reaches the configured size; sealed
+ * segments are never written again and only disappear when compaction has moved their live blocks away.
+ * Reads go through a read-only mapping of the whole segment, which for the active segment is extended
+ * when a read reaches past it.
+ * <p>
+ * Every append pins the segments it wrote to until the caller {@link #unpin unpins} them after its
+ * transaction completed, so compaction never judges a segment by locations that are not committed yet.
+ * A deleted segment stays readable through its mapping until it is {@link #forget forgotten}, which lets
+ * reads that looked up a location just before compaction moved it finish.
+ */
+@Component
+@Profile("!memory")
+@ConditionalOnProperty(prefix = "vtfs.storage", name = "backend", havingValue = "segment")
+@Slf4j
+public class SegmentFiles implements StatsProvider {
+    
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.seg");
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    
+    private final Path directory;
+    private final long segmentSize;
+    private final ConcurrentHashMap<Long, Segment> segments = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Segment> unlinked = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> pins = new HashMap<>();
+    private Segment active;
+    
+    public SegmentFiles(VtfsProperties properties) {
+        VtfsProperties.Segment config = properties.getStorage().getSegment();
+        this.directory = Paths.get(config.getDirectory());
+        this.segmentSize = Math.min(config.getSegmentSize(), MAX_SEGMENT_SIZE);
+    }
+    
+    @PostConstruct
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        long lastId = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.seg")) {
+            for (Path file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    long id = Long.parseLong(matcher.group(1));
+                    segments.put(id, Segment.open(id, file));
+                    lastId = Math.max(lastId, id);
+                }
+            }
+        }
+        // A segment that was active before a restart may end in bytes of rolled back writes; it is
+        // left sealed and a fresh one is started.
+        roll(lastId + 1);
+        log.info("Opened {} segment files in {}", segments.size(), directory);
+    }
+    
+    @PreDestroy
+    public void close() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+    
+    /**
+     * Appends payloads to the active segment and returns where each one landed, in the same order.
+     * The segments written to are pinned until {@link #unpin} is called with the ids of the locations.
+     */
+    public synchronized List<Location> append(List<byte[]> payloads) {
+        List<Location> locations = new ArrayList<>(payloads.size());
+        List<ByteBuffer> pending = new ArrayList<>();
+        long end = active.size;
+        try {
+            for (byte[] payload : payloads) {
+                if (end + payload.length > segmentSize && end > 0) {
+                    active.write(pending);
+                    pending.clear();
+                    roll(active.id + 1);
+                    end = 0;
+                }
+                if (locations.isEmpty() || locations.get(locations.size() - 1).segmentId() != active.id) {
+                    pins.merge(active.id, 1, Integer::sum);
+                }
+                locations.add(new Location(active.id, end, payload.length));
+                pending.add(ByteBuffer.wrap(payload));
+                end += payload.length;
+            }
+            active.write(pending);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return locations;
+    }
+    
+    /**
+     * Pins segments that new locations are about to reference without appending to them.
+     */
+    public synchronized void pin(Collection<Long> segmentIds) {
+        for (Long id : segmentIds) {
+            pins.merge(id, 1, Integer::sum);
+        }
+    }
+    
+    public synchronized void unpin(Collection<Long> segmentIds) {
+        for (Long id : segmentIds) {
+            pins.computeIfPresent(id, (key, count) -> count == 1 ? null : count - 1);
+        }
+    }
+    
+    public synchronized boolean isPinned(long segmentId) {
+        return pins.containsKey(segmentId);
+    }
+    
+    public void force(Collection<Long> segmentIds) {
+        try {
+            for (Long id : segmentIds) {
+                Segment segment = segments.get(id);
+                if (segment != null) {
+                    segment.channel.force(false);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public byte[] read(long segmentId, long offset, int length) {
+        Segment segment = segments.get(segmentId);
+        if (segment == null) {
+            segment = unlinked.get(segmentId);
+        }
+        if (segment == null) {
+            throw new IllegalStateException("Segment " + segmentId + " does not exist");
+        }
+        byte[] data = new byte[length];
+        segment.mapping(offset + length).get((int) offset, data);
+        return data;
+    }
+    
+    public synchronized long activeSegmentId() {
+        return active.id;
+    }
+    
+    /**
+     * Returns the size of every sealed segment that no uncommitted append still pins.
+     */
+    public synchronized Map<Long, Long> sealedSegments() {
+        Map<Long, Long> result = new LinkedHashMap<>();
+        segments.forEach((id, segment) -> {
+            if (segment != active && !pins.containsKey(id)) {
+                result.put(id, segment.size);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Unlinks a sealed segment and returns the number of bytes it occupied. Its contents stay readable
+     * until {@link #forget} is called.
+     */
+    public long delete(long segmentId) {
+        Segment segment = segments.remove(segmentId);
+        if (segment == null) {
+            return 0;
+        }
+        if (segment.size > 0) {
+            segment.mapping(segment.size);
+        }
+        unlinked.put(segmentId, segment);
+        segment.close();
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return segment.size;
+    }
+    
+    public void forget(Collection<Long> segmentIds) {
+        for (Long id : segmentIds) {
+            unlinked.remove(id);
+        }
+    }
+    
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> result = new LinkedHashMap<>();
+        result.put("segments.count", segments.size());
+        result.put("segments.bytes", segments.values().stream().mapToLong(segment -> segment.size).sum());
+        return result;
+    }
+    
+    private void roll(long id) throws IOException {
+        Path path = directory.resolve(String.format("segment-%08d.seg", id));
+        active = Segment.open(id, path);
+        segments.put(id, active);
+    }
+    
+    private static long pendingBytes(List<ByteBuffer> pending) {
+        long total = 0;
+        for (ByteBuffer buffer : pending) {
+            total += buffer.remaining();
+        }
+        return total;
+    }
+    
+    public record Location(long segmentId, long offset, int length) {
+    }
+    
+    private static final class Segment {
+        
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private volatile long size;
+        private volatile MappedByteBuffer mapping;
+        
+        private Segment(long id, Path path, FileChannel channel) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = channel.size();
+        }
+        
+        private static Segment open(long id, Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(id, path, channel);
+        }
+        
+        private void write(List<ByteBuffer> buffers) throws IOException {
+            if (buffers.isEmpty()) {
+                return;
+            }
+            ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+            long remaining = pendingBytes(buffers);
+            channel.position(size);
+            while (remaining > 0) {
+                remaining -= channel.write(array);
+            }
+            size = channel.position();
+        }
+        
+        private MappedByteBuffer mapping(long end) {
+            MappedByteBuffer current = mapping;
+            if (current != null && current.capacity() >= end) {
+                return current;
+            }
+            synchronized (this) {
+                current = mapping;
+                if (current == null || current.capacity() < end) {
+                    try {
+                        current = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    mapping = current;
+                }
+                return current;
+            }
+        }
+        
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close segment {}", path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+--liquibase formatted sql
+
+--changeset vtfs:006-create-file-blocks-table
+--comment: Create block-addressed file_blocks table keyed by (inode_ino, block_no)
+
+CREATE TABLE IF NOT EXISTS file_blocks (
+    inode_ino BIGINT NOT NULL,
+    block_no BIGINT NOT NULL,
+    data BYTEA NOT NULL,
+    CONSTRAINT pk_file_blocks PRIMARY KEY (inode_ino, block_no),
+    CONSTRAINT fk_file_blocks_inode FOREIGN KEY (inode_ino)
+        REFERENCES inodes(ino) ON DELETE CASCADE
+);
@@ -0,0 +1,46 @@
+--liquibase formatted sql
+
+--changeset vtfs:007-migrate-file-data-to-blocks splitStatements:false
+--comment: Copy offset-addressed file_data chunks into 4096-byte blocks
+
+-- Чанки применяются в порядке вставки, байты за пределами размера файла отбрасываются
+DO $$
+DECLARE
+    chunk RECORD;
+    pos BIGINT;
+    abs_pos BIGINT;
+    blk BIGINT;
+    blk_off INTEGER;
+    n INTEGER;
+    cur BYTEA;
+BEGIN
+    FOR chunk IN
+        SELECT fd.inode_ino, fd.file_offset, fd.data, i.size
+        FROM file_data fd
+        JOIN inodes i ON i.ino = fd.inode_ino
+        ORDER BY fd.inode_ino, fd.id
+    LOOP
+        pos := 0;
+        WHILE pos < length(chunk.data) AND chunk.file_offset + pos < chunk.size LOOP
+            abs_pos := chunk.file_offset + pos;
+            blk := abs_pos / 4096;
+            blk_off := (abs_pos % 4096)::INTEGER;
+            n := LEAST(4096 - blk_off, length(chunk.data) - pos, chunk.size - abs_pos)::INTEGER;
+
+            SELECT data INTO cur FROM file_blocks WHERE inode_ino = chunk.inode_ino AND block_no = blk;
+            IF NOT FOUND THEN
+                cur := ''::BYTEA;
+            END IF;
+            IF length(cur) < blk_off THEN
+                cur := cur || decode(repeat('00', blk_off - length(cur)), 'hex');
+            END IF;
+            cur := overlay(cur PLACING substring(chunk.data FROM (pos + 1)::INTEGER FOR n) FROM blk_off + 1 FOR n);
+
+            INSERT INTO file_blocks (inode_ino, block_no, data)
+            VALUES (chunk.inode_ino, blk, cur)
+            ON CONFLICT (inode_ino, block_no) DO UPDATE SET data = EXCLUDED.data;
+
+            pos := pos + n;
+        END LOOP;
+    END LOOP;
+END $$;
@@ -0,0 +1,10 @@
+--liquibase formatted sql
+
+--changeset vtfs:008-replace-file-data-with-blocks
+--comment: Drop offset-addressed file_data and rename file_blocks to file_data
+
+DROP TABLE file_data;
+
+ALTER TABLE file_blocks RENAME TO file_data;
+ALTER TABLE file_data RENAME CONSTRAINT pk_file_blocks TO pk_file_data;
+ALTER TABLE file_data RENAME CONSTRAINT fk_file_blocks_inode TO fk_file_data_inode;
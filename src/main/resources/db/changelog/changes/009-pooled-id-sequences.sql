@@ -0,0 +1,7 @@
+--liquibase formatted sql
+
+--changeset vtfs:009-pooled-id-sequences
+--comment: Let Hibernate allocate inode and directory entry ids in pools of 50 so inserts can be batched
+
+ALTER SEQUENCE inodes_ino_seq INCREMENT BY 50;
+ALTER SEQUENCE directory_entries_id_seq INCREMENT BY 50;
@@ -0,0 +1,7 @@
+--liquibase formatted sql
+
+--changeset vtfs:010-directory-entries-cookie-index
+--comment: Index directory entries by (parent_ino, id) so listings can page by readdir cookie
+
+CREATE INDEX IF NOT EXISTS idx_directory_entries_parent_id ON directory_entries(parent_ino, id);
+DROP INDEX IF EXISTS idx_directory_entries_parent;
@@ -0,0 +1,22 @@
+--liquibase formatted sql
+
+--changeset vtfs:011-create-chunk-contents-table
+--comment: Content-addressed, reference-counted block payloads for deduplicated writes
+
+CREATE TABLE IF NOT EXISTS chunk_contents (
+    hash VARCHAR(64) NOT NULL,
+    data BYTEA NOT NULL,
+    refcount BIGINT NOT NULL,
+    CONSTRAINT pk_chunk_contents PRIMARY KEY (hash)
+);
+
+ALTER TABLE file_data ALTER COLUMN data DROP NOT NULL;
+ALTER TABLE file_data ADD COLUMN content_hash VARCHAR(64);
+ALTER TABLE file_data ADD CONSTRAINT fk_file_data_content
+    FOREIGN KEY (content_hash) REFERENCES chunk_contents(hash);
+ALTER TABLE file_data ADD CONSTRAINT chk_file_data_payload
+    CHECK (data IS NOT NULL OR content_hash IS NOT NULL);
+
+-- Проверка внешнего ключа при удалении из chunk_contents и поиск мусора для GC
+CREATE INDEX IF NOT EXISTS idx_file_data_content_hash ON file_data(content_hash) WHERE content_hash IS NOT NULL;
+CREATE INDEX IF NOT EXISTS idx_chunk_contents_unreferenced ON chunk_contents(hash) WHERE refcount <= 0;
@@ -0,0 +1,7 @@
+--liquibase formatted sql
+
+--changeset vtfs:012-add-block-codec
+--comment: Record the codec of every stored block payload (0 = raw)
+
+ALTER TABLE file_data ADD COLUMN codec SMALLINT NOT NULL DEFAULT 0;
+ALTER TABLE chunk_contents ADD COLUMN codec SMALLINT NOT NULL DEFAULT 0;
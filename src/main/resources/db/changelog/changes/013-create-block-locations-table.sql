@@ -0,0 +1,19 @@
+--liquibase formatted sql
+
+--changeset vtfs:013-create-block-locations-table
+--comment: Block positions inside local segment files for the segment block store backend
+
+CREATE TABLE IF NOT EXISTS block_locations (
+    inode_ino BIGINT NOT NULL,
+    block_no BIGINT NOT NULL,
+    segment_id BIGINT NOT NULL,
+    segment_offset BIGINT NOT NULL,
+    length INTEGER NOT NULL,
+    codec SMALLINT NOT NULL DEFAULT 0,
+    CONSTRAINT pk_block_locations PRIMARY KEY (inode_ino, block_no),
+    CONSTRAINT fk_block_locations_inode FOREIGN KEY (inode_ino)
+        REFERENCES inodes(ino) ON DELETE CASCADE
+);
+
+-- Для подсчёта живых байтов сегмента и переноса блоков при компакции
+CREATE INDEX IF NOT EXISTS idx_block_locations_segment ON block_locations(segment_id, segment_offset);
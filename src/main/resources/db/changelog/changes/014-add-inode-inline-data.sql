@@ -0,0 +1,6 @@
+--liquibase formatted sql
+
+--changeset vtfs:014-add-inode-inline-data
+--comment: Keep the contents of small files in the inode row itself (NULL = contents live in blocks)
+
+ALTER TABLE inodes ADD COLUMN inline_data BYTEA;
@@ -0,0 +1,72 @@
+package ulitsa.raskolnikova.vtfs.server;
+
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemOperations;
+import ulitsa.raskolnikova.vtfs.server.service.ReadSink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fixture shared by the file system tests: the token and root directory every engine accepts, and helpers
+ * that write and read whole byte arrays through {@link FileSystemOperations}.
+ */
+public final class FileSystemTestSupport {
+    
+    public static final String TOKEN = "test";
+    
+    /**
+     * Root directory inserted by the test import.sql and created by the in-memory engine on first start.
+     */
+    public static final long ROOT_INO = 1000L;
+    
+    public static final int BLOCK_SIZE = 4096;
+    
+    private FileSystemTestSupport() {
+    }
+    
+    public static void write(FileSystemOperations fileSystem, long ino, long offset, byte[] data) {
+        try {
+            fileSystem.write(TOKEN, ino, offset, new ByteArrayInputStream(data), data.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Reads up to {@code length} bytes at {@code offset}; the result is shorter when the file ends first.
+     */
+    public static byte[] read(FileSystemOperations fileSystem, long ino, long offset, long length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            fileSystem.read(TOKEN, ino, offset, length, new ReadSink() {
+                @Override
+                public void begin(long offset, long length, long fileSize) {
+                }
+                
+                @Override
+                public void write(byte[] data, int off, int len) {
+                    out.write(data, off, len);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+    
+    public static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+    
+    public static byte[] filled(char value, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+}
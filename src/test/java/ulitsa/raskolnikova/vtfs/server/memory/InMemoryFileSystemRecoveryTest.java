@@ -0,0 +1,172 @@
+package ulitsa.raskolnikova.vtfs.server.memory;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+import ulitsa.raskolnikova.vtfs.server.dto.ListResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.randomBytes;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.read;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+/**
+ * Restarts of the in-memory engine from its snapshot and write-ahead log. A restart without
+ * {@link InMemoryFileSystem#shutdown} stands for a crash: the old instance is simply abandoned.
+ */
+class InMemoryFileSystemRecoveryTest {
+    
+    @TempDir
+    Path directory;
+    
+    private final VtfsProperties properties = new VtfsProperties();
+    private final Random random = new Random(17);
+    
+    @BeforeEach
+    void useTempDirectory() {
+        properties.getMemory().setDirectory(directory.toString());
+        properties.getMemory().setSyncEveryWrite(true);
+    }
+    
+    @Test
+    void snapshotAndLogRestoreTheTree() throws IOException {
+        InMemoryFileSystem fileSystem = start();
+        long docs = fileSystem.mkdir(TOKEN, ROOT_INO, "docs", 0755);
+        long sub = fileSystem.mkdir(TOKEN, docs, "sub", 0755);
+        long report = fileSystem.create(TOKEN, docs, "report", 0644);
+        write(fileSystem, report, 0, randomBytes(random, 20000));
+        long notes = fileSystem.create(TOKEN, sub, "notes", 0644);
+        write(fileSystem, notes, 0, randomBytes(random, 100));
+        fileSystem.create(TOKEN, ROOT_INO, "draft", 0644);
+        fileSystem.link(TOKEN, report, ROOT_INO, "report-link");
+        fileSystem.snapshot();
+        
+        write(fileSystem, report, 30000, randomBytes(random, 10));
+        fileSystem.truncate(TOKEN, notes, 3L);
+        fileSystem.rename(TOKEN, ROOT_INO, "draft", sub, "final", false);
+        long copy = fileSystem.cloneFile(TOKEN, report, ROOT_INO, "report-copy");
+        write(fileSystem, copy, 0, randomBytes(random, 5));
+        fileSystem.delete(TOKEN, docs, "report");
+        long scratch = fileSystem.mkdir(TOKEN, ROOT_INO, "scratch", 0755);
+        fileSystem.create(TOKEN, scratch, "tmp", 0644);
+        fileSystem.rmtree(TOKEN, ROOT_INO, "scratch");
+        Map<String, String> tree = tree(fileSystem);
+        assertThat(tree).containsKeys("/docs/sub/final", "/docs/sub/notes", "/report-copy", "/report-link")
+                .doesNotContainKeys("/docs/report", "/draft", "/scratch");
+        
+        InMemoryFileSystem recovered = start();
+        assertThat(tree(recovered)).isEqualTo(tree);
+        
+        // A clean shutdown leaves everything in the snapshot
+        recovered.shutdown();
+        assertThat(tree(start())).isEqualTo(tree);
+    }
+    
+    @Test
+    void tornFinalRecordIsCutOff() throws IOException {
+        InMemoryFileSystem fileSystem = start();
+        long file = fileSystem.create(TOKEN, ROOT_INO, "file", 0644);
+        write(fileSystem, file, 0, randomBytes(random, 5000));
+        Map<String, String> beforeLastWrite = tree(fileSystem);
+        write(fileSystem, file, 5000, randomBytes(random, 5000));
+        
+        Path log = latestLog();
+        long size = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 10);
+        }
+        
+        assertRecoversAndKeepsLogging(beforeLastWrite);
+        assertThat(Files.size(log)).isLessThan(size - 10);
+    }
+    
+    @Test
+    void finalRecordFailingItsChecksumIsCutOff() throws IOException {
+        InMemoryFileSystem fileSystem = start();
+        long file = fileSystem.create(TOKEN, ROOT_INO, "file", 0644);
+        write(fileSystem, file, 0, randomBytes(random, 5000));
+        Map<String, String> beforeLastWrite = tree(fileSystem);
+        write(fileSystem, file, 5000, randomBytes(random, 5000));
+        
+        Path log = latestLog();
+        long size = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            last.put(0, (byte) (last.get(0) ^ 0xFF));
+            channel.write(last.rewind(), size - 1);
+        }
+        
+        assertRecoversAndKeepsLogging(beforeLastWrite);
+    }
+    
+    /**
+     * Recovers the tree as it was before the damaged record, then checks that changes made after the cut
+     * survive another restart.
+     */
+    private void assertRecoversAndKeepsLogging(Map<String, String> expected) throws IOException {
+        InMemoryFileSystem recovered = start();
+        assertThat(tree(recovered)).isEqualTo(expected);
+        
+        long file = recovered.create(TOKEN, ROOT_INO, "after-recovery", 0644);
+        write(recovered, file, 0, randomBytes(random, 100));
+        Map<String, String> tree = tree(recovered);
+        assertThat(tree(start())).isEqualTo(tree);
+    }
+    
+    private InMemoryFileSystem start() throws IOException {
+        InMemoryFileSystem fileSystem = new InMemoryFileSystem(properties);
+        fileSystem.recover();
+        return fileSystem;
+    }
+    
+    private Path latestLog() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("wal-"))
+                    .max(Path::compareTo)
+                    .orElseThrow();
+        }
+    }
+    
+    /**
+     * Describes every entry reachable from the root by path: inode number, mode, link count and contents.
+     */
+    private static Map<String, String> tree(InMemoryFileSystem fileSystem) {
+        Map<String, String> tree = new TreeMap<>();
+        List<String> paths = new ArrayList<>(List.of(""));
+        List<Long> inos = new ArrayList<>(List.of(ROOT_INO));
+        while (!paths.isEmpty()) {
+            String path = paths.remove(paths.size() - 1);
+            long dirIno = inos.remove(inos.size() - 1);
+            for (ListResponse.Entry entry : fileSystem.list(TOKEN, dirIno, null, null, null).getEntries()) {
+                String child = path + "/" + entry.getName();
+                String description = entry.getIno() + " " + Integer.toOctalString(entry.getMode()) + " " + entry.getNlink();
+                if ((entry.getMode() & 0170000) == 0040000) {
+                    paths.add(child);
+                    inos.add(entry.getIno());
+                } else {
+                    byte[] contents = read(fileSystem, entry.getIno(), 0, fileSystem.size(TOKEN, entry.getIno()));
+                    description += " " + Base64.getEncoder().encodeToString(contents);
+                }
+                tree.put(child, description);
+            }
+        }
+        return tree;
+    }
+}
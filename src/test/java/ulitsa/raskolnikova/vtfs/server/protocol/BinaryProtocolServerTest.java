@@ -0,0 +1,109 @@
+package ulitsa.raskolnikova.vtfs.server.protocol;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.randomBytes;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+@SpringBootTest(properties = {
+        "vtfs.protocol.enabled=true",
+        "vtfs.protocol.port=0",
+        "vtfs.protocol.max-in-flight=4"
+})
+@ActiveProfiles("test")
+class BinaryProtocolServerTest {
+    
+    private static final int MAX_IN_FLIGHT = 4;
+    private static final int READ_LENGTH = 1024 * 1024;
+    private static final int PIPELINED_READS = 64;
+    
+    @Autowired
+    private BinaryProtocolServer server;
+    
+    @Autowired
+    private FileSystemService fileSystem;
+    
+    @Test
+    void clientThatStopsReadingHoldsBackItsFurtherRequests() throws Exception {
+        byte[] contents = randomBytes(new Random(23), READ_LENGTH);
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "pipelined", 0644);
+        write(fileSystem, ino, 0, contents);
+        long requestsBefore = server.stats().get("protocol.requests").longValue();
+        
+        try (Socket socket = new Socket()) {
+            // A small window keeps the responses that fit in socket buffers down to a few
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+            
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            ByteBuffer hello = request(0, OperationCodec.HELLO);
+            byte[] token = TOKEN.getBytes(StandardCharsets.UTF_8);
+            hello.putShort((short) token.length).put(token);
+            requests.writeBytes(frame(hello));
+            for (int i = 1; i <= PIPELINED_READS; i++) {
+                requests.writeBytes(frame(request(i, OperationCodec.READ).putLong(ino).putLong(0).putInt(READ_LENGTH)));
+            }
+            socket.getOutputStream().write(requests.toByteArray());
+            socket.getOutputStream().flush();
+            
+            Thread.sleep(2000);
+            long dispatched = server.stats().get("protocol.requests").longValue() - requestsBefore;
+            // Those at the limit plus the few whose responses went into the socket buffers
+            assertThat(dispatched).isLessThan(MAX_IN_FLIGHT + 8);
+            
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            boolean[] answered = new boolean[PIPELINED_READS + 1];
+            for (int i = 0; i <= PIPELINED_READS; i++) {
+                ByteBuffer response = response(in);
+                int requestId = (int) response.getLong();
+                assertThat(response.getLong()).as("status of request %d", requestId).isZero();
+                if (requestId > 0) {
+                    byte[] data = new byte[response.getInt()];
+                    response.get(data);
+                    assertThat(Arrays.equals(data, contents)).as("contents read by request %d", requestId).isTrue();
+                }
+                answered[requestId] = true;
+            }
+            for (boolean requestAnswered : answered) {
+                assertThat(requestAnswered).isTrue();
+            }
+        }
+    }
+    
+    private static ByteBuffer request(long requestId, int opcode) {
+        return ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(0)
+                .putLong(requestId)
+                .putShort((short) opcode);
+    }
+    
+    private static byte[] frame(ByteBuffer request) {
+        request.putInt(0, request.position() - Integer.BYTES);
+        return Arrays.copyOf(request.array(), request.position());
+    }
+    
+    private static ByteBuffer response(DataInputStream in) throws Exception {
+        byte[] length = new byte[Integer.BYTES];
+        in.readFully(length);
+        byte[] frame = new byte[ByteBuffer.wrap(length).order(ByteOrder.LITTLE_ENDIAN).getInt()];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
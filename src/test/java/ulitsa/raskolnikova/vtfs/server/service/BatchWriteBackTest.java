@@ -0,0 +1,104 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.filled;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+/**
+ * Atomic batches that meet data another client left in the write-back buffer.
+ */
+@SpringBootTest(properties = {
+        "vtfs.write-back.enabled=true",
+        "vtfs.write-back.flush-interval-ms=3600000",
+        "vtfs.locking.wait-timeout-ms=2000"
+})
+@ActiveProfiles("test")
+class BatchWriteBackTest {
+    
+    @Autowired
+    private FileSystemService fileSystem;
+    
+    @Autowired
+    private WriteBackBuffer writeBackBuffer;
+    
+    private final ExecutorService otherClient = Executors.newSingleThreadExecutor();
+    
+    @AfterEach
+    void stopOtherClient() {
+        otherClient.shutdownNow();
+    }
+    
+    @Test
+    void batchFlushesDataBufferedAfterItLockedTheInode() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "nested-flush", 0644);
+        write(fileSystem, ino, 0, filled('a', 100));
+        
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> fileSystem.atomically(List.of(
+                // Holds the inode row until the batch ends
+                () -> fileSystem.truncate(TOKEN, ino, 10L),
+                () -> writeFromOtherClient(ino, 20, filled('b', 10)),
+                () -> write(fileSystem, ino, 40, filled('c', 10)))));
+        
+        byte[] expected = new byte[50];
+        Arrays.fill(expected, 0, 10, (byte) 'a');
+        Arrays.fill(expected, 20, 30, (byte) 'b');
+        Arrays.fill(expected, 40, 50, (byte) 'c');
+        assertThat(fileSystem.read(TOKEN, ino, 0L, 100)).isEqualTo(expected);
+        assertThat(writeBackBuffer.isDirty(ino)).isFalse();
+    }
+    
+    @Test
+    void rolledBackBatchLeavesBufferedDataOfOtherClientsBuffered() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "rolled-back-flush", 0644);
+        write(fileSystem, ino, 0, filled('b', 10));
+        assertThat(writeBackBuffer.isDirty(ino)).isTrue();
+        
+        assertThatThrownBy(() -> assertTimeoutPreemptively(Duration.ofSeconds(30), () -> fileSystem.atomically(List.of(
+                () -> write(fileSystem, ino, 100, filled('c', 10)),
+                () -> fileSystem.lookup(TOKEN, ROOT_INO, "missing")))))
+                .isInstanceOf(FileSystemException.class)
+                .extracting(e -> ((FileSystemException) e).getErrorCode())
+                .isEqualTo(FileSystemException.ENOENT);
+        
+        assertThat(writeBackBuffer.isDirty(ino)).isTrue();
+        assertThat(fileSystem.size(TOKEN, ino)).isEqualTo(10L);
+        assertThat(fileSystem.read(TOKEN, ino, 0L, 100)).isEqualTo(filled('b', 10));
+        
+        fileSystem.fsync(TOKEN, ino);
+        assertThat(writeBackBuffer.isDirty(ino)).isFalse();
+        assertThat(fileSystem.read(TOKEN, ino, 0L, 100)).isEqualTo(filled('b', 10));
+    }
+    
+    /**
+     * Writes from a thread outside the batch, so the data goes to the write-back buffer.
+     */
+    private void writeFromOtherClient(long ino, long offset, byte[] data) throws IOException {
+        try {
+            otherClient.submit(() -> write(fileSystem, ino, offset, data)).get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new IOException(e);
+        }
+        assertThat(writeBackBuffer.isDirty(ino)).isTrue();
+    }
+}
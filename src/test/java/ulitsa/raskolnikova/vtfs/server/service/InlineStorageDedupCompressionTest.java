@@ -0,0 +1,14 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+/**
+ * The inline transitions again with blocks stored compressed and shared through chunk_contents.
+ */
+@SpringBootTest(properties = {
+        "vtfs.dedup.enabled=true",
+        "vtfs.dedup.gc-interval-ms=3600000",
+        "vtfs.compression.codec=deflate"
+})
+class InlineStorageDedupCompressionTest extends InlineStorageTest {
+}
@@ -0,0 +1,170 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.BLOCK_SIZE;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+/**
+ * Files moving between contents stored in the inode row and contents stored in blocks as writes and
+ * truncates cross the inline threshold.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+class InlineStorageTest {
+    
+    private static final int INLINE_THRESHOLD = 2048;
+    
+    @Autowired
+    private FileSystemService fileSystem;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    private final Random random = new Random(21);
+    
+    @Test
+    void writeCrossingTheThresholdMovesContentsToBlocks() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "growing", 0644);
+        byte[] expected = contents(1000);
+        write(fileSystem, ino, 0, expected);
+        assertInline(ino, expected);
+        
+        byte[] tail = contents(INLINE_THRESHOLD - 1000);
+        write(fileSystem, ino, 1000, tail);
+        expected = concat(expected, tail);
+        assertInline(ino, expected);
+        
+        // One byte past the threshold, written over the end of the inline contents
+        byte[] crossing = contents(101);
+        write(fileSystem, ino, INLINE_THRESHOLD - 100, crossing);
+        expected = Arrays.copyOf(expected, INLINE_THRESHOLD + 1);
+        System.arraycopy(crossing, 0, expected, INLINE_THRESHOLD - 100, crossing.length);
+        assertBlocks(ino, expected, 1);
+        
+        byte[] next = contents(2 * BLOCK_SIZE);
+        write(fileSystem, ino, expected.length, next);
+        expected = concat(expected, next);
+        assertBlocks(ino, expected, 3);
+    }
+    
+    @Test
+    void largeFirstWriteGoesStraightToBlocks() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "large", 0644);
+        byte[] expected = contents(INLINE_THRESHOLD + 1);
+        write(fileSystem, ino, 0, expected);
+        assertBlocks(ino, expected, 1);
+    }
+    
+    @Test
+    void truncateDownIntoTheInlineRangeAndBackUp() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "shrinking", 0644);
+        byte[] data = contents(3 * BLOCK_SIZE);
+        write(fileSystem, ino, 0, data);
+        assertBlocks(ino, data, 3);
+        
+        fileSystem.truncate(TOKEN, ino, 1500L);
+        assertInline(ino, Arrays.copyOf(data, 1500));
+        
+        // Still within the threshold: the row keeps the contents and the extension reads as zeros
+        fileSystem.truncate(TOKEN, ino, (long) INLINE_THRESHOLD);
+        assertInline(ino, Arrays.copyOf(Arrays.copyOf(data, 1500), INLINE_THRESHOLD));
+        
+        fileSystem.truncate(TOKEN, ino, 5000L);
+        assertBlocks(ino, Arrays.copyOf(Arrays.copyOf(data, 1500), 5000), 1);
+        
+        byte[] rewritten = contents(100);
+        write(fileSystem, ino, 4900, rewritten);
+        byte[] expected = Arrays.copyOf(Arrays.copyOf(data, 1500), 5000);
+        System.arraycopy(rewritten, 0, expected, 4900, rewritten.length);
+        assertBlocks(ino, expected, 2);
+        
+        // An emptied file keeps no contents anywhere, and the next small write goes to the row again
+        fileSystem.truncate(TOKEN, ino, 0L);
+        assertThat(storedBlocks(ino)).isZero();
+        assertContents(ino, new byte[0]);
+        byte[] small = contents(10);
+        write(fileSystem, ino, 0, small);
+        assertInline(ino, small);
+    }
+    
+    @Test
+    void sparseExtendOfAnInlineFile() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "sparse", 0644);
+        byte[] head = contents(100);
+        write(fileSystem, ino, 0, head);
+        
+        // A gap that stays within the threshold is filled with zeros in the row
+        byte[] middle = contents(100);
+        write(fileSystem, ino, 1000, middle);
+        byte[] expected = Arrays.copyOf(head, 1100);
+        System.arraycopy(middle, 0, expected, 1000, middle.length);
+        assertInline(ino, expected);
+        
+        // A gap reaching past it leaves holes between block 0 and the written block
+        byte[] far = contents(10);
+        long farOffset = 5L * BLOCK_SIZE + 10;
+        write(fileSystem, ino, farOffset, far);
+        expected = Arrays.copyOf(expected, (int) farOffset + far.length);
+        System.arraycopy(far, 0, expected, (int) farOffset, far.length);
+        assertBlocks(ino, expected, 2);
+    }
+    
+    /**
+     * The row may stop short of the size after an extending truncate; the rest of the file is a hole.
+     */
+    private void assertInline(long ino, byte[] expected) {
+        byte[] inline = inlineData(ino);
+        assertThat(inline).as("inline contents of %d", ino).isNotNull();
+        assertThat(inline.length).isLessThanOrEqualTo(expected.length);
+        assertThat(Arrays.copyOf(inline, expected.length)).as("inline contents of %d", ino).isEqualTo(expected);
+        assertThat(storedBlocks(ino)).as("blocks of %d", ino).isZero();
+        assertContents(ino, expected);
+    }
+    
+    private void assertBlocks(long ino, byte[] expected, int blocks) {
+        assertThat(inlineData(ino)).as("inline contents of %d", ino).isNull();
+        assertThat(storedBlocks(ino)).as("blocks of %d", ino).isEqualTo(blocks);
+        assertContents(ino, expected);
+    }
+    
+    private void assertContents(long ino, byte[] expected) {
+        assertThat(fileSystem.size(TOKEN, ino)).isEqualTo(expected.length);
+        assertThat(fileSystem.read(TOKEN, ino, 0L, expected.length + 1)).isEqualTo(expected);
+    }
+    
+    private byte[] inlineData(long ino) {
+        return jdbcTemplate.queryForObject("SELECT inline_data FROM inodes WHERE ino = ?", byte[].class, ino);
+    }
+    
+    private long storedBlocks(long ino) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM file_data WHERE inode_ino = ?", Long.class, ino);
+    }
+    
+    /**
+     * Random text over a small alphabet, which the compressing subclass actually stores compressed.
+     */
+    private byte[] contents(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return data;
+    }
+    
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
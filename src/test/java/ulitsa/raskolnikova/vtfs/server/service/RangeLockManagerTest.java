@@ -0,0 +1,183 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.filled;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+@SpringBootTest(properties = "vtfs.locking.wait-timeout-ms=2000")
+@ActiveProfiles("test")
+class RangeLockManagerTest {
+    
+    private static final long INO = 42L;
+    private static final long TIMEOUT_MS = 2000;
+    
+    @Autowired
+    private RangeLockManager rangeLockManager;
+    
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    
+    @Autowired
+    private FileSystemService fileSystem;
+    
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    
+    @AfterEach
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+    
+    @Test
+    void disjointRangesAreHeldTogetherWhileOverlappingOnesWait() throws Exception {
+        Holder first = hold(0, 9);
+        Holder second = hold(10, 19);
+        assertThat(first.awaitLocked(TIMEOUT_MS)).isTrue();
+        assertThat(second.awaitLocked(TIMEOUT_MS)).isTrue();
+        
+        Holder overlapping = hold(5, 14);
+        assertThat(overlapping.awaitLocked(100)).isFalse();
+        
+        first.release();
+        assertThat(overlapping.awaitLocked(100)).isFalse();
+        
+        second.release();
+        assertThat(overlapping.awaitLocked(TIMEOUT_MS)).isTrue();
+        overlapping.release();
+    }
+    
+    @Test
+    void waitingPastTheTimeoutFailsWithEagain() throws Exception {
+        Holder holder = hold(0, RangeLockManager.TO_END);
+        assertThat(holder.awaitLocked(TIMEOUT_MS)).isTrue();
+        
+        long started = System.nanoTime();
+        assertThatThrownBy(() -> transactionTemplate.executeWithoutResult(status -> rangeLockManager.lock(INO, 100, 100)))
+                .isInstanceOf(FileSystemException.class)
+                .extracting(e -> ((FileSystemException) e).getErrorCode())
+                .isEqualTo(FileSystemException.EAGAIN);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).isGreaterThanOrEqualTo(TIMEOUT_MS);
+        
+        holder.release();
+    }
+    
+    @Test
+    void rollbackReleasesLocks() throws Exception {
+        assertThatThrownBy(() -> transactionTemplate.executeWithoutResult(status -> {
+            rangeLockManager.lock(INO, 0, 9);
+            throw new IllegalStateException("rollback");
+        })).isInstanceOf(IllegalStateException.class);
+        
+        Holder holder = hold(0, 9);
+        assertThat(holder.awaitLocked(TIMEOUT_MS)).isTrue();
+        holder.release();
+        
+        assertThat(rangeLockManager.stats().get("range_locks.locked_files")).isEqualTo(0);
+    }
+    
+    @Test
+    void newTransactionOwnsItsLocksApartFromTheSuspendedOne() throws Exception {
+        TransactionTemplate newTransaction = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        
+        transactionTemplate.executeWithoutResult(outer -> {
+            rangeLockManager.lock(INO, 0, 9);
+            
+            newTransaction.executeWithoutResult(inner -> {
+                assertThatThrownBy(() -> rangeLockManager.lock(INO, 0, 9))
+                        .isInstanceOf(FileSystemException.class);
+                rangeLockManager.lock(INO, 20, 29);
+            });
+            
+            // The inner transaction's range ended with it, so the outer one does not own it
+            Holder holder = hold(20, 29);
+            try {
+                assertThat(holder.awaitLocked(TIMEOUT_MS)).isTrue();
+                assertThatThrownBy(() -> rangeLockManager.lock(INO, 20, 29))
+                        .isInstanceOf(FileSystemException.class);
+                holder.release();
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            
+            rangeLockManager.lock(INO, 0, 9);
+        });
+    }
+    
+    @Test
+    void concurrentWritersOfDisjointRegionsKeepEachOthersData() throws Exception {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "disjoint-writers", 0644);
+        int writers = 8;
+        int regionSize = 3 * 4096 + 100;
+        
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            int region = i;
+            writes.add(executor.submit(() -> {
+                write(fileSystem, ino, (long) region * regionSize, filled((char) ('a' + region), regionSize));
+                return null;
+            }));
+        }
+        for (Future<?> write : writes) {
+            write.get(30, TimeUnit.SECONDS);
+        }
+        
+        byte[] content = fileSystem.read(TOKEN, ino, 0L, writers * regionSize);
+        assertThat(content).hasSize(writers * regionSize);
+        for (int i = 0; i < content.length; i++) {
+            assertThat(content[i]).as("byte %d", i).isEqualTo((byte) ('a' + i / regionSize));
+        }
+    }
+    
+    /**
+     * Starts a transaction on another thread that locks a range of {@link #INO} and holds it until released.
+     */
+    private Holder hold(long firstBlock, long lastBlock) {
+        Holder holder = new Holder();
+        holder.result = executor.submit(() -> transactionTemplate.executeWithoutResult(status -> {
+            rangeLockManager.lock(INO, firstBlock, lastBlock);
+            holder.locked.countDown();
+            try {
+                holder.released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        return holder;
+    }
+    
+    private static final class Holder {
+        
+        private final CountDownLatch locked = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private Future<?> result;
+        
+        private boolean awaitLocked(long millis) throws InterruptedException {
+            return locked.await(millis, TimeUnit.MILLISECONDS);
+        }
+        
+        private void release() throws Exception {
+            released.countDown();
+            result.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
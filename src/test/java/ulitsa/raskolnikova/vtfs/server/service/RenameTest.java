@@ -0,0 +1,127 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import ulitsa.raskolnikova.vtfs.server.exception.FileSystemException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.filled;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+/**
+ * Renames onto existing entries and directory moves that would create a cycle. Each test works in a
+ * directory of its own under the shared root.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+class RenameTest {
+    
+    private static final AtomicInteger directories = new AtomicInteger();
+    
+    @Autowired
+    private FileSystemService fileSystem;
+    
+    private long dir;
+    
+    @BeforeEach
+    void createDirectory() {
+        dir = fileSystem.mkdir(TOKEN, ROOT_INO, "rename-" + directories.incrementAndGet(), 0755);
+    }
+    
+    @Test
+    void replacesAnExistingFile() {
+        long source = fileSystem.create(TOKEN, dir, "source", 0644);
+        write(fileSystem, source, 0, filled('s', 10));
+        long target = fileSystem.create(TOKEN, dir, "target", 0644);
+        write(fileSystem, target, 0, filled('t', 20));
+        
+        fileSystem.rename(TOKEN, dir, "source", dir, "target", true);
+        
+        assertThat(fileSystem.lookup(TOKEN, dir, "target").getIno()).isEqualTo(source);
+        assertThat(fileSystem.read(TOKEN, source, 0L, 100)).isEqualTo(filled('s', 10));
+        assertErrorCode(() -> fileSystem.lookup(TOKEN, dir, "source"), FileSystemException.ENOENT);
+        // The replaced file had no other link, so its inode is gone with the entry
+        assertErrorCode(() -> fileSystem.size(TOKEN, target), FileSystemException.ENOENT);
+    }
+    
+    @Test
+    void existingEntryIsKeptWithoutReplace() {
+        long source = fileSystem.create(TOKEN, dir, "source", 0644);
+        long target = fileSystem.create(TOKEN, dir, "target", 0644);
+        write(fileSystem, target, 0, filled('t', 20));
+        
+        assertErrorCode(() -> fileSystem.rename(TOKEN, dir, "source", dir, "target", false), FileSystemException.EEXIST);
+        
+        assertThat(fileSystem.lookup(TOKEN, dir, "source").getIno()).isEqualTo(source);
+        assertThat(fileSystem.lookup(TOKEN, dir, "target").getIno()).isEqualTo(target);
+        assertThat(fileSystem.read(TOKEN, target, 0L, 100)).isEqualTo(filled('t', 20));
+    }
+    
+    @Test
+    void replacesAnEmptyDirectory() {
+        long source = fileSystem.mkdir(TOKEN, dir, "source", 0755);
+        long child = fileSystem.create(TOKEN, source, "child", 0644);
+        long target = fileSystem.mkdir(TOKEN, dir, "target", 0755);
+        
+        fileSystem.rename(TOKEN, dir, "source", dir, "target", true);
+        
+        assertThat(fileSystem.lookup(TOKEN, dir, "target").getIno()).isEqualTo(source);
+        assertThat(fileSystem.lookup(TOKEN, source, "child").getIno()).isEqualTo(child);
+        assertErrorCode(() -> fileSystem.lookup(TOKEN, dir, "source"), FileSystemException.ENOENT);
+        assertErrorCode(() -> fileSystem.size(TOKEN, target), FileSystemException.ENOENT);
+    }
+    
+    @Test
+    void nonEmptyDirectoryIsNotReplaced() {
+        long source = fileSystem.mkdir(TOKEN, dir, "source", 0755);
+        long target = fileSystem.mkdir(TOKEN, dir, "target", 0755);
+        long child = fileSystem.create(TOKEN, target, "child", 0644);
+        
+        assertErrorCode(() -> fileSystem.rename(TOKEN, dir, "source", dir, "target", true), FileSystemException.ENOTEMPTY);
+        
+        assertThat(fileSystem.lookup(TOKEN, dir, "source").getIno()).isEqualTo(source);
+        assertThat(fileSystem.lookup(TOKEN, dir, "target").getIno()).isEqualTo(target);
+        assertThat(fileSystem.lookup(TOKEN, target, "child").getIno()).isEqualTo(child);
+    }
+    
+    @Test
+    void entriesOfTheOtherTypeAreNotReplaced() {
+        fileSystem.create(TOKEN, dir, "file", 0644);
+        fileSystem.mkdir(TOKEN, dir, "directory", 0755);
+        
+        assertErrorCode(() -> fileSystem.rename(TOKEN, dir, "file", dir, "directory", true), FileSystemException.EISDIR);
+        assertErrorCode(() -> fileSystem.rename(TOKEN, dir, "directory", dir, "file", true), FileSystemException.ENOTDIR);
+    }
+    
+    @Test
+    void directoryCannotMoveIntoItsOwnSubtree() {
+        long outer = fileSystem.mkdir(TOKEN, dir, "outer", 0755);
+        long middle = fileSystem.mkdir(TOKEN, outer, "middle", 0755);
+        long inner = fileSystem.mkdir(TOKEN, middle, "inner", 0755);
+        
+        assertErrorCode(() -> fileSystem.rename(TOKEN, dir, "outer", outer, "self", false), FileSystemException.EINVAL);
+        assertErrorCode(() -> fileSystem.rename(TOKEN, dir, "outer", inner, "moved", false), FileSystemException.EINVAL);
+        assertThat(fileSystem.lookup(TOKEN, dir, "outer").getIno()).isEqualTo(outer);
+        
+        // Moving the other way, out of the subtree, is fine
+        fileSystem.rename(TOKEN, middle, "inner", dir, "inner", false);
+        assertThat(fileSystem.lookup(TOKEN, dir, "inner").getIno()).isEqualTo(inner);
+        fileSystem.rename(TOKEN, dir, "outer", inner, "outer", false);
+        assertThat(fileSystem.lookup(TOKEN, inner, "outer").getIno()).isEqualTo(outer);
+    }
+    
+    private static void assertErrorCode(Runnable operation, int errorCode) {
+        assertThatThrownBy(operation::run)
+                .isInstanceOf(FileSystemException.class)
+                .extracting(e -> ((FileSystemException) e).getErrorCode())
+                .isEqualTo(errorCode);
+    }
+}
@@ -0,0 +1,103 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.BLOCK_SIZE;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.randomBytes;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+/**
+ * Shrinking files stored in blocks, and growing them again afterwards.
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+class TruncateTest {
+    
+    @Autowired
+    private FileSystemService fileSystem;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    private final Random random = new Random(15);
+    
+    @Test
+    void truncateToABlockBoundaryDropsTheBlocksPastIt() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "boundary", 0644);
+        byte[] data = randomBytes(random, 5 * BLOCK_SIZE);
+        write(fileSystem, ino, 0, data);
+        
+        fileSystem.truncate(TOKEN, ino, 2L * BLOCK_SIZE);
+        
+        assertThat(storedBlockLengths(ino)).containsExactly(BLOCK_SIZE, BLOCK_SIZE);
+        assertContents(ino, Arrays.copyOf(data, 2 * BLOCK_SIZE));
+    }
+    
+    @Test
+    void truncateMidBlockCutsTheBoundaryBlock() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "mid-block", 0644);
+        byte[] data = randomBytes(random, 5 * BLOCK_SIZE);
+        write(fileSystem, ino, 0, data);
+        
+        int length = 2 * BLOCK_SIZE + 100;
+        fileSystem.truncate(TOKEN, ino, (long) length);
+        
+        assertThat(storedBlockLengths(ino)).containsExactly(BLOCK_SIZE, BLOCK_SIZE, 100);
+        assertContents(ino, Arrays.copyOf(data, length));
+    }
+    
+    @Test
+    void extendingAfterATruncateReadsZerosInsteadOfTheOldTail() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "extended", 0644);
+        byte[] data = randomBytes(random, 5 * BLOCK_SIZE);
+        write(fileSystem, ino, 0, data);
+        
+        int length = 2 * BLOCK_SIZE + 100;
+        fileSystem.truncate(TOKEN, ino, (long) length);
+        fileSystem.truncate(TOKEN, ino, (long) data.length);
+        byte[] expected = Arrays.copyOf(Arrays.copyOf(data, length), data.length);
+        assertContents(ino, expected);
+        
+        // A write past the hole leaves the zeros before it in place
+        fileSystem.truncate(TOKEN, ino, (long) length);
+        byte[] tail = randomBytes(random, 10);
+        write(fileSystem, ino, 4L * BLOCK_SIZE, tail);
+        expected = Arrays.copyOf(Arrays.copyOf(data, length), 4 * BLOCK_SIZE + tail.length);
+        System.arraycopy(tail, 0, expected, 4 * BLOCK_SIZE, tail.length);
+        assertContents(ino, expected);
+    }
+    
+    @Test
+    void extendingAfterATruncateToABlockBoundaryReadsZeros() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "extended-boundary", 0644);
+        byte[] data = randomBytes(random, 3 * BLOCK_SIZE);
+        write(fileSystem, ino, 0, data);
+        
+        fileSystem.truncate(TOKEN, ino, (long) BLOCK_SIZE);
+        fileSystem.truncate(TOKEN, ino, (long) data.length);
+        
+        assertThat(storedBlockLengths(ino)).containsExactly(BLOCK_SIZE);
+        assertContents(ino, Arrays.copyOf(Arrays.copyOf(data, BLOCK_SIZE), data.length));
+    }
+    
+    private List<Integer> storedBlockLengths(long ino) {
+        return jdbcTemplate.queryForList(
+                "SELECT OCTET_LENGTH(data) FROM file_data WHERE inode_ino = ? ORDER BY block_no", Integer.class, ino);
+    }
+    
+    private void assertContents(long ino, byte[] expected) {
+        assertThat(fileSystem.size(TOKEN, ino)).isEqualTo(expected.length);
+        assertThat(fileSystem.read(TOKEN, ino, 0L, expected.length + 1)).isEqualTo(expected);
+    }
+}
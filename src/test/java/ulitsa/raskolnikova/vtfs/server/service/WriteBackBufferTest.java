@@ -0,0 +1,148 @@
+package ulitsa.raskolnikova.vtfs.server.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ulitsa.raskolnikova.vtfs.server.config.VtfsProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.BLOCK_SIZE;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.filled;
+
+/**
+ * Dirty ranges of the write-back buffer: how writes merge, what readers see through the overlay and when the
+ * buffer asks for a flush.
+ */
+class WriteBackBufferTest {
+    
+    private static final long INO = 42;
+    private static final int MAX_INODE_BYTES = 64;
+    
+    private WriteBackBuffer buffer;
+    private final Object owner = new Object();
+    
+    @BeforeEach
+    void createBuffer() {
+        VtfsProperties properties = new VtfsProperties();
+        properties.getWriteBack().setEnabled(true);
+        properties.getWriteBack().setMaxInodeBytes(MAX_INODE_BYTES);
+        buffer = new WriteBackBuffer(properties);
+    }
+    
+    @Test
+    void overlappingAndAdjacentWritesCoalesce() {
+        buffer.buffer(INO, 0, filled('a', 10));
+        // Adjacent to the first range
+        buffer.buffer(INO, 10, filled('b', 10));
+        // Overlapping both
+        buffer.buffer(INO, 5, filled('c', 10));
+        buffer.buffer(INO, 30, filled('d', 5));
+        assertThat(dirtyBytes()).isEqualTo(25);
+        
+        List<WriteBackBuffer.Range> ranges = claimAll();
+        assertThat(ranges).hasSize(2);
+        assertThat(ranges.get(0).start()).isEqualTo(0);
+        assertThat(bytes(ranges.get(0))).isEqualTo("aaaaaccccccccccbbbbb".getBytes());
+        assertThat(ranges.get(1).start()).isEqualTo(30);
+        assertThat(bytes(ranges.get(1))).isEqualTo(filled('d', 5));
+    }
+    
+    @Test
+    void writeBridgingTwoRangesMergesThemIntoOne() {
+        buffer.buffer(INO, 0, filled('a', 10));
+        buffer.buffer(INO, 20, filled('b', 10));
+        buffer.buffer(INO, 8, filled('c', 14));
+        assertThat(dirtyBytes()).isEqualTo(30);
+        
+        List<WriteBackBuffer.Range> ranges = claimAll();
+        assertThat(ranges).hasSize(1);
+        assertThat(bytes(ranges.get(0))).isEqualTo("aaaaaaaaccccccccccccccbbbbbbbb".getBytes());
+    }
+    
+    @Test
+    void readSeesBufferedBytesAcrossABlockBoundary() throws IOException {
+        byte[] stored = filled('s', 2 * BLOCK_SIZE);
+        buffer.buffer(INO, BLOCK_SIZE - 6, filled('w', 12));
+        
+        // The stored bytes arrive block by block, as the block store hands them out
+        CollectingSink result = new CollectingSink();
+        ReadSink sink = buffer.overlay(INO, BLOCK_SIZE - 100, BLOCK_SIZE + 100, result);
+        sink.begin(BLOCK_SIZE - 100, 200, stored.length);
+        sink.write(stored, BLOCK_SIZE - 100, 100);
+        sink.write(stored, BLOCK_SIZE, 100);
+        
+        byte[] expected = filled('s', 200);
+        Arrays.fill(expected, 94, 106, (byte) 'w');
+        assertThat(result.bytes.toByteArray()).isEqualTo(expected);
+    }
+    
+    @Test
+    void sizeIncludesWritesPastTheStoredEnd() {
+        buffer.buffer(INO, BLOCK_SIZE - 6, filled('w', 12));
+        assertThat(buffer.effectiveSize(INO, BLOCK_SIZE)).isEqualTo(BLOCK_SIZE + 6);
+        assertThat(buffer.effectiveSize(INO, 2 * BLOCK_SIZE)).isEqualTo(2 * BLOCK_SIZE);
+    }
+    
+    @Test
+    void flushIsRequestedOnceTheInodeReachesItsLimit() {
+        assertThat(buffer.buffer(INO, 0, filled('a', MAX_INODE_BYTES / 2))).isFalse();
+        // Rewriting buffered bytes does not count them twice
+        assertThat(buffer.buffer(INO, 0, filled('b', MAX_INODE_BYTES / 2))).isFalse();
+        assertThat(buffer.buffer(INO, MAX_INODE_BYTES / 2, filled('c', MAX_INODE_BYTES / 2 - 1))).isFalse();
+        assertThat(buffer.buffer(INO, MAX_INODE_BYTES - 1, filled('d', 1))).isTrue();
+        
+        WriteBackBuffer.Claim claim = buffer.claim(INO, 0, Long.MAX_VALUE, owner);
+        assertThat(buffer.hasUnclaimed(INO)).isFalse();
+        // Writes arriving during the flush start counting afresh
+        assertThat(buffer.buffer(INO, 0, filled('e', 1))).isFalse();
+        buffer.complete(claim, true);
+        assertThat(dirtyBytes()).isEqualTo(1);
+    }
+    
+    @Test
+    void failedFlushGoesBackUnderNewerWrites() {
+        buffer.buffer(INO, 0, filled('a', 20));
+        WriteBackBuffer.Claim claim = buffer.claim(INO, 0, Long.MAX_VALUE, owner);
+        buffer.buffer(INO, 5, filled('b', 5));
+        buffer.complete(claim, false);
+        
+        assertThat(dirtyBytes()).isEqualTo(20);
+        List<WriteBackBuffer.Range> ranges = claimAll();
+        assertThat(ranges).hasSize(1);
+        assertThat(bytes(ranges.get(0))).isEqualTo("aaaaabbbbbaaaaaaaaaa".getBytes());
+    }
+    
+    private List<WriteBackBuffer.Range> claimAll() {
+        WriteBackBuffer.Claim claim = buffer.claim(INO, 0, Long.MAX_VALUE, owner);
+        assertThat(claim).isNotNull();
+        buffer.complete(claim, true);
+        assertThat(buffer.isDirty(INO)).isFalse();
+        return claim.ranges();
+    }
+    
+    private long dirtyBytes() {
+        return buffer.stats().get("write_back.dirty_bytes").longValue();
+    }
+    
+    private static byte[] bytes(WriteBackBuffer.Range range) {
+        return Arrays.copyOf(range.buffer(), range.length());
+    }
+    
+    private static final class CollectingSink implements ReadSink {
+        
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        @Override
+        public void begin(long offset, long length, long fileSize) {
+        }
+        
+        @Override
+        public void write(byte[] data, int off, int len) {
+            bytes.write(data, off, len);
+        }
+    }
+}
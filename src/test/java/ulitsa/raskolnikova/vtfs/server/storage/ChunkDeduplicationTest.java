@@ -0,0 +1,173 @@
+package ulitsa.raskolnikova.vtfs.server.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+import ulitsa.raskolnikova.vtfs.server.model.ChunkContent;
+import ulitsa.raskolnikova.vtfs.server.repository.ChunkContentRepository;
+import ulitsa.raskolnikova.vtfs.server.service.ChunkDeduplicator;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemService;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.BLOCK_SIZE;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.read;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.randomBytes;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+/**
+ * Reference counts of chunk_contents while two files share their blocks and each operation that adds or
+ * drops references runs on them.
+ */
+@SpringBootTest(properties = {
+        "vtfs.dedup.enabled=true",
+        "vtfs.dedup.gc-interval-ms=3600000"
+})
+@ActiveProfiles("test")
+class ChunkDeduplicationTest {
+    
+    @Autowired
+    private FileSystemService fileSystem;
+    
+    @Autowired
+    private ChunkDeduplicator chunkDeduplicator;
+    
+    @Autowired
+    private ChunkContentRepository chunkContentRepository;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    
+    @AfterEach
+    void stopExecutor() {
+        executor.shutdownNow();
+    }
+    
+    @Test
+    void referenceCountsFollowTheBlocksSharingEachContent() {
+        Random random = new Random(11);
+        byte[] payload = randomBytes(random, 3 * BLOCK_SIZE);
+        byte[] replacement = randomBytes(random, BLOCK_SIZE);
+        
+        long first = fileSystem.create(TOKEN, ROOT_INO, "first", 0644);
+        long second = fileSystem.create(TOKEN, ROOT_INO, "second", 0644);
+        write(fileSystem, first, 0, payload);
+        write(fileSystem, second, 0, payload);
+        assertRefcounts(2, 2, 2);
+        assertContents(first, payload);
+        assertContents(second, payload);
+        
+        write(fileSystem, first, BLOCK_SIZE, replacement);
+        byte[] overwritten = payload.clone();
+        System.arraycopy(replacement, 0, overwritten, BLOCK_SIZE, BLOCK_SIZE);
+        assertRefcounts(1, 1, 2, 2);
+        assertContents(first, overwritten);
+        assertContents(second, payload);
+        
+        fileSystem.truncate(TOKEN, first, (long) BLOCK_SIZE);
+        byte[] truncated = Arrays.copyOf(payload, BLOCK_SIZE);
+        // The replacement is unreferenced but stays until garbage collection
+        assertRefcounts(0, 1, 1, 2);
+        assertContents(first, truncated);
+        assertContents(second, payload);
+        
+        long clone = fileSystem.cloneFile(TOKEN, second, ROOT_INO, "clone");
+        assertRefcounts(0, 2, 2, 3);
+        assertContents(clone, payload);
+        
+        fileSystem.delete(TOKEN, ROOT_INO, "second");
+        assertRefcounts(0, 1, 1, 2);
+        assertContents(first, truncated);
+        assertContents(clone, payload);
+        
+        chunkDeduplicator.collectGarbage();
+        assertRefcounts(1, 1, 2);
+        assertContents(first, truncated);
+        assertContents(clone, payload);
+        
+        fileSystem.delete(TOKEN, ROOT_INO, "first");
+        fileSystem.delete(TOKEN, ROOT_INO, "clone");
+        chunkDeduplicator.collectGarbage();
+        assertThat(chunkContentRepository.count()).isZero();
+    }
+    
+    @Test
+    void garbageCollectionKeepsContentReferencedAgainWhileItRuns() throws Exception {
+        byte[] payload = randomBytes(new Random(12), BLOCK_SIZE);
+        long first = fileSystem.create(TOKEN, ROOT_INO, "collected", 0644);
+        write(fileSystem, first, 0, payload);
+        fileSystem.delete(TOKEN, ROOT_INO, "collected");
+        assertRefcounts(0);
+        
+        // The writer adds its reference to the unreferenced row and keeps it locked until told to commit
+        long second = fileSystem.create(TOKEN, ROOT_INO, "referenced-again", 0644);
+        CountDownLatch referenced = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+        Future<?> writer = executor.submit(() -> transactionTemplate.executeWithoutResult(status -> {
+            write(fileSystem, second, 0, payload);
+            referenced.countDown();
+            try {
+                commit.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertThat(referenced.await(10, TimeUnit.SECONDS)).isTrue();
+        
+        // Garbage collection selects the row while its refcount is still 0 to others and waits for the lock
+        Future<?> collector = executor.submit(chunkDeduplicator::collectGarbage);
+        Thread.sleep(500);
+        commit.countDown();
+        writer.get(10, TimeUnit.SECONDS);
+        collector.get(10, TimeUnit.SECONDS);
+        
+        assertRefcounts(1);
+        assertThat(read(fileSystem, second, 0, BLOCK_SIZE)).isEqualTo(payload);
+        
+        fileSystem.delete(TOKEN, ROOT_INO, "referenced-again");
+        chunkDeduplicator.collectGarbage();
+        assertThat(chunkContentRepository.count()).isZero();
+    }
+    
+    /**
+     * Checks the reference counts of all stored contents, in ascending order, and that each count matches
+     * the file_data rows referencing the content.
+     */
+    private void assertRefcounts(long... expected) {
+        List<ChunkContent> contents = chunkContentRepository.findAll();
+        assertThat(contents.stream().mapToLong(ChunkContent::getRefcount).sorted().toArray()).containsExactly(expected);
+        
+        Long unshared = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM file_data WHERE content_hash IS NULL", Long.class);
+        assertThat(unshared).as("blocks stored without shared content").isZero();
+        for (ChunkContent content : contents) {
+            Long referencing = jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM file_data WHERE content_hash = ?", Long.class, content.getHash());
+            assertThat(content.getRefcount()).as("refcount of %s", content.getHash()).isEqualTo(referencing);
+        }
+    }
+    
+    private void assertContents(long ino, byte[] expected) {
+        assertThat(fileSystem.size(TOKEN, ino)).isEqualTo(expected.length);
+        assertThat(fileSystem.read(TOKEN, ino, 0L, expected.length + 1)).isEqualTo(expected);
+    }
+    
+}
@@ -0,0 +1,174 @@
+package ulitsa.raskolnikova.vtfs.server.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import ulitsa.raskolnikova.vtfs.server.service.FileSystemService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.BLOCK_SIZE;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.ROOT_INO;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.TOKEN;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.randomBytes;
+import static ulitsa.raskolnikova.vtfs.server.FileSystemTestSupport.write;
+
+/**
+ * Segment rollover and compaction of the segment block store. Segments hold three blocks, and the block
+ * cache is off so that every read goes to the segment files. Each test gets a fresh context, which starts
+ * a new active segment, so the blocks of its first write line up with segment boundaries.
+ */
+@SpringBootTest(properties = {
+        "vtfs.storage.backend=segment",
+        "vtfs.storage.segment.segment-size=12288",
+        "vtfs.storage.segment.compaction-interval-ms=3600000",
+        "vtfs.cache.block-cache-bytes=0"
+})
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+class SegmentBlockStoreTest {
+    
+    private static final int BLOCKS_PER_SEGMENT = 3;
+    
+    @TempDir
+    static Path segmentDirectory;
+    
+    @DynamicPropertySource
+    static void segmentProperties(DynamicPropertyRegistry registry) {
+        registry.add("vtfs.storage.segment.directory", () -> segmentDirectory.toString());
+    }
+    
+    @Autowired
+    private FileSystemService fileSystem;
+    
+    @Autowired
+    private SegmentCompactor segmentCompactor;
+    
+    @Autowired
+    private SegmentFiles segmentFiles;
+    
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    
+    private final Random random = new Random(13);
+    private final ExecutorService readers = Executors.newFixedThreadPool(2);
+    
+    @AfterEach
+    void stopReaders() {
+        readers.shutdownNow();
+    }
+    
+    @Test
+    void fullSegmentsAreSealedAndWritesContinueInANewOne() throws IOException {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "rollover", 0644);
+        byte[] data = randomBytes(random, 10 * BLOCK_SIZE);
+        write(fileSystem, ino, 0, data);
+        
+        List<Long> segmentIds = jdbcTemplate.queryForList(
+                "SELECT segment_id FROM block_locations WHERE inode_ino = ? ORDER BY block_no", Long.class, ino);
+        assertThat(segmentIds).hasSize(10);
+        for (int block = 0; block < segmentIds.size(); block++) {
+            assertThat(segmentIds.get(block)).as("segment of block %d", block)
+                    .isEqualTo(segmentIds.get(0) + block / BLOCKS_PER_SEGMENT);
+        }
+        assertThat(segmentFiles.activeSegmentId()).isEqualTo(segmentIds.get(9));
+        assertThat(segmentFiles.sealedSegments()).containsEntry(segmentIds.get(0), (long) BLOCKS_PER_SEGMENT * BLOCK_SIZE);
+        try (var files = Files.list(segmentDirectory)) {
+            assertThat(files.count()).isGreaterThanOrEqualTo(4);
+        }
+        assertThat(fileSystem.read(TOKEN, ino, 0L, data.length)).isEqualTo(data);
+    }
+    
+    @Test
+    void compactionMovesLiveBlocksOutOfSparseSegments() {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "compacted", 0644);
+        byte[] data = randomBytes(random, 6 * BLOCK_SIZE);
+        write(fileSystem, ino, 0, data);
+        Set<Long> written = segmentsOf(ino);
+        
+        // Leaves one live block of three in each segment written above
+        overwrite(ino, data, 0, 2 * BLOCK_SIZE);
+        overwrite(ino, data, 3 * BLOCK_SIZE, 2 * BLOCK_SIZE);
+        
+        segmentCompactor.compact();
+        assertThat(segmentsOf(ino)).doesNotContainAnyElementsOf(written);
+        assertThat(fileSystem.read(TOKEN, ino, 0L, data.length)).isEqualTo(data);
+        assertThat(segmentCompactor.stats().get("segments.relocated_blocks").longValue()).isGreaterThanOrEqualTo(2);
+        
+        // The next run unlinks the emptied segments
+        segmentCompactor.compact();
+        for (long segmentId : written) {
+            assertThat(segmentDirectory.resolve(String.format("segment-%08d.seg", segmentId))).doesNotExist();
+        }
+        assertThat(fileSystem.read(TOKEN, ino, 0L, data.length)).isEqualTo(data);
+    }
+    
+    @Test
+    void readsRacingCompactionSeeTheFileContents() throws Exception {
+        long ino = fileSystem.create(TOKEN, ROOT_INO, "raced", 0644);
+        byte[] data = randomBytes(random, 24 * BLOCK_SIZE);
+        write(fileSystem, ino, 0, data);
+        for (int block = 0; block < 24; block += BLOCKS_PER_SEGMENT) {
+            overwrite(ino, data, (long) block * BLOCK_SIZE, 2 * BLOCK_SIZE);
+        }
+        
+        AtomicBoolean compacting = new AtomicBoolean(true);
+        List<Future<Integer>> reads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            reads.add(readers.submit(() -> {
+                int count = 0;
+                while (compacting.get()) {
+                    assertThat(fileSystem.read(TOKEN, ino, 0L, data.length)).isEqualTo(data);
+                    count++;
+                }
+                return count;
+            }));
+        }
+        try {
+            // Relocates, unlinks and finally drops the mappings of the sparse segments
+            for (int run = 0; run < 3; run++) {
+                segmentCompactor.compact();
+            }
+        } finally {
+            compacting.set(false);
+        }
+        for (Future<Integer> read : reads) {
+            assertThat(read.get(30, TimeUnit.SECONDS)).isPositive();
+        }
+        assertThat(fileSystem.read(TOKEN, ino, 0L, data.length)).isEqualTo(data);
+    }
+    
+    private Set<Long> segmentsOf(long ino) {
+        return new TreeSet<>(jdbcTemplate.queryForList(
+                "SELECT segment_id FROM block_locations WHERE inode_ino = ?", Long.class, ino));
+    }
+    
+    /**
+     * Writes new random bytes over {@code length} bytes at {@code offset} and updates {@code data} to match.
+     */
+    private void overwrite(long ino, byte[] data, long offset, int length) {
+        byte[] replacement = randomBytes(random, length);
+        write(fileSystem, ino, offset, replacement);
+        System.arraycopy(replacement, 0, data, (int) offset, length);
+    }
+}
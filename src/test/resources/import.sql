@@ -0,0 +1,2 @@
+INSERT INTO inodes (ino, mode, size, nlink) VALUES (1000, 16877, 0, 2);
+ALTER SEQUENCE inodes_ino_seq RESTART WITH 2000;